@@ -17,35 +17,135 @@
 package com.jonhkr.visage;
 
 import com.jonhkr.visage.aws.sqs.SqsMessagePublisher;
+import com.jonhkr.visage.aws.sqs.SqsPublisherConfig;
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.CompressedMessageParser;
 import com.jonhkr.visage.parser.DefaultMessageParser;
 import com.jonhkr.visage.parser.MessageParser;
+import com.jonhkr.visage.publisher.AimdLimit;
+import com.jonhkr.visage.publisher.ConcurrencyLimit;
+import com.jonhkr.visage.publisher.GradientLimit;
+import com.jonhkr.visage.publisher.LimitingMessagePublisher;
 import com.jonhkr.visage.publisher.MessagePublisher;
 import com.jonhkr.visage.watcher.FileSystemMessageWatcher;
 import com.jonhkr.visage.watcher.MessageWatcher;
+import com.jonhkr.visage.watcher.PollingConfig;
+import com.jonhkr.visage.watcher.PollingMessageWatcher;
+import com.jonhkr.visage.watcher.WatcherConfig;
 
 import java.io.File;
+import java.net.URI;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 
+/**
+ * Watches the directories in {@code visage.path} and publishes every message
+ * to the SQS queue at {@code visage.sqs.queueUrl}. Configured through
+ * {@code visage.*} properties, system properties when run from
+ * {@link #main(String[])}.
+ * <p>
+ * Publishes go through a {@link LimitingMessagePublisher} whose limit adapts
+ * to the SQS latency, {@code visage.limiter} picks the algorithm:
+ * {@code gradient}, the default, {@code aimd} or {@code none}.
+ */
 public class Server {
-    public static void main(String[] args) throws InterruptedException {
 
-        MessageParser parser = new DefaultMessageParser();
-        MessagePublisher messagePublisher = new SqsMessagePublisher();
+    private final MessageWatcher watcher;
+    private final SqsMessagePublisher messagePublisher;
+    private final MessagePublisher publisher;
+
+    public Server(Properties properties) {
+        MessageParser parser = Boolean.parseBoolean(properties.getProperty("visage.compressed"))
+                ? new CompressedMessageParser(new ByteBufferMessageParser(), true,
+                        Long.parseLong(properties.getProperty("visage.compressed.maxInflatedBytes", "268435456")))
+                : new DefaultMessageParser();
+
+        SqsPublisherConfig publisherConfig = new SqsPublisherConfig()
+                .setQueueUrl(properties.getProperty("visage.sqs.queueUrl"))
+                .setRegion(properties.getProperty("visage.sqs.region", "us-east-1"))
+                .setAccessKeyId(properties.getProperty("visage.sqs.accessKeyId"))
+                .setSecretAccessKey(properties.getProperty("visage.sqs.secretAccessKey"))
+                .setPublishTimeoutMillis(Long.parseLong(properties.getProperty("visage.sqs.publishTimeoutMillis", "60000")));
+
+        if (properties.getProperty("visage.sqs.endpoint") != null) {
+            publisherConfig.setEndpoint(URI.create(properties.getProperty("visage.sqs.endpoint")));
+        }
+
+        messagePublisher = new SqsMessagePublisher(publisherConfig);
+
+        List<Path> paths = new ArrayList<>();
+
+        for (String path : properties.getProperty("visage.path", "/Users/jonhkr/messages").split(File.pathSeparator)) {
+            paths.add(new File(path).toPath());
+        }
+
+        WatcherConfig watcherConfig = new WatcherConfig()
+                .setDeliveryWorkers(publisherConfig.getMaxInFlightBatches() * SqsMessagePublisher.MAX_BATCH_ENTRIES)
+                .setRecursive(Boolean.parseBoolean(properties.getProperty("visage.recursive")))
+                .setWatchThreads(Integer.parseInt(properties.getProperty("visage.watchThreads", "1")))
+                .setClaimFiles(Boolean.parseBoolean(properties.getProperty("visage.claimFiles")))
+                .setDeduplicate(Boolean.parseBoolean(properties.getProperty("visage.deduplicate")));
+
+        if (properties.getProperty("visage.deduplicationSnapshot") != null) {
+            watcherConfig.setDeduplicationSnapshot(new File(properties.getProperty("visage.deduplicationSnapshot")).toPath());
+        }
 
-        Path path = new File("/Users/jonhkr/messages").toPath();
+        publisher = limited(messagePublisher, properties, watcherConfig);
 
-        MessageWatcher watcher = new FileSystemMessageWatcher(path, parser);
+        watcher = Boolean.parseBoolean(properties.getProperty("visage.polling"))
+                ? new PollingMessageWatcher(paths, parser, watcherConfig, new PollingConfig())
+                : new FileSystemMessageWatcher(paths, parser, watcherConfig);
+    }
 
+    public void start() {
+        watcher.onMessage(publisher::publish);
         watcher.start();
-        watcher.onMessage(messagePublisher::publish);
+    }
+
+    public void stop() {
+        watcher.stop();
+        messagePublisher.close();
+    }
+
+    private static MessagePublisher limited(MessagePublisher messagePublisher, Properties properties,
+                                            WatcherConfig watcherConfig) {
+        String algorithm = properties.getProperty("visage.limiter", "gradient");
+        int maxLimit = Integer.parseInt(properties.getProperty("visage.limiter.maxLimit",
+                String.valueOf(watcherConfig.getDeliveryWorkers())));
+        int initialLimit = Math.min(maxLimit, Integer.parseInt(properties.getProperty("visage.limiter.initialLimit", "20")));
+        long acquireTimeoutMillis = Long.parseLong(properties.getProperty("visage.limiter.acquireTimeoutMillis", "60000"));
+        ConcurrencyLimit limit;
+
+        switch (algorithm) {
+            case "none":
+                return messagePublisher;
+            case "aimd":
+                limit = new AimdLimit(initialLimit, 1, maxLimit);
+                break;
+            case "gradient":
+                limit = new GradientLimit(initialLimit, 1, maxLimit);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown limiter: " + algorithm);
+        }
+
+        return new LimitingMessagePublisher(messagePublisher, limit, acquireTimeoutMillis,
+                watcherConfig.getMetricsRegistry());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Server server = new Server(System.getProperties());
 
+        server.start();
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
                 super.run();
 
-                watcher.stop();
+                server.stop();
             }
         });
 
@@ -16,12 +16,447 @@
 
 package com.jonhkr.visage.aws.sqs;
 
+import com.jonhkr.visage.message.ContentEncoding;
+import com.jonhkr.visage.message.Header;
 import com.jonhkr.visage.message.Message;
 import com.jonhkr.visage.publisher.MessagePublisher;
+import com.jonhkr.visage.publisher.MessageRejectedException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsAsyncClientBuilder;
+import software.amazon.awssdk.services.sqs.model.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Publishes messages to an SQS queue. Messages are grouped into
+ * {@code SendMessageBatch} calls of up to 10 entries and 256 KiB, several
+ * batches are kept in flight on a non-blocking HTTP client and entries that
+ * fail inside an otherwise successful batch are retried on their own.
+ * <p>
+ * {@link #publish(Message)} blocks until the message has been accepted by
+ * SQS, for {@code publishTimeoutMillis} at most, {@link #publishAsync(Message)}
+ * does not wait for SQS but blocks while {@code maxInFlightBatches} batches
+ * are outstanding. Batches that find no free slot within
+ * {@code publishTimeoutMillis} fail with a {@link TimeoutException}.
+ * <p>
+ * Messages too large for SQS fail with a {@link MessageRejectedException},
+ * which the watcher dead-letters without retrying.
+ * <p>
+ * {@link #close()} sends the entries still waiting for their batch or for a
+ * retry right away and waits for the batches in flight, so every future
+ * returned by {@link #publishAsync(Message)} completes.
+ * <p>
+ * Messages whose payload is still compressed, as stated by their
+ * {@code Content-Encoding} header, are sent as is: the body is the base64
+ * encoded compressed payload and the header becomes an attribute, so
+ * receivers know to decode it.
+ */
+public class SqsMessagePublisher implements MessagePublisher, AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(SqsMessagePublisher.class);
+
+    public final static int MAX_BATCH_ENTRIES = 10;
+    public final static int MAX_BATCH_BYTES = 256 * 1024;
+    public final static int MAX_ATTRIBUTES = 10;
+
+    private final static String STRING_DATA_TYPE = "String";
+
+    private final SqsAsyncClient client;
+    private final SqsPublisherConfig config;
+    private final Semaphore inFlightBatches;
+    private final ScheduledExecutorService scheduler;
+    private final Set<Entry> retrying = ConcurrentHashMap.newKeySet();
+
+    private List<Entry> pending = new ArrayList<>(MAX_BATCH_ENTRIES);
+    private long pendingBytes;
+    private long generation;
+    private volatile boolean closed;
+
+    public SqsMessagePublisher(SqsPublisherConfig config) {
+        this(createClient(config), config);
+    }
+
+    public SqsMessagePublisher(SqsAsyncClient client, SqsPublisherConfig config) {
+        if (config.getQueueUrl() == null) {
+            throw new IllegalArgumentException("queueUrl is required");
+        }
+
+        this.client = client;
+        this.config = config;
+        this.inFlightBatches = new Semaphore(config.getMaxInFlightBatches());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "visage-sqs-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-public class SqsMessagePublisher implements MessagePublisher {
     @Override
     public void publish(Message message) {
+        try {
+            publishAsync(message).get(config.getPublishTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("Message not accepted by SQS within "
+                    + config.getPublishTimeoutMillis() + " ms", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(Message message) {
+        Entry entry = new Entry(body(message), attributes(message));
+
+        if (entry.size > MAX_BATCH_BYTES) {
+            entry.future.completeExceptionally(new MessageRejectedException(
+                    "Message of " + entry.size + " bytes exceeds the SQS limit of " + MAX_BATCH_BYTES + " bytes"));
+        } else {
+            enqueue(entry);
+        }
+
+        return entry.future;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        scheduler.shutdownNow();
+
+        // entries waiting for a retry are sent now, later failures are not
+        // retried anymore, see retryOrFail
+        for (Entry entry : retrying) {
+            if (retrying.remove(entry)) {
+                enqueue(entry);
+            }
+        }
+
+        flush();
+
+        try {
+            inFlightBatches.acquire(config.getMaxInFlightBatches());
+            inFlightBatches.release(config.getMaxInFlightBatches());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        client.close();
+    }
+
+    public void flush() {
+        List<Entry> batch;
+
+        synchronized (this) {
+            batch = pending.isEmpty() ? null : drain();
+        }
+
+        send(batch);
+    }
+
+    private void enqueue(Entry entry) {
+        List<Entry> overflow = null;
+        List<Entry> full = null;
+
+        synchronized (this) {
+            if (!pending.isEmpty() && pendingBytes + entry.size > MAX_BATCH_BYTES) {
+                overflow = drain();
+            }
+
+            boolean linger = config.getBatchLingerMillis() > 0 && !closed;
+
+            if (pending.isEmpty() && linger) {
+                long scheduled = generation;
+                scheduler.schedule(() -> flush(scheduled), config.getBatchLingerMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            pending.add(entry);
+            pendingBytes += entry.size;
+
+            if (pending.size() == MAX_BATCH_ENTRIES || !linger) {
+                full = drain();
+            }
+        }
+
+        send(overflow);
+        send(full);
+    }
+
+    private void flush(long scheduled) {
+        List<Entry> batch;
+
+        synchronized (this) {
+            if (scheduled != generation || pending.isEmpty()) {
+                return;
+            }
+
+            batch = drain();
+        }
+
+        send(batch);
+    }
+
+    private List<Entry> drain() {
+        List<Entry> batch = pending;
+        pending = new ArrayList<>(MAX_BATCH_ENTRIES);
+        pendingBytes = 0;
+        generation++;
+
+        return batch;
+    }
+
+    private void send(List<Entry> batch) {
+        if (batch == null) {
+            return;
+        }
+
+        try {
+            if (!inFlightBatches.tryAcquire(config.getPublishTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                TimeoutException timeout = new TimeoutException("No batch slot freed up within "
+                        + config.getPublishTimeoutMillis() + " ms");
+                batch.forEach((entry) -> entry.future.completeExceptionally(timeout));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.forEach((entry) -> entry.future.completeExceptionally(e));
+            return;
+        }
+
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .messageBody(entry.body)
+                    .messageAttributes(entry.attributes)
+                    .build());
+        }
+
+        SendMessageBatchRequest request = SendMessageBatchRequest.builder()
+                .queueUrl(config.getQueueUrl())
+                .entries(entries)
+                .build();
+
+        CompletableFuture<SendMessageBatchResponse> response;
+
+        try {
+            response = client.sendMessageBatch(request);
+        } catch (Exception e) {
+            inFlightBatches.release();
+            batch.forEach((entry) -> entry.future.completeExceptionally(e));
+            return;
+        }
+
+        response.whenComplete((result, throwable) -> {
+            inFlightBatches.release();
+
+            if (throwable != null) {
+                Throwable error = throwable instanceof CompletionException && throwable.getCause() != null
+                        ? throwable.getCause()
+                        : throwable;
+
+                LOGGER.warn("SendMessageBatch of {} entries failed: {}", batch.size(), error.getMessage());
+                batch.forEach((entry) -> entry.future.completeExceptionally(error));
+                return;
+            }
+
+            for (SendMessageBatchResultEntry success : result.successful()) {
+                batch.get(Integer.parseInt(success.id())).future.complete(null);
+            }
+
+            for (BatchResultErrorEntry failure : result.failed()) {
+                retryOrFail(batch.get(Integer.parseInt(failure.id())), failure);
+            }
+        });
+    }
+
+    private void retryOrFail(Entry entry, BatchResultErrorEntry failure) {
+        if (failure.senderFault() || entry.attempts >= config.getMaxAttempts()) {
+            entry.future.completeExceptionally(new SqsPublishException(failure.code(), failure.message()));
+            return;
+        }
+
+        long backoff = Math.min(config.getMaxRetryBackoffMillis(),
+                config.getRetryBackoffMillis() << Math.min(entry.attempts - 1, 20));
+
+        entry.attempts++;
+
+        LOGGER.debug("Retrying entry after {} ({}), attempt {}.", failure.code(), failure.message(), entry.attempts);
+
+        retrying.add(entry);
+
+        try {
+            scheduler.schedule(() -> {
+                if (retrying.remove(entry)) {
+                    enqueue(entry);
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (retrying.remove(entry)) {
+                entry.future.completeExceptionally(new SqsPublishException(failure.code(), failure.message()));
+            }
+        }
+    }
+
+    static String body(Message message) {
+        if (ContentEncoding.of(message.getHeaders()) == null) {
+            return message.getPayload().getData().toString();
+        }
+
+        ByteBuffer payload = message.getPayload().asByteBuffer();
+
+        return StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(payload)).toString();
+    }
+
+    static Map<String, MessageAttributeValue> attributes(Message message) {
+        Map<String, MessageAttributeValue> attributes = new LinkedHashMap<>();
+        Map<String, String> values = new LinkedHashMap<>();
+
+        for (Header header : message.getHeaders()) {
+            String name = attributeName(header.getName());
+
+            if (name == null || header.getValue().isEmpty()) {
+                continue;
+            }
+
+            values.merge(name, header.getValue(), (a, b) -> a + ", " + b);
+        }
+
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            if (attributes.size() == MAX_ATTRIBUTES) {
+                LOGGER.warn("Message has more than {} headers, remaining headers are not sent.", MAX_ATTRIBUTES);
+                break;
+            }
+
+            attributes.put(value.getKey(), MessageAttributeValue.builder()
+                    .dataType(STRING_DATA_TYPE)
+                    .stringValue(value.getValue())
+                    .build());
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Maps a header name to a valid SQS attribute name: only alphanumerics,
+     * '-', '_' and '.' are kept and names reserved by AWS are dropped.
+     */
+    static String attributeName(String header) {
+        StringBuilder name = new StringBuilder(header.length());
+        char last = '.';
+
+        for (int i = 0; i < header.length() && name.length() < 256; i++) {
+            char c = header.charAt(i);
+
+            if (!(Character.isLetterOrDigit(c) && c < 128) && c != '-' && c != '_' && c != '.') {
+                c = '_';
+            }
+
+            if (c == '.' && last == '.') {
+                continue;
+            }
+
+            name.append(c);
+            last = c;
+        }
+
+        while (name.length() > 0 && name.charAt(name.length() - 1) == '.') {
+            name.setLength(name.length() - 1);
+        }
+
+        String result = name.toString();
+        String lower = result.toLowerCase(Locale.ROOT);
+
+        if (result.isEmpty() || lower.startsWith("aws.") || lower.startsWith("amazon.")) {
+            return null;
+        }
+
+        return result;
+    }
+
+    private static SqsAsyncClient createClient(SqsPublisherConfig config) {
+        SqsAsyncClientBuilder builder = SqsAsyncClient.builder()
+                .region(Region.of(config.getRegion()))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(config.getMaxInFlightBatches()));
+
+        if (config.getEndpoint() != null) {
+            builder.endpointOverride(config.getEndpoint());
+        }
+
+        if (config.getAccessKeyId() != null) {
+            builder.credentialsProvider(StaticCredentialsProvider.create(
+                    AwsBasicCredentials.create(config.getAccessKeyId(), config.getSecretAccessKey())));
+        } else {
+            builder.credentialsProvider(DefaultCredentialsProvider.create());
+        }
+
+        return builder.build();
+    }
+
+    private static class Entry {
+
+        private final String body;
+        private final Map<String, MessageAttributeValue> attributes;
+        private final int size;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int attempts = 1;
+
+        Entry(String body, Map<String, MessageAttributeValue> attributes) {
+            this.body = body;
+            this.attributes = attributes;
+            this.size = size(body, attributes);
+        }
+
+        private static int size(String body, Map<String, MessageAttributeValue> attributes) {
+            int size = utf8Length(body);
+
+            for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+                size += utf8Length(attribute.getKey())
+                        + utf8Length(attribute.getValue().dataType())
+                        + utf8Length(attribute.getValue().stringValue());
+            }
+
+            return size;
+        }
+
+        private static int utf8Length(String value) {
+            int length = 0;
+
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c)) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
 
+            return length;
+        }
     }
 }
@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.aws.sqs;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.net.URI;
+
+@Data
+@Accessors(chain = true)
+public class SqsPublisherConfig {
+    private String queueUrl;
+    private URI endpoint;
+    private String region = "us-east-1";
+    private String accessKeyId;
+    private String secretAccessKey;
+    private int maxInFlightBatches = 16;
+    private long batchLingerMillis = 10;
+    private int maxAttempts = 5;
+    private long retryBackoffMillis = 100;
+    private long maxRetryBackoffMillis = 5000;
+    private long publishTimeoutMillis = 60 * 1000;
+}
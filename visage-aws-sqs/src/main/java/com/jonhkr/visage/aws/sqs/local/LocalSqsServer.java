@@ -0,0 +1,345 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.aws.sqs.local;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * In-process stand-in for the SQS {@code SendMessageBatch} API, speaking the
+ * query protocol used by the AWS SDK. Received messages are kept in memory so
+ * tests and benchmarks can run without network access. Entry failures and
+ * response latency can be injected to exercise the publisher retry paths.
+ * <p>
+ * Long running load tests should turn {@code retainMessages} off and
+ * observe messages through {@link #onMessage(Consumer)} instead.
+ */
+public class LocalSqsServer implements AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(LocalSqsServer.class);
+
+    private final static String NAMESPACE = "http://queue.amazonaws.com/doc/2012-11-05/";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Queue<ReceivedMessage> messages = new ConcurrentLinkedQueue<>();
+    private final List<Consumer<ReceivedMessage>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicInteger failNextEntries = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile boolean retainMessages = true;
+
+    public LocalSqsServer() throws IOException {
+        this(0);
+    }
+
+    public LocalSqsServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "visage-local-sqs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    public URI getEndpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public String queueUrl(String queueName) {
+        return getEndpoint() + "/000000000000/" + queueName;
+    }
+
+    public List<ReceivedMessage> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    public int getMessageCount() {
+        return messages.size();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Number of messages received since the last {@link #clear()}, retained
+     * or not.
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public void clear() {
+        messages.clear();
+        batches.set(0);
+        received.set(0);
+    }
+
+    /**
+     * Calls the listener on the server thread for every message received.
+     */
+    public void onMessage(Consumer<ReceivedMessage> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Makes the next {@code entries} batch entries fail with a retryable
+     * (non sender fault) error.
+     */
+    public void failNextEntries(int entries) {
+        failNextEntries.set(entries);
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setRetainMessages(boolean retainMessages) {
+        this.retainMessages = retainMessages;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = parseForm(read(exchange.getRequestBody()));
+            String action = parameters.get("Action");
+
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+
+            if ("SendMessageBatch".equals(action)) {
+                respond(exchange, 200, sendMessageBatch(parameters));
+            } else {
+                respond(exchange, 400, error("InvalidAction", "Unsupported action " + action));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Local SQS request failed.", e);
+            respond(exchange, 500, error("InternalError", String.valueOf(e.getMessage())));
+        }
+    }
+
+    private String sendMessageBatch(Map<String, String> parameters) {
+        batches.incrementAndGet();
+
+        StringBuilder result = new StringBuilder();
+        result.append("<SendMessageBatchResponse xmlns=\"").append(NAMESPACE).append("\"><SendMessageBatchResult>");
+
+        for (int i = 1; parameters.containsKey(entryKey(i, "Id")); i++) {
+            String id = parameters.get(entryKey(i, "Id"));
+
+            if (failNextEntries.getAndUpdate((n) -> n > 0 ? n - 1 : 0) > 0) {
+                result.append("<BatchResultErrorEntry>")
+                        .append("<Id>").append(escape(id)).append("</Id>")
+                        .append("<Code>InternalError</Code>")
+                        .append("<Message>Injected failure</Message>")
+                        .append("<SenderFault>false</SenderFault>")
+                        .append("</BatchResultErrorEntry>");
+                continue;
+            }
+
+            String body = parameters.get(entryKey(i, "MessageBody"));
+            SortedMap<String, String> attributes = new TreeMap<>();
+            SortedMap<String, String> dataTypes = new TreeMap<>();
+
+            for (int j = 1; parameters.containsKey(entryKey(i, "MessageAttribute." + j + ".Name")); j++) {
+                String name = parameters.get(entryKey(i, "MessageAttribute." + j + ".Name"));
+                attributes.put(name, parameters.get(entryKey(i, "MessageAttribute." + j + ".Value.StringValue")));
+                dataTypes.put(name, parameters.get(entryKey(i, "MessageAttribute." + j + ".Value.DataType")));
+            }
+
+            String messageId = UUID.randomUUID().toString();
+            ReceivedMessage message = new ReceivedMessage(messageId, body, attributes);
+
+            if (retainMessages) {
+                messages.add(message);
+            }
+
+            received.incrementAndGet();
+
+            for (Consumer<ReceivedMessage> listener : listeners) {
+                listener.accept(message);
+            }
+
+            result.append("<SendMessageBatchResultEntry>")
+                    .append("<Id>").append(escape(id)).append("</Id>")
+                    .append("<MessageId>").append(messageId).append("</MessageId>")
+                    .append("<MD5OfMessageBody>").append(md5(body)).append("</MD5OfMessageBody>");
+
+            if (!attributes.isEmpty()) {
+                result.append("<MD5OfMessageAttributes>")
+                        .append(attributesMd5(attributes, dataTypes))
+                        .append("</MD5OfMessageAttributes>");
+            }
+
+            result.append("</SendMessageBatchResultEntry>");
+        }
+
+        result.append("</SendMessageBatchResult>")
+                .append("<ResponseMetadata><RequestId>").append(UUID.randomUUID()).append("</RequestId></ResponseMetadata>")
+                .append("</SendMessageBatchResponse>");
+
+        return result.toString();
+    }
+
+    private static String entryKey(int entry, String field) {
+        return "SendMessageBatchRequestEntry." + entry + "." + field;
+    }
+
+    private static String error(String code, String message) {
+        return "<ErrorResponse xmlns=\"" + NAMESPACE + "\"><Error><Type>Sender</Type>"
+                + "<Code>" + escape(code) + "</Code><Message>" + escape(message) + "</Message></Error>"
+                + "<RequestId>" + UUID.randomUUID() + "</RequestId></ErrorResponse>";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+
+            int separator = pair.indexOf('=');
+            String name = separator == -1 ? pair : pair.substring(0, separator);
+            String value = separator == -1 ? "" : pair.substring(separator + 1);
+
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+
+        return parameters;
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '&': escaped.append("&amp;"); break;
+                case '"': escaped.append("&quot;"); break;
+                default: escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+
+    private static String md5(String value) {
+        return hex(digest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Same digest SQS computes over message attributes: for every attribute,
+     * sorted by name, the length prefixed name, data type and value.
+     */
+    private static String attributesMd5(SortedMap<String, String> attributes, Map<String, String> dataTypes) {
+        MessageDigest digest = digest();
+
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            updateLengthAndBytes(digest, attribute.getKey());
+            updateLengthAndBytes(digest, dataTypes.get(attribute.getKey()));
+            digest.update((byte) 1);
+            updateLengthAndBytes(digest, attribute.getValue());
+        }
+
+        return hex(digest.digest());
+    }
+
+    private static void updateLengthAndBytes(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+}
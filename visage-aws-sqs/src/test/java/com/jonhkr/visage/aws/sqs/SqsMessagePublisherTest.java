@@ -0,0 +1,239 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.aws.sqs;
+
+import com.jonhkr.visage.aws.sqs.local.LocalSqsServer;
+import com.jonhkr.visage.aws.sqs.local.ReceivedMessage;
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import com.jonhkr.visage.publisher.MessageRejectedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class SqsMessagePublisherTest {
+
+    private LocalSqsServer sqs;
+    private SqsMessagePublisher publisher;
+
+    @Before
+    public void setup() throws Exception {
+        sqs = new LocalSqsServer();
+        publisher = new SqsMessagePublisher(new SqsPublisherConfig()
+                .setQueueUrl(sqs.queueUrl("visage"))
+                .setEndpoint(sqs.getEndpoint())
+                .setAccessKeyId("local")
+                .setSecretAccessKey("local")
+                .setBatchLingerMillis(20)
+                .setRetryBackoffMillis(10));
+    }
+
+    @After
+    public void after() {
+        publisher.close();
+        sqs.close();
+    }
+
+    @Test
+    public void publishesHeadersAsAttributes() {
+        publisher.publish(new Message(Arrays.asList(
+                new Header("Message-Id", "42"),
+                new Header("content type", "text/plain")), new Payload("payload data")));
+
+        List<ReceivedMessage> messages = sqs.getMessages();
+
+        assertEquals(1, messages.size());
+        assertEquals("payload data", messages.get(0).getBody());
+        assertEquals("42", messages.get(0).getAttributes().get("Message-Id"));
+        assertEquals("text/plain", messages.get(0).getAttributes().get("content_type"));
+    }
+
+    @Test
+    public void groupsMessagesIntoBatches() throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 35; i++) {
+            futures.add(publisher.publishAsync(message("message " + i)));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        assertEquals(35, sqs.getMessageCount());
+        assertEquals(4, sqs.getBatchCount());
+    }
+
+    @Test
+    public void retriesOnlyFailedEntries() throws Exception {
+        sqs.failNextEntries(3);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            futures.add(publisher.publishAsync(message("message " + i)));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        assertEquals(10, sqs.getMessageCount());
+        assertEquals(2, sqs.getBatchCount());
+    }
+
+    @Test
+    public void publishGivesUpAfterTheTimeout() {
+        sqs.setLatencyMillis(2000);
+
+        try (SqsMessagePublisher impatient = new SqsMessagePublisher(new SqsPublisherConfig()
+                .setQueueUrl(sqs.queueUrl("visage"))
+                .setEndpoint(sqs.getEndpoint())
+                .setAccessKeyId("local")
+                .setSecretAccessKey("local")
+                .setPublishTimeoutMillis(100))) {
+
+            impatient.publish(message("slow"));
+            fail("publish did not time out");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        } finally {
+            sqs.setLatencyMillis(0);
+        }
+    }
+
+    @Test
+    public void failsBatchesFindingNoFreeSlotInTime() throws Exception {
+        sqs.setLatencyMillis(2000);
+
+        try (SqsMessagePublisher impatient = new SqsMessagePublisher(new SqsPublisherConfig()
+                .setQueueUrl(sqs.queueUrl("visage"))
+                .setEndpoint(sqs.getEndpoint())
+                .setAccessKeyId("local")
+                .setSecretAccessKey("local")
+                .setBatchLingerMillis(0)
+                .setMaxInFlightBatches(1)
+                .setPublishTimeoutMillis(100))) {
+
+            impatient.publishAsync(message("slow"));
+
+            long start = System.nanoTime();
+            CompletableFuture<Void> waiting = impatient.publishAsync(message("waiting"));
+
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                fail("batch did not time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        } finally {
+            sqs.setLatencyMillis(0);
+        }
+    }
+
+    @Test
+    public void rejectsMessagesTooLargeForSqs() {
+        StringBuilder body = new StringBuilder();
+
+        while (body.length() <= SqsMessagePublisher.MAX_BATCH_BYTES) {
+            body.append("payload data ");
+        }
+
+        try {
+            publisher.publish(message(body.toString()));
+            fail("oversized message was published");
+        } catch (MessageRejectedException e) {
+            assertEquals(0, sqs.getBatchCount());
+        }
+    }
+
+    @Test
+    public void closeSendsEntriesWaitingForRetry() throws Exception {
+        SqsMessagePublisher patient = new SqsMessagePublisher(new SqsPublisherConfig()
+                .setQueueUrl(sqs.queueUrl("visage"))
+                .setEndpoint(sqs.getEndpoint())
+                .setAccessKeyId("local")
+                .setSecretAccessKey("local")
+                .setRetryBackoffMillis(60 * 1000)
+                .setMaxRetryBackoffMillis(60 * 1000));
+
+        sqs.failNextEntries(1);
+
+        CompletableFuture<Void> future = patient.publishAsync(message("retried"));
+
+        while (sqs.getBatchCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        Thread.sleep(200);
+        patient.close();
+
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, sqs.getMessageCount());
+    }
+
+    @Test
+    public void notifiesListenersWithoutRetainingMessages() {
+        List<ReceivedMessage> received = new ArrayList<>();
+
+        sqs.setRetainMessages(false);
+        sqs.onMessage(received::add);
+
+        publisher.publish(new Message(Arrays.asList(new Header("Message-Id", "42")), new Payload("payload data")));
+
+        assertEquals(1, received.size());
+        assertEquals("42", received.get(0).getAttributes().get("Message-Id"));
+        assertEquals(1, sqs.getReceivedCount());
+        assertEquals(0, sqs.getMessageCount());
+    }
+
+    @Test
+    public void sendsCompressedPayloadsAsBase64() {
+        byte[] compressed = {0x1f, (byte) 0x8b, 0x08, 0x00, (byte) 0xff};
+
+        publisher.publish(new Message(Arrays.asList(
+                new Header("Content-Encoding", "gzip")), new Payload(ByteBuffer.wrap(compressed))));
+
+        List<ReceivedMessage> messages = sqs.getMessages();
+
+        assertEquals(1, messages.size());
+        assertArrayEquals(compressed, Base64.getDecoder().decode(messages.get(0).getBody()));
+        assertEquals("gzip", messages.get(0).getAttributes().get("Content-Encoding"));
+    }
+
+    @Test
+    public void mapsHeaderNamesToValidAttributeNames() {
+        assertEquals("Content-Type", SqsMessagePublisher.attributeName("Content-Type"));
+        assertEquals("a_b.c", SqsMessagePublisher.attributeName("a b..c."));
+        assertNull(SqsMessagePublisher.attributeName("AWS.TraceHeader"));
+    }
+
+    private static Message message(String payload) {
+        return new Message(new ArrayList<>(), new Payload(payload));
+    }
+}
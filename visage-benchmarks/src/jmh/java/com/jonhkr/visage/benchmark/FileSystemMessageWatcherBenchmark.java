@@ -0,0 +1,107 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark;
+
+import com.jonhkr.visage.watcher.FileSystemMessageWatcher;
+import com.jonhkr.visage.watcher.WatcherConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast messages moved into a watched directory reach a consumer.
+ * Delivered files are deleted by the claim lifecycle so the directory does
+ * not grow over the run.
+ */
+@State(Scope.Benchmark)
+public class FileSystemMessageWatcherBenchmark {
+
+    private final static int BATCH_SIZE = 100;
+
+    @Param({"default", "bytebuffer"})
+    private String parser;
+
+    @Param({"1024", "65536"})
+    private int payloadSize;
+
+    private final Semaphore delivered = new Semaphore(0);
+
+    private Path directory;
+    private Path inbox;
+    private Path staging;
+    private byte[] message;
+    private long sequence;
+    private FileSystemMessageWatcher watcher;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Messages.directory();
+        inbox = Files.createDirectory(directory.resolve("inbox"));
+        staging = Files.createDirectory(directory.resolve("staging"));
+        message = Messages.bytes(Messages.text(8, payloadSize, new Random(42)));
+
+        WatcherConfig config = new WatcherConfig()
+                .setClaimFiles(true)
+                .setScanOnStart(false)
+                .setQuiescenceMillis(0);
+
+        watcher = new FileSystemMessageWatcher(inbox, Messages.parser(parser), config);
+        watcher.onMessage((m) -> delivered.release());
+        watcher.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        watcher.stop();
+        Messages.delete(directory);
+    }
+
+    /**
+     * Messages delivered per second while a batch is in flight at once.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void throughput() throws IOException, InterruptedException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            write();
+        }
+
+        delivered.acquire(BATCH_SIZE);
+    }
+
+    /**
+     * Time from a message appearing in the directory until it is delivered.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() throws IOException, InterruptedException {
+        write();
+        delivered.acquire();
+    }
+
+    private void write() throws IOException {
+        Messages.write(staging, inbox.resolve("message-" + sequence++), message);
+    }
+}
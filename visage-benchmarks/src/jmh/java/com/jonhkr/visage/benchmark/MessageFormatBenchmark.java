@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.BinaryMessageParser;
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.MessageParser;
+import com.jonhkr.visage.writer.BinaryMessageWriter;
+import com.jonhkr.visage.writer.MessageWriter;
+import com.jonhkr.visage.writer.TextMessageWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the same message encoded in the text and in the binary format, both
+ * from bytes as they would be read from a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageFormatBenchmark {
+
+    @Param({"text", "binary"})
+    private String format;
+
+    @Param({"1", "8", "32"})
+    private int headerCount;
+
+    @Param({"128", "4096"})
+    private int payloadSize;
+
+    private MessageParser messageParser;
+    private MessageWriter messageWriter;
+    private Message message;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() {
+        boolean binary = format.equals("binary");
+
+        messageParser = binary ? new BinaryMessageParser() : new ByteBufferMessageParser();
+        messageWriter = binary ? new BinaryMessageWriter() : new TextMessageWriter();
+        message = new ByteBufferMessageParser().parse(Messages.text(headerCount, payloadSize, new Random(42)));
+        encoded = messageWriter.encode(message);
+    }
+
+    @Benchmark
+    public Message parse() {
+        return messageParser.parse(encoded);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return messageWriter.encode(message);
+    }
+}
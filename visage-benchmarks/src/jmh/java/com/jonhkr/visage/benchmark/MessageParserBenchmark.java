@@ -0,0 +1,57 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.MessageParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses an in-memory message with a varying number of headers and payload
+ * sizes. Run with the gc profiler to compare allocation rates per parser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageParserBenchmark {
+
+    @Param({"default", "bytebuffer"})
+    private String parser;
+
+    @Param({"1", "8", "32"})
+    private int headerCount;
+
+    @Param({"128", "4096", "65536"})
+    private int payloadSize;
+
+    private MessageParser messageParser;
+    private String message;
+
+    @Setup
+    public void setup() {
+        messageParser = Messages.parser(parser);
+        message = Messages.text(headerCount, payloadSize, new Random(42));
+    }
+
+    @Benchmark
+    public Message parse() {
+        return messageParser.parse(message);
+    }
+}
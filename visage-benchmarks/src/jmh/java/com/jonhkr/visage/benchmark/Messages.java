@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark;
+
+import com.jonhkr.visage.message.Payload;
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import com.jonhkr.visage.parser.MessageParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Message fixtures shared by the benchmarks.
+ */
+final class Messages {
+
+    private final static String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+    private Messages() {
+    }
+
+    static MessageParser parser(String name) {
+        switch (name) {
+            case "default":
+                return new DefaultMessageParser();
+            case "bytebuffer":
+                return new ByteBufferMessageParser();
+            default:
+                throw new IllegalArgumentException("Unknown parser: " + name);
+        }
+    }
+
+    static String text(int headerCount, int payloadSize, Random random) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < headerCount; i++) {
+            builder.append("Header-").append(i).append(": ").append(random(16, random)).append('\n');
+        }
+
+        builder.append("\n\n");
+        builder.append(random(payloadSize, random));
+
+        return builder.toString();
+    }
+
+    /**
+     * Directory the watcher benchmarks run in, a tmpfs mount by default so
+     * disk latency does not dominate the results.
+     */
+    static Path directory() throws IOException {
+        Path root = Paths.get(System.getProperty("visage.benchmark.dir", "/dev/shm"));
+
+        if (!Files.isDirectory(root)) {
+            root = Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+
+        return Files.createTempDirectory(root, "visage-benchmark");
+    }
+
+    /**
+     * Writes the message to the staging directory and moves it in place, so
+     * the watcher never picks up a partially written file.
+     */
+    static void write(Path staging, Path target, byte[] content) throws IOException {
+        Path temporary = staging.resolve(target.getFileName());
+
+        Files.write(temporary, content);
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static byte[] bytes(String message) {
+        return message.getBytes(Payload.CHARSET);
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+
+        Files.walk(directory)
+                .sorted((a, b) -> b.getNameCount() - a.getNameCount())
+                .forEach((path) -> {
+                    try {
+                        Files.delete(path);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+    }
+
+    private static String random(int length, Random random) {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark.soak;
+
+import com.jonhkr.visage.aws.sqs.local.ReceivedMessage;
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.metrics.StripedHistogram;
+import com.jonhkr.visage.metrics.TimerSnapshot;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Records the create to publish latency of every message the local SQS
+ * server receives, both over the whole run, warmup excluded, and since the
+ * last report.
+ * <p>
+ * Messages are told apart by the sequence number in their
+ * {@code Message-Id}, so a message published twice is counted once as
+ * received and once as duplicated, and cannot make up for a lost one.
+ */
+class LatencyRecorder implements Consumer<ReceivedMessage> {
+
+    /**
+     * Within 1%, like a two significant digit HdrHistogram.
+     */
+    private final static int PRECISION_BITS = 7;
+
+    private final StripedHistogram total = new StripedHistogram(PRECISION_BITS);
+    private final StripedHistogram interval = new StripedHistogram(PRECISION_BITS);
+    private final BitSet seen = new BitSet();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private final long warmupEnd;
+
+    LatencyRecorder(long warmupEnd) {
+        this.warmupEnd = warmupEnd;
+    }
+
+    @Override
+    public void accept(ReceivedMessage message) {
+        long now = System.nanoTime();
+        String created = message.getAttributes().get(LoadGenerator.CREATED_HEADER);
+        int sequence = LoadGenerator.sequenceOf(message.getAttributes().get(HeaderNames.MESSAGE_ID));
+
+        if (created == null || sequence < 0) {
+            unknown.increment();
+            return;
+        }
+
+        synchronized (seen) {
+            if (seen.get(sequence)) {
+                duplicated.increment();
+                return;
+            }
+
+            seen.set(sequence);
+        }
+
+        long due = Long.parseLong(created);
+
+        received.increment();
+        interval.record(now - due);
+
+        if (due >= warmupEnd) {
+            total.record(now - due);
+        }
+    }
+
+    /**
+     * Distinct messages received.
+     */
+    long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * Messages received again after their first copy.
+     */
+    long getDuplicated() {
+        return duplicated.sum();
+    }
+
+    /**
+     * Messages received without a creation time or sequence number, not sent
+     * by the generator.
+     */
+    long getUnknown() {
+        return unknown.sum();
+    }
+
+    TimerSnapshot total() {
+        return total.snapshot();
+    }
+
+    /**
+     * Latencies since the previous call.
+     */
+    TimerSnapshot interval() {
+        TimerSnapshot snapshot = interval.snapshot();
+        interval.reset();
+
+        return snapshot;
+    }
+}
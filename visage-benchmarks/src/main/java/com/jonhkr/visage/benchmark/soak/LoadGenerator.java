@@ -0,0 +1,186 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark.soak;
+
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Payload;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes messages in the {@link com.jonhkr.visage.parser.DefaultMessageParser}
+ * format at a fixed rate, each one to a staging directory first and then
+ * renamed into the watched directory.
+ * <p>
+ * The load is open loop: message {@code n} is due {@code n / rate} seconds
+ * after the start whether or not the previous ones were written in time, and
+ * carries its due time in the {@link #CREATED_HEADER} header. Latencies are
+ * measured from that time, so a generator falling behind shows up in the
+ * results instead of silently lowering the load.
+ */
+class LoadGenerator {
+
+    private final static Logger LOGGER = LogManager.getLogger(LoadGenerator.class);
+
+    /**
+     * {@link System#nanoTime()} the message was due to be created.
+     */
+    final static String CREATED_HEADER = "Soak-Created";
+
+    private final static String NAME_PREFIX = "soak-";
+    private final static String NAME_SUFFIX = ".msg";
+
+    private final static String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+    private final Path staging;
+    private final Path target;
+    private final SizeDistribution sizes;
+    private final int producers;
+    private final long periodNanos;
+    private final byte[] payload;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    private Thread[] threads;
+    private volatile boolean stop = false;
+
+    LoadGenerator(Path staging, Path target, SoakConfig config) {
+        if (config.getRate() < 1) {
+            throw new IllegalArgumentException("rate must be greater than zero");
+        }
+
+        this.staging = staging;
+        this.target = target;
+        this.sizes = new SizeDistribution(config.getSizes());
+        this.producers = config.getProducers();
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+        this.payload = payload(sizes.max(), new Random(42));
+    }
+
+    void start() {
+        long start = System.nanoTime();
+
+        threads = new Thread[producers];
+
+        for (int i = 0; i < producers; i++) {
+            int producer = i;
+
+            threads[i] = new Thread(() -> produce(producer, start), "soak-producer-" + i);
+            threads[i].start();
+        }
+    }
+
+    void stop() throws InterruptedException {
+        stop = true;
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    long getCreated() {
+        return created.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Messages written more than one period after they were due.
+     */
+    long getLate() {
+        return late.sum();
+    }
+
+    private void produce(int producer, long start) {
+        Random random = new Random(producer);
+
+        for (long n = producer; !stop; n += producers) {
+            long due = start + n * periodNanos;
+            long wait = due - System.nanoTime();
+
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (-wait > periodNanos) {
+                late.increment();
+            }
+
+            try {
+                write(due, sizes.sample(random));
+                created.increment();
+            } catch (IOException e) {
+                failed.increment();
+                LOGGER.warn("Failed to write message.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number in a message id written by the generator,
+     * or -1 for any other id.
+     */
+    static int sequenceOf(String messageId) {
+        if (messageId == null || !messageId.startsWith(NAME_PREFIX) || !messageId.endsWith(NAME_SUFFIX)) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(messageId.substring(NAME_PREFIX.length(), messageId.length() - NAME_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void write(long due, int size) throws IOException {
+        String name = NAME_PREFIX + sequence.incrementAndGet() + NAME_SUFFIX;
+        Path temporary = staging.resolve(name);
+        byte[] headers = (HeaderNames.MESSAGE_ID + ": " + name + "\n"
+                + CREATED_HEADER + ": " + due + "\n\n\n").getBytes(Payload.CHARSET);
+
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            out.write(headers);
+            out.write(payload, 0, size);
+        }
+
+        Files.move(temporary, target.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] payload(int size, Random random) {
+        byte[] bytes = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+
+        return bytes;
+    }
+}
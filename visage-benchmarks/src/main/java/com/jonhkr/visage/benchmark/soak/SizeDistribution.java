@@ -0,0 +1,76 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark.soak;
+
+import java.util.Random;
+
+/**
+ * Payload sizes drawn by weight, parsed from {@code size:weight} pairs such
+ * as {@code 1024:90,16384:9,131072:1}.
+ */
+class SizeDistribution {
+
+    private final int[] sizes;
+    private final long[] cumulativeWeights;
+
+    SizeDistribution(String spec) {
+        String[] entries = spec.split(",");
+
+        sizes = new int[entries.length];
+        cumulativeWeights = new long[entries.length];
+
+        long total = 0;
+
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].trim().split(":");
+
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid size distribution entry: \"" + entries[i] + "\"");
+            }
+
+            sizes[i] = Integer.parseInt(parts[0].trim());
+            total += Long.parseLong(parts[1].trim());
+            cumulativeWeights[i] = total;
+
+            if (sizes[i] < 0 || total <= 0) {
+                throw new IllegalArgumentException("Invalid size distribution entry: \"" + entries[i] + "\"");
+            }
+        }
+    }
+
+    int sample(Random random) {
+        long point = (long) (random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1]);
+
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (point < cumulativeWeights[i]) {
+                return sizes[i];
+            }
+        }
+
+        return sizes[sizes.length - 1];
+    }
+
+    int max() {
+        int max = 0;
+
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+
+        return max;
+    }
+}
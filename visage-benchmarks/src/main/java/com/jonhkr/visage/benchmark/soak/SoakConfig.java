@@ -0,0 +1,59 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark.soak;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+@Data
+@Accessors(chain = true)
+public class SoakConfig {
+    private Path directory = Paths.get("/dev/shm");
+    private int rate = 1000;
+    private String sizes = "1024:90,16384:9,131072:1";
+    private int producers = 2;
+    private long durationSeconds = 10 * 60;
+    private long warmupSeconds = 30;
+    private long reportIntervalSeconds = 10;
+    private long drainTimeoutSeconds = 60;
+    private long sqsLatencyMillis = 0;
+
+    /**
+     * Reads the {@code soak.*} system properties, keeping the defaults for
+     * the missing ones.
+     */
+    public static SoakConfig fromSystemProperties() {
+        SoakConfig config = new SoakConfig();
+
+        if (System.getProperty("soak.dir") != null) {
+            config.setDirectory(Paths.get(System.getProperty("soak.dir")));
+        }
+
+        return config
+                .setRate(Integer.getInteger("soak.rate", config.getRate()))
+                .setSizes(System.getProperty("soak.sizes", config.getSizes()))
+                .setProducers(Integer.getInteger("soak.producers", config.getProducers()))
+                .setDurationSeconds(Long.getLong("soak.durationSeconds", config.getDurationSeconds()))
+                .setWarmupSeconds(Long.getLong("soak.warmupSeconds", config.getWarmupSeconds()))
+                .setReportIntervalSeconds(Long.getLong("soak.reportIntervalSeconds", config.getReportIntervalSeconds()))
+                .setDrainTimeoutSeconds(Long.getLong("soak.drainTimeoutSeconds", config.getDrainTimeoutSeconds()))
+                .setSqsLatencyMillis(Long.getLong("soak.sqsLatencyMillis", config.getSqsLatencyMillis()));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.benchmark.soak;
+
+import com.jonhkr.visage.Server;
+import com.jonhkr.visage.aws.sqs.local.LocalSqsServer;
+import com.jonhkr.visage.metrics.TimerSnapshot;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the {@link Server} wiring against a {@link LocalSqsServer} under a
+ * steady generated load and reports throughput, create to publish latency
+ * percentiles, dropped and duplicated messages and GC activity, every
+ * {@code soak.reportIntervalSeconds} and for the whole run.
+ * <p>
+ * Configured through {@code soak.*} system properties, see
+ * {@link SoakConfig}; {@code visage.*} properties are handed to the server
+ * as they are. Exits with status 1 when messages were dropped.
+ */
+public class SoakTest {
+
+    private final static String HEADER = String.format("%8s %9s %9s %9s %9s %9s %9s %6s %8s %8s",
+            "time(s)", "sent/s", "recv/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "gc", "gc(ms)", "heap(MB)");
+
+    public static void main(String[] args) throws Exception {
+        SoakConfig config = SoakConfig.fromSystemProperties();
+        Path root = Files.createTempDirectory(
+                Files.isDirectory(config.getDirectory()) ? config.getDirectory() : Paths.get(System.getProperty("java.io.tmpdir")),
+                "visage-soak");
+        Path inbox = Files.createDirectory(root.resolve("inbox"));
+        Path staging = Files.createDirectory(root.resolve("staging"));
+        long dropped;
+
+        try (LocalSqsServer sqs = new LocalSqsServer()) {
+            sqs.setRetainMessages(false);
+            sqs.setLatencyMillis(config.getSqsLatencyMillis());
+
+            long start = System.nanoTime();
+            LatencyRecorder recorder = new LatencyRecorder(start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds()));
+            sqs.onMessage(recorder);
+
+            Server server = new Server(serverProperties(sqs, inbox));
+            server.start();
+
+            LoadGenerator generator = new LoadGenerator(staging, inbox, config);
+            generator.start();
+
+            System.out.printf("Soak test of %d messages/s (%s) for %d s in %s%n",
+                    config.getRate(), config.getSizes(), config.getDurationSeconds(), inbox);
+            System.out.println(HEADER);
+
+            long deadline = start + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+            long interval = TimeUnit.SECONDS.toNanos(config.getReportIntervalSeconds());
+            long[] gc = gc();
+            long created = 0;
+            long received = 0;
+
+            for (long next = start + interval; next <= deadline; next += interval) {
+                TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+
+                long[] currentGc = gc();
+                long currentCreated = generator.getCreated();
+                long currentReceived = recorder.getReceived();
+                TimerSnapshot latency = recorder.interval();
+                double seconds = (double) interval / TimeUnit.SECONDS.toNanos(1);
+
+                System.out.printf("%8d %9.0f %9.0f %9.2f %9.2f %9.2f %9.2f %6d %8d %8d%n",
+                        TimeUnit.NANOSECONDS.toSeconds(next - start),
+                        (currentCreated - created) / seconds,
+                        (currentReceived - received) / seconds,
+                        millis(latency.getP50()),
+                        millis(latency.getP99()),
+                        millis(latency.getP999()),
+                        millis(latency.getMax()),
+                        currentGc[0] - gc[0],
+                        currentGc[1] - gc[1],
+                        heapMegabytes());
+
+                gc = currentGc;
+                created = currentCreated;
+                received = currentReceived;
+            }
+
+            generator.stop();
+            long stopped = System.nanoTime();
+            long drainDeadline = stopped + TimeUnit.SECONDS.toNanos(config.getDrainTimeoutSeconds());
+
+            while (recorder.getReceived() < generator.getCreated() && System.nanoTime() < drainDeadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+
+            server.stop();
+
+            dropped = generator.getCreated() - recorder.getReceived();
+            summary(config, generator, recorder, dropped, stopped - start, gc());
+        } finally {
+            delete(root);
+        }
+
+        if (dropped > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static Properties serverProperties(LocalSqsServer sqs, Path inbox) {
+        Properties properties = new Properties();
+
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("visage.")) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+
+        properties.putIfAbsent("visage.claimFiles", "true");
+        properties.setProperty("visage.path", inbox.toString());
+        properties.setProperty("visage.sqs.endpoint", sqs.getEndpoint().toString());
+        properties.setProperty("visage.sqs.queueUrl", sqs.queueUrl("visage-soak"));
+        properties.setProperty("visage.sqs.accessKeyId", "local");
+        properties.setProperty("visage.sqs.secretAccessKey", "local");
+
+        return properties;
+    }
+
+    private static void summary(SoakConfig config, LoadGenerator generator, LatencyRecorder recorder,
+                                long dropped, long elapsedNanos, long[] gc) {
+        TimerSnapshot latency = recorder.total();
+        double seconds = (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+
+        System.out.println();
+        System.out.printf("Messages  created %d, received %d, dropped %d, duplicated %d, write failures %d, "
+                        + "written late %d%n",
+                generator.getCreated(), recorder.getReceived(), dropped, recorder.getDuplicated(),
+                generator.getFailed(), generator.getLate());
+        System.out.printf("Rate      target %d/s, created %.0f/s, received %.0f/s%n",
+                config.getRate(), generator.getCreated() / seconds, recorder.getReceived() / seconds);
+        System.out.printf("Latency   after %d s warmup, %d samples: mean %.2f ms, p50 %.2f ms, p90 %.2f ms, "
+                        + "p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                config.getWarmupSeconds(), latency.getCount(), millis(latency.getMean()), millis(latency.getP50()),
+                millis(latency.getP90()), millis(latency.getP99()), millis(latency.getP999()),
+                millis(latency.getMax()));
+        System.out.printf("GC        %d collections, %d ms, %.2f%% of the run%n",
+                gc[0], gc[1], 100.0 * gc[1] / TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+
+        if (recorder.getUnknown() > 0) {
+            System.out.printf("Unknown   %d messages without a creation time%n", recorder.getUnknown());
+        }
+    }
+
+    /**
+     * Collections and milliseconds spent collecting since the JVM started.
+     */
+    private static long[] gc() {
+        long count = 0;
+        long time = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(collector.getCollectionCount(), 0);
+            time += Math.max(collector.getCollectionTime(), 0);
+        }
+
+        return new long[]{count, time};
+    }
+
+    private static long heapMegabytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach((path) -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+    }
+}
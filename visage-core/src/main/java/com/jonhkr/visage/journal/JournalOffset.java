@@ -0,0 +1,34 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.journal;
+
+import lombok.Data;
+
+@Data
+public class JournalOffset implements Comparable<JournalOffset> {
+
+    public final static JournalOffset START = new JournalOffset(0, 0);
+
+    private final long segment;
+    private final int position;
+
+    @Override
+    public int compareTo(JournalOffset o) {
+        int result = Long.compare(segment, o.segment);
+        return result != 0 ? result : Integer.compare(position, o.position);
+    }
+}
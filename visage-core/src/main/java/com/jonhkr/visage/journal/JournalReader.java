@@ -0,0 +1,264 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.journal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Tails a segmented journal written by {@link JournalWriter}.
+ * <p>
+ * Records are handed out in order by {@link #poll()} and may be committed in
+ * any order. The persisted consumer offset only moves past a record once it
+ * and every record before it have been committed, so a restart redelivers
+ * whatever was still in flight. Segments that are fully consumed by every
+ * consumer with an offset in the journal directory are deleted once they are
+ * older than the configured retention; a consumer that never committed an
+ * offset does not hold segments back.
+ */
+public class JournalReader implements AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(JournalReader.class);
+
+    private final static String OFFSET_SUFFIX = ".offset";
+
+    private final Path directory;
+    private final Path offsetFile;
+    private final long retentionMillis;
+    private final Deque<JournalRecord> uncommitted = new ArrayDeque<>();
+
+    private long segment;
+    private MappedByteBuffer buffer;
+    private volatile JournalOffset committed;
+    private JournalOffset persisted;
+
+    public JournalReader(Path directory, JournalConfig config) throws IOException {
+        this.directory = directory;
+        this.offsetFile = directory.resolve(config.getConsumerName() + OFFSET_SUFFIX);
+        this.retentionMillis = config.getRetentionMillis();
+
+        Files.createDirectories(directory);
+
+        committed = readOffset();
+        persisted = committed;
+        segment = committed.getSegment();
+    }
+
+    /**
+     * Returns the next record, or {@code null} if the writer has not appended
+     * anything past the current position yet.
+     */
+    public JournalRecord poll() throws IOException {
+        for (;;) {
+            if (buffer == null && !open()) {
+                return null;
+            }
+
+            int position = buffer.position();
+
+            if (position + Segments.LENGTH_SIZE > buffer.limit()) {
+                next();
+                continue;
+            }
+
+            int length = Segments.getLength(buffer, position);
+
+            if (length == 0) {
+                return null;
+            }
+
+            if (length == Segments.END_OF_SEGMENT) {
+                next();
+                continue;
+            }
+
+            int start = position + Segments.LENGTH_SIZE;
+            ByteBuffer data = buffer.duplicate();
+            data.position(start).limit(start + length);
+
+            buffer.position(start + length);
+
+            JournalRecord record = new JournalRecord(new JournalOffset(segment, position),
+                    new JournalOffset(segment, start + length), data.slice().asReadOnlyBuffer());
+
+            synchronized (uncommitted) {
+                uncommitted.addLast(record);
+            }
+
+            return record;
+        }
+    }
+
+    public void commit(JournalRecord record) {
+        synchronized (uncommitted) {
+            record.committed = true;
+
+            JournalOffset offset = null;
+
+            while (!uncommitted.isEmpty() && uncommitted.peekFirst().committed) {
+                offset = uncommitted.removeFirst().next;
+            }
+
+            if (offset != null) {
+                committed = offset;
+            }
+        }
+    }
+
+    public JournalOffset getCommittedOffset() {
+        return committed;
+    }
+
+    /**
+     * Persists the committed offset and applies the retention policy.
+     */
+    public void flush() throws IOException {
+        JournalOffset offset = committed;
+
+        if (offset.equals(persisted)) {
+            return;
+        }
+
+        writeOffset(offset);
+        persisted = offset;
+
+        deleteConsumedSegments(slowestSegment(offset));
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private boolean open() throws IOException {
+        try {
+            buffer = Segments.map(directory, segment, FileChannel.MapMode.READ_ONLY);
+        } catch (NoSuchFileException e) {
+            List<Long> segments = Segments.list(directory);
+
+            if (segments.isEmpty() || segments.get(segments.size() - 1) < segment) {
+                return false;
+            }
+
+            long first = segments.get(0);
+
+            if (first > segment) {
+                LOGGER.warn("Segment {} no longer exists, skipping to segment {}.", segment, first);
+                segment = first;
+                return open();
+            }
+
+            return false;
+        }
+
+        if (committed.getSegment() == segment) {
+            buffer.position(committed.getPosition());
+        }
+
+        return true;
+    }
+
+    private void next() {
+        segment++;
+        buffer = null;
+    }
+
+    private void deleteConsumedSegments(long current) throws IOException {
+        long deadline = System.currentTimeMillis() - retentionMillis;
+
+        for (Long candidate : Segments.list(directory)) {
+            if (candidate >= current) {
+                break;
+            }
+
+            Path path = Segments.path(directory, candidate);
+
+            try {
+                if (Files.getLastModifiedTime(path).toMillis() <= deadline) {
+                    Files.delete(path);
+                    LOGGER.debug("Deleted consumed segment {}.", path.getFileName());
+                }
+            } catch (NoSuchFileException e) {
+                LOGGER.debug("Segment {} already deleted.", path.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Segment of the slowest consumer, segments before it are consumed by
+     * everyone.
+     */
+    private long slowestSegment(JournalOffset own) throws IOException {
+        long slowest = own.getSegment();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + OFFSET_SUFFIX)) {
+            for (Path other : stream) {
+                if (other.equals(offsetFile)) {
+                    continue;
+                }
+
+                try {
+                    slowest = Math.min(slowest, readOffset(other).getSegment());
+                } catch (NoSuchFileException e) {
+                    LOGGER.debug("Consumer offset {} was removed.", other.getFileName());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Invalid consumer offset {}, keeping every segment.", other.getFileName(), e);
+                    return -1;
+                }
+            }
+        }
+
+        return slowest;
+    }
+
+    private JournalOffset readOffset() throws IOException {
+        if (!Files.exists(offsetFile)) {
+            List<Long> segments = Segments.list(directory);
+            return segments.isEmpty() ? JournalOffset.START : new JournalOffset(segments.get(0), 0);
+        }
+
+        return readOffset(offsetFile);
+    }
+
+    private static JournalOffset readOffset(Path file) throws IOException {
+        String[] parts = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split(" ");
+
+        return new JournalOffset(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    private void writeOffset(JournalOffset offset) throws IOException {
+        Path temporary = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+        String content = offset.getSegment() + " " + offset.getPosition() + "\n";
+
+        Files.write(temporary, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, offsetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
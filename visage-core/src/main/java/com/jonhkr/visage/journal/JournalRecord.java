@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.journal;
+
+import java.nio.ByteBuffer;
+
+public class JournalRecord {
+
+    private final JournalOffset offset;
+    private final ByteBuffer data;
+
+    volatile boolean committed;
+    final JournalOffset next;
+
+    JournalRecord(JournalOffset offset, JournalOffset next, ByteBuffer data) {
+        this.offset = offset;
+        this.next = next;
+        this.data = data;
+    }
+
+    public JournalOffset getOffset() {
+        return offset;
+    }
+
+    /**
+     * Read only view of the record bytes inside the mapped segment.
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+}
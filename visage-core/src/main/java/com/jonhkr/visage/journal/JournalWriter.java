@@ -0,0 +1,143 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.journal;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.writer.MessageWriter;
+import com.jonhkr.visage.writer.TextMessageWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Appends messages to a segmented journal. Each message is written in the
+ * text format understood by {@link com.jonhkr.visage.parser.DefaultMessageParser}
+ * as one length prefixed record. The record body is written before its length,
+ * which is published with an ordered store, so readers tailing the segment
+ * never see a partially written record, see {@link Segments}.
+ * <p>
+ * A journal must have a single writer.
+ */
+public class JournalWriter implements AutoCloseable {
+
+    private final Path directory;
+    private final int segmentSize;
+    private final MessageWriter messageWriter;
+
+    private long segment;
+    private MappedByteBuffer buffer;
+
+    public JournalWriter(Path directory, JournalConfig config) throws IOException {
+        this(directory, config, new TextMessageWriter());
+    }
+
+    public JournalWriter(Path directory, JournalConfig config, MessageWriter messageWriter) throws IOException {
+        this.directory = directory;
+        this.segmentSize = config.getSegmentSize();
+        this.messageWriter = messageWriter;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    public JournalOffset append(Message message) throws IOException {
+        return append(messageWriter.encode(message));
+    }
+
+    public synchronized JournalOffset append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+
+        if (length == 0) {
+            throw new IllegalArgumentException("Cannot append an empty record");
+        }
+
+        if (Segments.LENGTH_SIZE * 2 + length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment of "
+                    + segmentSize + " bytes");
+        }
+
+        if (buffer.position() + Segments.LENGTH_SIZE * 2 + length > segmentSize) {
+            roll();
+        }
+
+        int position = buffer.position();
+
+        buffer.position(position + Segments.LENGTH_SIZE);
+        buffer.put(record.duplicate());
+        Segments.putLength(buffer, position, length);
+
+        return new JournalOffset(segment, position);
+    }
+
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+    }
+
+    private void roll() throws IOException {
+        Segments.putLength(buffer, buffer.position(), Segments.END_OF_SEGMENT);
+        buffer.force();
+
+        segment++;
+        Segments.create(directory, segment, segmentSize);
+        buffer = Segments.map(directory, segment, FileChannel.MapMode.READ_WRITE);
+    }
+
+    private void recover() throws IOException {
+        List<Long> segments = Segments.list(directory);
+
+        if (segments.isEmpty()) {
+            segment = 0;
+            Segments.create(directory, segment, segmentSize);
+            buffer = Segments.map(directory, segment, FileChannel.MapMode.READ_WRITE);
+            return;
+        }
+
+        segment = segments.get(segments.size() - 1);
+        buffer = Segments.map(directory, segment, FileChannel.MapMode.READ_WRITE);
+
+        int position = 0;
+
+        while (position + Segments.LENGTH_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+
+            if (length == 0) {
+                break;
+            }
+
+            if (length == Segments.END_OF_SEGMENT) {
+                segment++;
+                Segments.create(directory, segment, segmentSize);
+                buffer = Segments.map(directory, segment, FileChannel.MapMode.READ_WRITE);
+                return;
+            }
+
+            position += Segments.LENGTH_SIZE + length;
+        }
+
+        buffer.position(position);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.journal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Segment file layout shared by {@link JournalWriter} and {@link JournalReader}.
+ * <p>
+ * A segment is a preallocated file named after its sequence number holding
+ * records of a 4 byte big endian length followed by that many bytes. A zero
+ * length marks the end of the written data and {@link #END_OF_SEGMENT} marks
+ * a segment that has been rolled over.
+ * <p>
+ * Lengths are published with {@link #putLength(ByteBuffer, int, int)}, an
+ * ordered store, after the record body, and read with
+ * {@link #getLength(ByteBuffer, int)}, a volatile load, so a reader that sees
+ * a length also sees the body before it. Both go through
+ * {@code sun.misc.Unsafe}, looked up reflectively; without it lengths are
+ * plain buffer accesses.
+ */
+final class Segments {
+
+    final static int LENGTH_SIZE = 4;
+    final static int END_OF_SEGMENT = -1;
+
+    private final static String SUFFIX = ".segment";
+
+    private final static boolean SWAP = ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+
+    private final static MethodHandle PUT_ORDERED_INT;
+    private final static MethodHandle GET_INT_VOLATILE;
+    private final static MethodHandle GET_LONG;
+    private final static long ADDRESS_OFFSET;
+
+    static {
+        MethodHandle putOrderedInt = null;
+        MethodHandle getIntVolatile = null;
+        MethodHandle getLong = null;
+        long addressOffset = -1;
+
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            addressOffset = (long) type.getMethod("objectFieldOffset", Field.class)
+                    .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+            putOrderedInt = lookup.unreflect(type.getMethod("putOrderedInt", Object.class, long.class, int.class))
+                    .bindTo(unsafe);
+            getIntVolatile = lookup.unreflect(type.getMethod("getIntVolatile", Object.class, long.class))
+                    .bindTo(unsafe);
+            getLong = lookup.unreflect(type.getMethod("getLong", Object.class, long.class))
+                    .bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            putOrderedInt = null;
+        }
+
+        PUT_ORDERED_INT = putOrderedInt;
+        GET_INT_VOLATILE = getIntVolatile;
+        GET_LONG = getLong;
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    private Segments() {
+    }
+
+    /**
+     * Stores a record length at {@code index} of a mapped segment, after
+     * every store made before it.
+     */
+    static void putLength(ByteBuffer buffer, int index, int length) {
+        if (PUT_ORDERED_INT == null || !buffer.isDirect()) {
+            buffer.putInt(index, length);
+            return;
+        }
+
+        checkIndex(buffer, index);
+
+        try {
+            PUT_ORDERED_INT.invokeExact((Object) null, address(buffer) + index, SWAP ? Integer.reverseBytes(length) : length);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the record length at {@code index} of a mapped segment, before
+     * any load made after it.
+     */
+    static int getLength(ByteBuffer buffer, int index) {
+        if (PUT_ORDERED_INT == null || !buffer.isDirect()) {
+            return buffer.getInt(index);
+        }
+
+        checkIndex(buffer, index);
+
+        try {
+            int length = (int) GET_INT_VOLATILE.invokeExact((Object) null, address(buffer) + index);
+            return SWAP ? Integer.reverseBytes(length) : length;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long address(ByteBuffer buffer) throws Throwable {
+        return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+    }
+
+    private static void checkIndex(ByteBuffer buffer, int index) {
+        if (index < 0 || index + LENGTH_SIZE > buffer.limit()) {
+            throw new IndexOutOfBoundsException("Length at " + index + " is out of the segment");
+        }
+    }
+
+    static Path path(Path directory, long segment) {
+        return directory.resolve(String.format("%020d%s", segment, SUFFIX));
+    }
+
+    static List<Long> list(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+
+        Collections.sort(segments);
+
+        return segments;
+    }
+
+    /**
+     * Creates a zero filled segment under a temporary name and renames it, so
+     * readers never see a segment that is not fully allocated.
+     */
+    static void create(Path directory, long segment, int size) throws IOException {
+        Path target = path(directory, segment);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+
+        try (RandomAccessFile file = new RandomAccessFile(temporary.toFile(), "rw")) {
+            file.setLength(size);
+        }
+
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static MappedByteBuffer map(Path directory, long segment, FileChannel.MapMode mode) throws IOException {
+        String access = mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw";
+
+        try (RandomAccessFile file = new RandomAccessFile(path(directory, segment).toFile(), access);
+             FileChannel channel = file.getChannel()) {
+            return channel.map(mode, 0, channel.size());
+        }
+    }
+}
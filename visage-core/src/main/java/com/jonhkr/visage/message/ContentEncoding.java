@@ -0,0 +1,106 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.message;
+
+import java.util.Locale;
+
+/**
+ * Compression schemes a message file or payload may be encoded with, named
+ * after their HTTP content-coding tokens.
+ */
+public enum ContentEncoding {
+    /**
+     * gzip (RFC 1952), detected by the {@code .gz} extension or the
+     * {@code 1f 8b} magic bytes.
+     */
+    GZIP("gzip", ".gz"),
+
+    /**
+     * zlib wrapped deflate (RFC 1950), detected by the {@code .zz} extension
+     * or a zlib header with a non printable second byte.
+     */
+    DEFLATE("deflate", ".zz");
+
+    private final String token;
+    private final String extension;
+
+    ContentEncoding(String token, String extension) {
+        this.token = token;
+        this.extension = extension;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Returns the encoding named by the {@code Content-Encoding} header, or
+     * {@code null} when the header is absent or names no known encoding.
+     */
+    public static ContentEncoding of(Headers headers) {
+        String value = headers.getValue(HeaderNames.CONTENT_ENCODING);
+
+        return value == null ? null : forToken(value);
+    }
+
+    public static ContentEncoding forToken(String token) {
+        String normalized = token.trim().toLowerCase(Locale.ROOT);
+
+        if (normalized.equals("gzip") || normalized.equals("x-gzip")) {
+            return GZIP;
+        }
+
+        if (normalized.equals("deflate")) {
+            return DEFLATE;
+        }
+
+        return null;
+    }
+
+    public static ContentEncoding forFileName(String fileName) {
+        for (ContentEncoding encoding : values()) {
+            if (fileName.endsWith(encoding.extension)) {
+                return encoding;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Recognizes an encoding from the first two bytes of its data. zlib
+     * headers starting with a printable character are not recognized, so
+     * plain text is never mistaken for compressed data.
+     */
+    public static ContentEncoding sniff(int first, int second) {
+        if (first == 0x1f && second == 0x8b) {
+            return GZIP;
+        }
+
+        boolean printable = second >= 0x20 && second < 0x7f;
+
+        if (first == 0x78 && !printable && ((first << 8) | second) % 31 == 0) {
+            return DEFLATE;
+        }
+
+        return null;
+    }
+}
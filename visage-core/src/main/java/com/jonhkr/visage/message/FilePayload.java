@@ -0,0 +1,137 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Payload that stays in the message file. Nothing is read until the payload
+ * is accessed: {@link #openStream()} reads the region straight from the file
+ * and {@link #asByteBuffer()} maps it, only {@link #getData()} brings the
+ * whole payload into the heap.
+ */
+public class FilePayload extends Payload {
+
+    private final Path path;
+    private final long offset;
+    private final long length;
+
+    public FilePayload(Path path, long offset, long length) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public CharSequence getData() {
+        return CHARSET.decode(asByteBuffer());
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return length;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new RegionInputStream(FileChannel.open(path, StandardOpenOption.READ), offset, length);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    private static class RegionInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RegionInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (position >= end) {
+                return -1;
+            }
+
+            int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+
+            if (count > 0) {
+                position += count;
+            }
+
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long count = Math.max(0, Math.min(n, end - position));
+            position += count;
+
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
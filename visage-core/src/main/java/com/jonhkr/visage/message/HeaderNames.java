@@ -0,0 +1,116 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.message;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canonical instances of common header names. Parsers resolve names through
+ * here so messages share one {@link String} per well known name, and
+ * {@link #lookup(ByteBuffer, int, int)} lets byte oriented parsers skip
+ * decoding those names altogether.
+ */
+public final class HeaderNames {
+
+    public final static String MESSAGE_ID = "Message-Id";
+    public final static String CONTENT_TYPE = "Content-Type";
+    public final static String CONTENT_ENCODING = "Content-Encoding";
+    public final static String CONTENT_LENGTH = "Content-Length";
+    public final static String TIMESTAMP = "Timestamp";
+    public final static String TYPE = "Type";
+    public final static String PRIORITY = "Priority";
+    public final static String KEY = "Key";
+
+    private final static String[] COMMON = {
+            MESSAGE_ID, CONTENT_TYPE, CONTENT_ENCODING, CONTENT_LENGTH, TIMESTAMP, TYPE, PRIORITY, KEY
+    };
+
+    private final static Map<String, String> BY_NAME = new HashMap<>();
+    private final static byte[][] BYTES = new byte[COMMON.length][];
+
+    static {
+        for (int i = 0; i < COMMON.length; i++) {
+            BY_NAME.put(COMMON[i], COMMON[i]);
+            BYTES[i] = COMMON[i].getBytes(Payload.CHARSET);
+        }
+    }
+
+    private HeaderNames() {
+    }
+
+    /**
+     * Position of a common name in the list of common names, or -1. The
+     * binary message format stores common names by position, so new names
+     * may only ever be appended to that list.
+     */
+    public static int indexOf(String name) {
+        for (int i = 0; i < COMMON.length; i++) {
+            if (COMMON[i].equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Common name at the given position, see {@link #indexOf(String)}.
+     */
+    public static String get(int index) {
+        if (index < 0 || index >= COMMON.length) {
+            throw new IllegalArgumentException("Unknown common header name index: " + index);
+        }
+
+        return COMMON[index];
+    }
+
+    public static String intern(String name) {
+        String common = BY_NAME.get(name);
+
+        return common == null ? name : common;
+    }
+
+    /**
+     * Returns the common name spelled exactly like the bytes between
+     * {@code start} and {@code end}, or {@code null} if there is none.
+     */
+    public static String lookup(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+
+        for (int i = 0; i < BYTES.length; i++) {
+            byte[] bytes = BYTES[i];
+
+            if (bytes.length == length && matches(buffer, start, bytes)) {
+                return COMMON[i];
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.message;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of message headers with constant time, case-insensitive
+ * lookup by name. Headers keep their original order and names may repeat;
+ * {@link #getValues(String)} returns every value of a name in that order.
+ * <p>
+ * The index is an open addressing table built once when the headers are
+ * created, so lookups neither allocate nor lower case the name.
+ */
+public final class Headers extends AbstractList<Header> implements RandomAccess {
+
+    public final static Headers EMPTY = new Headers(new Header[0]);
+
+    private final Header[] headers;
+    private final int[] slots;
+    private final int[] next;
+    private final int mask;
+
+    private Headers(Header[] headers) {
+        this.headers = headers;
+        this.next = new int[headers.length];
+
+        int capacity = Integer.highestOneBit(Math.max(headers.length, 1) * 2 - 1) << 1;
+        int[] tails = new int[capacity];
+
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < headers.length; i++) {
+            String name = headers[i].getName();
+            int slot = slot(name);
+
+            next[i] = -1;
+
+            if (slots[slot] == 0) {
+                slots[slot] = i + 1;
+            } else {
+                next[tails[slot]] = i;
+            }
+
+            tails[slot] = i;
+        }
+    }
+
+    public static Headers of(List<Header> headers) {
+        if (headers instanceof Headers) {
+            return (Headers) headers;
+        }
+
+        if (headers.isEmpty()) {
+            return EMPTY;
+        }
+
+        return new Headers(headers.toArray(new Header[headers.size()]));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public Header get(int index) {
+        return headers[index];
+    }
+
+    @Override
+    public int size() {
+        return headers.length;
+    }
+
+    /**
+     * Returns the first value of the named header, or {@code null} if the
+     * message has no such header.
+     */
+    public String getValue(String name) {
+        int index = first(name);
+
+        return index == -1 ? null : headers[index].getValue();
+    }
+
+    public List<String> getValues(String name) {
+        int index = first(name);
+
+        if (index == -1) {
+            return Collections.emptyList();
+        }
+
+        if (next[index] == -1) {
+            return Collections.singletonList(headers[index].getValue());
+        }
+
+        List<String> values = new ArrayList<>();
+
+        for (; index != -1; index = next[index]) {
+            values.add(headers[index].getValue());
+        }
+
+        return Collections.unmodifiableList(values);
+    }
+
+    public boolean has(String name) {
+        return first(name) != -1;
+    }
+
+    private int first(String name) {
+        int slot = hash(name) & mask;
+
+        for (;;) {
+            int index = slots[slot] - 1;
+
+            if (index == -1) {
+                return -1;
+            }
+
+            if (headers[index].getName().equalsIgnoreCase(name)) {
+                return index;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Slot holding the chain of headers named {@code name}, or the empty
+     * slot it should go into.
+     */
+    private int slot(String name) {
+        int slot = hash(name) & mask;
+
+        while (slots[slot] != 0 && !headers[slots[slot] - 1].getName().equalsIgnoreCase(name)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Hash consistent with {@link String#equalsIgnoreCase(String)}.
+     */
+    private static int hash(String name) {
+        int h = 0;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+
+            if (c < 128) {
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+            } else {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+
+            h = 31 * h + c;
+        }
+
+        return h ^ (h >>> 16);
+    }
+
+    public static final class Builder {
+
+        private final List<Header> headers = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder add(String name, String value) {
+            return add(new Header(HeaderNames.intern(name), value));
+        }
+
+        public Builder add(Header header) {
+            headers.add(header);
+            return this;
+        }
+
+        public Headers build() {
+            return of(headers);
+        }
+    }
+}
@@ -22,6 +22,11 @@ import java.util.List;
 
 @Data
 public class Message {
-    private final List<Header> headers;
+    private final Headers headers;
     private final Payload payload;
+
+    public Message(List<Header> headers, Payload payload) {
+        this.headers = Headers.of(headers);
+        this.payload = payload;
+    }
 }
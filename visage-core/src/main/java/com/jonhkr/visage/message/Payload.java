@@ -16,9 +16,149 @@
 
 package com.jonhkr.visage.message;
 
-import lombok.Data;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
-@Data
+/**
+ * Message body. A payload is backed either by characters or by a read only
+ * {@link ByteBuffer} holding UTF-8 encoded bytes; both views are always
+ * available and are converted lazily. Subclasses such as {@link FilePayload}
+ * may keep the bytes outside of the heap and only read them on demand.
+ */
 public class Payload {
-    private final CharSequence data;
+
+    public final static Charset CHARSET = StandardCharsets.UTF_8;
+
+    private final ByteBuffer bytes;
+    private volatile CharSequence data;
+    private volatile long size = -1;
+
+    public Payload(CharSequence data) {
+        this.data = data;
+        this.bytes = null;
+    }
+
+    public Payload(ByteBuffer bytes) {
+        this.data = null;
+        this.bytes = bytes.slice().asReadOnlyBuffer();
+    }
+
+    protected Payload() {
+        this.data = null;
+        this.bytes = null;
+    }
+
+    public CharSequence getData() {
+        CharSequence result = data;
+
+        if (result == null) {
+            result = CHARSET.decode(bytes.duplicate());
+            data = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a read only view of the payload bytes. Payloads created from a
+     * buffer return a view of that buffer without copying it.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (bytes != null) {
+            return bytes.duplicate();
+        }
+
+        return CHARSET.encode(CharBuffer.wrap(data)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the number of UTF-8 bytes of the payload. Character backed
+     * payloads count them once, without encoding, and keep the result.
+     */
+    public long getSize() {
+        if (bytes != null) {
+            return bytes.remaining();
+        }
+
+        long result = size;
+
+        if (result < 0) {
+            result = encodedLength(data);
+            size = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Opens a stream over the payload bytes. Streaming payloads read straight
+     * from their source, so callers should prefer this over {@link #getData()}
+     * when they do not need the whole payload in memory.
+     */
+    public InputStream openStream() throws IOException {
+        return new ByteBufferInputStream(asByteBuffer());
+    }
+
+    /**
+     * Whether the payload bytes are read from their source on demand instead
+     * of being held in memory.
+     */
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Length of the characters encoded by {@link #CHARSET}, which replaces a
+     * lone surrogate with a single byte.
+     */
+    static long encodedLength(CharSequence chars) {
+        long length = 0;
+
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Payload)) {
+            return false;
+        }
+
+        return asByteBuffer().equals(((Payload) o).asByteBuffer());
+    }
+
+    @Override
+    public int hashCode() {
+        return asByteBuffer().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(size=" + getSize() + ")";
+    }
 }
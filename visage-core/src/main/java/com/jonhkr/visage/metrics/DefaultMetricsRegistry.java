@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory registry built on {@link StripedCounter} and
+ * {@link StripedHistogram}, cheap enough to stay enabled under full load.
+ * Values are only aggregated when read, either directly or through JMX
+ * once {@link #registerMBean(ObjectName)} has been called.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry, MetricsMXBean {
+
+    private final static Logger LOGGER = LogManager.getLogger(DefaultMetricsRegistry.class);
+
+    private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StripedHistogram> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, (n) -> new StripedCounter());
+    }
+
+    @Override
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, (n) -> new StripedHistogram());
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.getCount()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, TimerSnapshot> getTimers() {
+        Map<String, TimerSnapshot> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.snapshot()));
+        return values;
+    }
+
+    /**
+     * Registers the registry with the platform MBean server. Returns whether
+     * it was registered; failures are logged rather than thrown so a name
+     * clash never keeps a watcher from starting.
+     */
+    public boolean registerMBean(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            server.registerMBean(this, name);
+            return true;
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register metrics MBean \"{}\".", name, e);
+            return false;
+        }
+    }
+
+    public void unregisterMBean(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to unregister metrics MBean \"{}\".", name, e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Source of the instruments the watchers record into. Implementations may
+ * bridge to an external metrics library; {@link DefaultMetricsRegistry} keeps
+ * everything in memory and can be exposed through JMX.
+ * <p>
+ * Instruments are looked up once and kept by the caller, so only recording
+ * needs to be cheap.
+ */
+public interface MetricsRegistry {
+
+    Counter counter(String name);
+
+    Timer timer(String name);
+
+    void gauge(String name, LongSupplier value);
+}
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter backed by a {@link LongAdder}, so concurrent updates land on
+ * separate cells instead of contending on a single value.
+ */
+public class StripedCounter implements Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    @Override
+    public void add(long delta) {
+        count.add(delta);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.parser;
+
+import com.jonhkr.visage.message.FilePayload;
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parses the length-prefixed binary message format written by
+ * {@link com.jonhkr.visage.writer.BinaryMessageWriter}:
+ * <pre>
+ * magic     4 bytes   0x89 'V' 'S' 'M'
+ * version   1 byte    1
+ * count     varint    number of headers, each made of
+ *   name    varint    length in bytes followed by the UTF-8 name, or 0
+ *                     followed by one byte, the index of a common name in
+ *                     {@link HeaderNames}
+ *   value   varint    length in bytes followed by the UTF-8 value
+ * payload   varint    length in bytes followed by the payload
+ * </pre>
+ * Varints are unsigned LEB128. No line scanning or trimming is needed and
+ * the payload is a slice of the source buffer. Like
+ * {@link ByteBufferMessageParser}, files at least {@code mapThreshold} bytes
+ * long are memory-mapped and files at least {@code streamingThreshold} bytes
+ * long only have their headers read.
+ * <p>
+ * Binary messages cannot be represented as text, {@link ParserRegistry}
+ * never hands them over as a {@link String} or a reader.
+ */
+public class BinaryMessageParser implements MessageParser {
+
+    public final static byte[] MAGIC = {(byte) 0x89, 'V', 'S', 'M'};
+    public final static byte VERSION = 1;
+
+    private final static long DEFAULT_MAP_THRESHOLD = 64 * 1024;
+    private final static long DEFAULT_STREAMING_THRESHOLD = 16 * 1024 * 1024;
+    private final static int HEADER_READ_SIZE = 8 * 1024;
+    private final static int MAX_HEADER_BLOCK_SIZE = 1024 * 1024;
+
+    private final static ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final long mapThreshold;
+    private final long streamingThreshold;
+
+    public BinaryMessageParser() {
+        this(DEFAULT_MAP_THRESHOLD, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    public BinaryMessageParser(long mapThreshold, long streamingThreshold) {
+        this.mapThreshold = mapThreshold;
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * Binary messages cannot be represented as text.
+     */
+    @Override
+    public Message parse(String message) {
+        throw new UnsupportedOperationException("Binary messages cannot be parsed from text");
+    }
+
+    /**
+     * Binary messages cannot be represented as text.
+     */
+    @Override
+    public Message parse(BufferedReader reader) {
+        throw new UnsupportedOperationException("Binary messages cannot be parsed from text");
+    }
+
+    @Override
+    public Message parse(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+
+        try {
+            Headers headers = parseHeaders(source);
+            long length = readVarint(source);
+
+            if (length > source.remaining()) {
+                throw new RuntimeException("Truncated binary message, payload of " + length + " bytes expected");
+            }
+
+            source.limit(source.position() + (int) length);
+
+            return new Message(headers, new Payload(source));
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Truncated binary message", e);
+        }
+    }
+
+    @Override
+    public Message parse(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size >= streamingThreshold) {
+                ByteBuffer block = readHeaderBlock(channel, size);
+                Headers headers = parseHeaders(block);
+                long length = readVarint(block);
+                long offset = block.position();
+
+                if (offset + length > size) {
+                    throw new RuntimeException("Truncated binary message, payload of " + length + " bytes expected");
+                }
+
+                return new Message(headers, new FilePayload(path, offset, length));
+            }
+
+            if (size >= mapThreshold) {
+                return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // read the whole file
+            }
+
+            buffer.flip();
+
+            return parse(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Message parse(InputStream in) {
+        try {
+            return parse(ByteBufferMessageParser.read(in));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parseHeaders(readHeaderBlock(channel, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(InputStream in) {
+        try {
+            return parseHeaders(readHeaderBlock(Channels.newChannel(in), Long.MAX_VALUE));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the channel from its start until it holds the whole header block
+     * and the payload length, growing the buffer as needed. The returned
+     * buffer is positioned at the start of the message.
+     */
+    private static ByteBuffer readHeaderBlock(ReadableByteChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, HEADER_READ_SIZE));
+
+        for (;;) {
+            boolean eof = false;
+
+            while (buffer.hasRemaining() && !eof) {
+                eof = channel.read(buffer) == -1;
+            }
+
+            ByteBuffer read = (ByteBuffer) buffer.duplicate().flip();
+
+            try {
+                ByteBuffer lookahead = read.duplicate();
+                parseHeaders(lookahead);
+                readVarint(lookahead);
+
+                return read;
+            } catch (BufferUnderflowException e) {
+                if (eof || buffer.capacity() >= size) {
+                    throw new RuntimeException("Truncated binary message", e);
+                }
+
+                if (buffer.capacity() >= MAX_HEADER_BLOCK_SIZE) {
+                    throw new RuntimeException("Header block larger than " + MAX_HEADER_BLOCK_SIZE + " bytes");
+                }
+
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(size, buffer.capacity() * 2L));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    /**
+     * Reads the magic, version and headers, leaving the buffer positioned at
+     * the payload length.
+     */
+    private static Headers parseHeaders(ByteBuffer buffer) {
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) {
+                throw new RuntimeException("Not a binary message");
+            }
+        }
+
+        byte version = buffer.get();
+
+        if (version != VERSION) {
+            throw new RuntimeException("Unsupported binary message version: " + version);
+        }
+
+        int count = (int) readVarint(buffer);
+        Headers.Builder headers = Headers.builder();
+
+        for (int i = 0; i < count; i++) {
+            int nameLength = (int) readVarint(buffer);
+            String name;
+
+            if (nameLength == 0) {
+                name = HeaderNames.get(buffer.get() & 0xff);
+            } else {
+                int start = buffer.position();
+                int end = start + nameLength;
+
+                name = HeaderNames.lookup(buffer, start, checkLimit(buffer, end));
+
+                if (name == null) {
+                    name = decode(buffer, start, end);
+                }
+
+                buffer.position(end);
+            }
+
+            int valueLength = (int) readVarint(buffer);
+            int start = buffer.position();
+            int end = checkLimit(buffer, start + valueLength);
+
+            headers.add(name, decode(buffer, start, end));
+            buffer.position(end);
+        }
+
+        return headers.build();
+    }
+
+    static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new RuntimeException("Malformed varint");
+    }
+
+    private static int checkLimit(ByteBuffer buffer, int end) {
+        if (end > buffer.limit() || end < 0) {
+            throw new BufferUnderflowException();
+        }
+
+        return end;
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, Payload.CHARSET);
+        }
+
+        byte[] scratch = SCRATCH.get();
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+
+        return new String(scratch, 0, length, Payload.CHARSET);
+    }
+}
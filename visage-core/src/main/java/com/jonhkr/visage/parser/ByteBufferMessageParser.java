@@ -0,0 +1,388 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.parser;
+
+import com.jonhkr.visage.message.FilePayload;
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Parses the same format as {@link DefaultMessageParser} directly from bytes.
+ * Header lines are scanned byte by byte and the payload is exposed as a slice
+ * of the source buffer, so no copy of the payload is ever made. Files at least
+ * {@code mapThreshold} bytes long are memory-mapped, smaller ones are read
+ * into a heap buffer through a {@link FileChannel}.
+ * <p>
+ * Files at least {@code streamingThreshold} bytes long only have their header
+ * block read, their payload is a {@link FilePayload} that reads the rest of
+ * the file on demand.
+ */
+public class ByteBufferMessageParser implements MessageParser {
+
+    private final static long DEFAULT_MAP_THRESHOLD = 64 * 1024;
+    private final static long DEFAULT_STREAMING_THRESHOLD = 16 * 1024 * 1024;
+    private final static int HEADER_READ_SIZE = 8 * 1024;
+    private final static int MAX_HEADER_BLOCK_SIZE = 1024 * 1024;
+
+    private final static byte HEADER_SEPARATOR = ':';
+    private final static byte CR = '\r';
+    private final static byte LF = '\n';
+
+    private final static ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final long mapThreshold;
+    private final long streamingThreshold;
+
+    public ByteBufferMessageParser() {
+        this(DEFAULT_MAP_THRESHOLD, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    public ByteBufferMessageParser(long mapThreshold) {
+        this(mapThreshold, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    public ByteBufferMessageParser(long mapThreshold, long streamingThreshold) {
+        this.mapThreshold = mapThreshold;
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    @Override
+    public Message parse(String message) {
+        return parse(ByteBuffer.wrap(message.getBytes(Payload.CHARSET)));
+    }
+
+    @Override
+    public Message parse(BufferedReader reader) {
+        StringBuilder builder = new StringBuilder();
+        char[] cbuff = new char[4096];
+        int c;
+
+        try {
+            while ((c = reader.read(cbuff)) != -1) {
+                builder.append(cbuff, 0, c);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return parse(builder.toString());
+    }
+
+    @Override
+    public Message parse(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size >= streamingThreshold) {
+                return parseStreaming(path, channel, size);
+            }
+
+            return parse(read(channel, size, mapThreshold));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Message parse(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        Headers headers = parseHeaders(source);
+
+        return new Message(headers, new Payload(source));
+    }
+
+    /**
+     * Reads the stream into a heap buffer, payload bytes are kept as they
+     * are.
+     */
+    @Override
+    public Message parse(InputStream in) {
+        try {
+            return parse(read(in));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parseHeaders(readHeaderBlock(channel, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(InputStream in) {
+        try {
+            return parseHeaders(readHeaderBlock(Channels.newChannel(in), Long.MAX_VALUE));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Message parseStreaming(Path path, FileChannel channel, long size) throws IOException {
+        ByteBuffer block = readHeaderBlock(channel, size);
+        int headerEnd = block.limit();
+        Headers headers = parseHeaders(block);
+
+        return new Message(headers, new FilePayload(path, headerEnd, size - headerEnd));
+    }
+
+    /**
+     * Reads the channel from its start up to the end of the header block,
+     * growing the buffer as needed, without reading any further.
+     */
+    private ByteBuffer readHeaderBlock(ReadableByteChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, HEADER_READ_SIZE));
+        int headerEnd;
+
+        for (;;) {
+            boolean eof = channel.read(buffer) == -1 || buffer.position() >= size;
+            ByteBuffer read = (ByteBuffer) buffer.duplicate().flip();
+
+            headerEnd = headerBlockEnd(read);
+
+            if (headerEnd != -1 || eof) {
+                if (headerEnd == -1) {
+                    headerEnd = read.limit();
+                }
+
+                break;
+            }
+
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_HEADER_BLOCK_SIZE) {
+                    throw new RuntimeException("Header block larger than " + MAX_HEADER_BLOCK_SIZE + " bytes");
+                }
+
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(size, buffer.capacity() * 2L));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        buffer.position(0).limit(headerEnd);
+
+        return buffer;
+    }
+
+    /**
+     * Reads the rest of the stream into a heap buffer.
+     */
+    static ByteBuffer read(InputStream in) throws IOException {
+        byte[] bytes = new byte[HEADER_READ_SIZE];
+        int length = 0;
+        int read;
+
+        while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+            length += read;
+
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, bytes.length * 2L));
+            }
+        }
+
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    static ByteBuffer read(FileChannel channel, long size, long mapThreshold) throws IOException {
+        if (size >= mapThreshold) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                break;
+            }
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Reads header lines from the buffer position up to and including the two
+     * consecutive empty lines that terminate the header block, leaving the
+     * buffer positioned at the first payload byte.
+     */
+    private Headers parseHeaders(ByteBuffer buffer) {
+        Headers.Builder headers = Headers.builder();
+        boolean lastLineEmpty = false;
+
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = lineEnd(buffer, start);
+
+            skipLineTerminator(buffer, end);
+
+            if (start == end) {
+                if (lastLineEmpty) {
+                    break;
+                }
+
+                lastLineEmpty = true;
+                continue;
+            }
+
+            headers.add(parseHeader(buffer, start, end));
+            lastLineEmpty = false;
+        }
+
+        return headers.build();
+    }
+
+    /**
+     * Returns the position right after the header block terminator, or -1 if
+     * the buffer ends before the terminator is found.
+     */
+    private static int headerBlockEnd(ByteBuffer buffer) {
+        ByteBuffer lines = buffer.duplicate();
+        boolean lastLineEmpty = false;
+
+        while (lines.hasRemaining()) {
+            int start = lines.position();
+            int end = lineEnd(lines, start);
+
+            if (end == lines.limit() || (end + 1 == lines.limit() && lines.get(end) == CR)) {
+                return -1;
+            }
+
+            skipLineTerminator(lines, end);
+
+            if (start == end) {
+                if (lastLineEmpty) {
+                    return lines.position();
+                }
+
+                lastLineEmpty = true;
+            } else {
+                lastLineEmpty = false;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        int limit = buffer.limit();
+
+        for (int i = from; i < limit; i++) {
+            byte b = buffer.get(i);
+
+            if (b == LF || b == CR) {
+                return i;
+            }
+        }
+
+        return limit;
+    }
+
+    private static void skipLineTerminator(ByteBuffer buffer, int end) {
+        int limit = buffer.limit();
+        int next = end;
+
+        if (next < limit && buffer.get(next++) == CR && next < limit && buffer.get(next) == LF) {
+            next++;
+        }
+
+        buffer.position(next);
+    }
+
+    private static Header parseHeader(ByteBuffer buffer, int start, int end) {
+        int separator = -1;
+
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == HEADER_SEPARATOR) {
+                separator = i;
+                break;
+            }
+        }
+
+        if (separator == -1) {
+            throw new RuntimeException("Invalid header: \"" + decode(buffer, start, end) + "\"");
+        }
+
+        int nameStart = trimStart(buffer, start, separator);
+        int nameEnd = trimEnd(buffer, nameStart, separator);
+        String name = HeaderNames.lookup(buffer, nameStart, nameEnd);
+
+        if (name == null) {
+            name = decode(buffer, nameStart, nameEnd);
+        }
+
+        int valueStart = trimStart(buffer, separator + 1, end);
+
+        return new Header(name, decode(buffer, valueStart, trimEnd(buffer, valueStart, end)));
+    }
+
+    private static int trimStart(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+
+        return start;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+
+        return end;
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, Payload.CHARSET);
+        }
+
+        byte[] scratch = SCRATCH.get();
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+
+        return new String(scratch, 0, length, Payload.CHARSET);
+    }
+}
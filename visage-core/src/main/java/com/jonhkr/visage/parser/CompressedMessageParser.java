@@ -0,0 +1,221 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.parser;
+
+import com.jonhkr.visage.message.ContentEncoding;
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Decorates another parser with support for compressed messages, in two
+ * forms:
+ * <ul>
+ * <li>Whole message files compressed with gzip or zlib, recognized by their
+ * {@code .gz} or {@code .zz} extension or by their magic bytes. They are
+ * inflated as they are read and the result goes through the decorated
+ * parser.</li>
+ * <li>Plain header blocks followed by a payload compressed as stated by the
+ * {@code Content-Encoding} header. The payload is inflated and the header
+ * removed, unless {@code passthrough} is set, in which case the message is
+ * left as is for publishers that can forward compressed bodies. Compressed
+ * payloads are binary, so the decorated parser must keep payload bytes as
+ * they are, as {@link ByteBufferMessageParser} does.</li>
+ * </ul>
+ * Compressed files are inflated as a stream into
+ * {@link MessageParser#parse(InputStream)}, and only up to the end of the
+ * header block into {@link MessageParser#parseHeaders(InputStream)}. No
+ * message inflates to more than {@code maxInflatedBytes}, larger ones fail
+ * to parse. Inflating reuses an inflater and its buffers per thread, see
+ * {@link Decompressor}.
+ */
+public class CompressedMessageParser implements MessageParser {
+
+    private final static long DEFAULT_MAX_INFLATED_BYTES = 256 * 1024 * 1024;
+
+    private final MessageParser delegate;
+    private final boolean passthrough;
+    private final long maxInflatedBytes;
+
+    public CompressedMessageParser(MessageParser delegate) {
+        this(delegate, false);
+    }
+
+    public CompressedMessageParser(MessageParser delegate, boolean passthrough) {
+        this(delegate, passthrough, DEFAULT_MAX_INFLATED_BYTES);
+    }
+
+    public CompressedMessageParser(MessageParser delegate, boolean passthrough, long maxInflatedBytes) {
+        if (maxInflatedBytes < 1) {
+            throw new IllegalArgumentException("maxInflatedBytes must be greater than zero");
+        }
+
+        this.delegate = delegate;
+        this.passthrough = passthrough;
+        this.maxInflatedBytes = maxInflatedBytes;
+    }
+
+    @Override
+    public Message parse(String message) {
+        return decodePayload(delegate.parse(message));
+    }
+
+    @Override
+    public Message parse(BufferedReader reader) {
+        return decodePayload(delegate.parse(reader));
+    }
+
+    @Override
+    public Message parse(ByteBuffer buffer) {
+        ContentEncoding encoding = buffer.remaining() < 2
+                ? null
+                : ContentEncoding.sniff(buffer.get(buffer.position()) & 0xff, buffer.get(buffer.position() + 1) & 0xff);
+
+        if (encoding == null) {
+            return decodePayload(delegate.parse(buffer));
+        }
+
+        return decodePayload(delegate.parse(inflate(buffer, encoding)));
+    }
+
+    @Override
+    public Message parse(Path path) {
+        ContentEncoding encoding = detect(path);
+
+        if (encoding == null) {
+            return decodePayload(delegate.parse(path));
+        }
+
+        Message message;
+
+        try (InputStream in = inflate(path, encoding)) {
+            message = delegate.parse(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return decodePayload(message);
+    }
+
+    @Override
+    public Headers parseHeaders(Path path) {
+        ContentEncoding encoding = detect(path);
+        Headers headers;
+
+        if (encoding == null) {
+            headers = delegate.parseHeaders(path);
+        } else {
+            try (InputStream in = inflate(path, encoding)) {
+                headers = delegate.parseHeaders(in);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (passthrough || ContentEncoding.of(headers) == null) {
+            return headers;
+        }
+
+        return withoutContentEncoding(headers);
+    }
+
+    private Message decodePayload(Message message) {
+        ContentEncoding encoding = ContentEncoding.of(message.getHeaders());
+
+        if (encoding == null || passthrough) {
+            return message;
+        }
+
+        try (InputStream in = message.getPayload().openStream()) {
+            byte[] payload = Decompressor.decode(in, encoding, maxInflatedBytes);
+
+            return new Message(withoutContentEncoding(message.getHeaders()), new Payload(ByteBuffer.wrap(payload)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ContentEncoding detect(Path path) {
+        ContentEncoding encoding = ContentEncoding.forFileName(path.getFileName().toString());
+
+        if (encoding != null) {
+            return encoding;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+
+            while (magic.hasRemaining() && channel.read(magic) != -1) {
+                // read until both bytes are in or the file ends
+            }
+
+            return magic.hasRemaining() ? null : ContentEncoding.sniff(magic.get(0) & 0xff, magic.get(1) & 0xff);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private InputStream inflate(Path path, ContentEncoding encoding) throws IOException {
+        return Decompressor.open(Files.newInputStream(path), encoding, maxInflatedBytes);
+    }
+
+    private ByteBuffer inflate(ByteBuffer buffer, ContentEncoding encoding) {
+        ByteBuffer source = buffer.duplicate();
+        byte[] bytes;
+        int offset;
+
+        if (source.hasArray()) {
+            bytes = source.array();
+            offset = source.arrayOffset() + source.position();
+        } else {
+            bytes = new byte[source.remaining()];
+            offset = 0;
+            source.get(bytes);
+        }
+
+        try {
+            return ByteBuffer.wrap(Decompressor.decode(new ByteArrayInputStream(bytes, offset, buffer.remaining()),
+                    encoding, maxInflatedBytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Headers withoutContentEncoding(Headers headers) {
+        Headers.Builder builder = Headers.builder();
+
+        for (Header header : headers) {
+            if (!header.getName().equalsIgnoreCase(HeaderNames.CONTENT_ENCODING)) {
+                builder.add(header);
+            }
+        }
+
+        return builder.build();
+    }
+}
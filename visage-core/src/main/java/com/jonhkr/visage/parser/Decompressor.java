@@ -0,0 +1,341 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.parser;
+
+import com.jonhkr.visage.message.ContentEncoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Stream of the data inflated from a gzip or zlib stream. Input is read in
+ * chunks as it is inflated, neither the compressed nor the inflated data is
+ * ever held in memory as a whole. Inflating more than {@code maxBytes} fails
+ * the stream with a {@link ZipException}, so a small file inflating to
+ * gigabytes cannot exhaust the heap.
+ * <p>
+ * gzip members are inflated raw, their header is skipped here and their
+ * trailer is checked against the CRC32 and size of the inflated data.
+ * Concatenated members are inflated one after the other.
+ * <p>
+ * The {@link Inflater}s and the input buffer are kept per thread and reused
+ * by the next stream the thread opens once this one is closed.
+ */
+final class Decompressor extends InputStream {
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_RETAINED_OUTPUT = 4 * 1024 * 1024;
+
+    private final static int GZIP_MAGIC_1 = 0x1f;
+    private final static int GZIP_MAGIC_2 = 0x8b;
+    private final static int GZIP_DEFLATE = 8;
+    private final static int FHCRC = 2;
+    private final static int FEXTRA = 4;
+    private final static int FNAME = 8;
+    private final static int FCOMMENT = 16;
+
+    private final static ThreadLocal<Decompressor> DECOMPRESSORS = ThreadLocal.withInitial(Decompressor::new);
+    private final static ThreadLocal<byte[]> OUTPUT = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final Inflater raw = new Inflater(true);
+    private final Inflater zlib = new Inflater();
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final byte[] single = new byte[1];
+
+    private InputStream in;
+    private ContentEncoding encoding;
+    private long maxBytes;
+    private Inflater inflater;
+    private boolean finished;
+    private int position;
+    private int limit;
+    private long memberSize;
+    private long total;
+
+    private Decompressor() {
+    }
+
+    /**
+     * Opens a stream inflating {@code in}, closing it closes {@code in} too.
+     */
+    static InputStream open(InputStream in, ContentEncoding encoding, long maxBytes) {
+        Decompressor decompressor = DECOMPRESSORS.get();
+
+        if (decompressor.in != null) {
+            decompressor = new Decompressor();
+        }
+
+        decompressor.in = in;
+        decompressor.encoding = encoding;
+        decompressor.maxBytes = maxBytes;
+        decompressor.inflater = null;
+        decompressor.finished = false;
+        decompressor.position = 0;
+        decompressor.limit = 0;
+        decompressor.total = 0;
+
+        return decompressor;
+    }
+
+    /**
+     * Inflates the whole stream, which is left open.
+     */
+    static byte[] decode(InputStream in, ContentEncoding encoding, long maxBytes) throws IOException {
+        byte[] output = OUTPUT.get();
+        int length = 0;
+
+        Decompressor decompressor = (Decompressor) open(in, encoding, maxBytes);
+
+        try {
+            for (;;) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, (int) Math.min(Integer.MAX_VALUE - 8, output.length * 2L));
+                }
+
+                int read = decompressor.read(output, length, output.length - length);
+
+                if (read < 0) {
+                    return Arrays.copyOf(output, length);
+                }
+
+                length += read;
+            }
+        } finally {
+            decompressor.release();
+
+            if (output.length <= MAX_RETAINED_OUTPUT) {
+                OUTPUT.set(output);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (in == null) {
+            throw new IOException("Stream closed");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        while (!finished) {
+            if (inflater == null) {
+                startMember();
+            }
+
+            int read = inflate(b, off, len);
+
+            if (read > 0) {
+                total += read;
+
+                if (total > maxBytes) {
+                    throw new ZipException("Inflated message larger than " + maxBytes + " bytes");
+                }
+
+                if (encoding == ContentEncoding.GZIP) {
+                    crc.update(b, off, read);
+                    memberSize += read;
+                }
+
+                return read;
+            }
+
+            endMember();
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        InputStream source = in;
+
+        release();
+
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    private void release() {
+        in = null;
+        inflater = null;
+    }
+
+    private void startMember() throws IOException {
+        if (encoding == ContentEncoding.DEFLATE) {
+            inflater = zlib;
+        } else {
+            readGzipHeader();
+            crc.reset();
+            memberSize = 0;
+            inflater = raw;
+        }
+
+        inflater.reset();
+    }
+
+    private void endMember() throws IOException {
+        inflater = null;
+
+        if (encoding == ContentEncoding.DEFLATE) {
+            finished = true;
+            return;
+        }
+
+        readGzipTrailer();
+        finished = !fill() || (input[position] & 0xff) != GZIP_MAGIC_1;
+    }
+
+    /**
+     * Inflates into the given range, returns 0 once the current member is
+     * complete.
+     */
+    private int inflate(byte[] b, int off, int len) throws IOException {
+        try {
+            for (;;) {
+                if (inflater.finished()) {
+                    position = limit - inflater.getRemaining();
+                    return 0;
+                }
+
+                if (inflater.needsInput()) {
+                    if (!fill()) {
+                        throw new EOFException("Unexpected end of compressed data");
+                    }
+
+                    inflater.setInput(input, position, limit - position);
+                    position = limit;
+                }
+
+                int read = inflater.inflate(b, off, len);
+
+                if (read > 0) {
+                    return read;
+                }
+
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Compressed data requires a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (readByte() != GZIP_MAGIC_1 || readByte() != GZIP_MAGIC_2) {
+            throw new ZipException("Not in gzip format");
+        }
+
+        if (readByte() != GZIP_DEFLATE) {
+            throw new ZipException("Unsupported gzip compression method");
+        }
+
+        int flags = readByte();
+
+        skip(6);
+
+        if ((flags & FEXTRA) != 0) {
+            skip(readByte() | readByte() << 8);
+        }
+
+        if ((flags & FNAME) != 0) {
+            skipString();
+        }
+
+        if ((flags & FCOMMENT) != 0) {
+            skipString();
+        }
+
+        if ((flags & FHCRC) != 0) {
+            skip(2);
+        }
+    }
+
+    private void readGzipTrailer() throws IOException {
+        if (readInt() != crc.getValue()) {
+            throw new ZipException("Corrupt gzip data, CRC32 mismatch");
+        }
+
+        if (readInt() != (memberSize & 0xffffffffL)) {
+            throw new ZipException("Corrupt gzip data, size mismatch");
+        }
+    }
+
+    private long readInt() throws IOException {
+        return readByte() | readByte() << 8 | readByte() << 16 | (long) readByte() << 24;
+    }
+
+    private int readByte() throws IOException {
+        if (!fill()) {
+            throw new EOFException("Unexpected end of gzip data");
+        }
+
+        return input[position++] & 0xff;
+    }
+
+    private void skip(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readByte();
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (readByte() != 0) {
+            // skip up to and including the terminating zero
+        }
+    }
+
+    /**
+     * Makes sure there is at least one unread input byte, returns false at
+     * the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+
+        int read;
+
+        do {
+            read = in.read(input, 0, input.length);
+        } while (read == 0);
+
+        if (read < 0) {
+            return false;
+        }
+
+        position = 0;
+        limit = read;
+
+        return true;
+    }
+}
@@ -16,15 +16,17 @@
 
 package com.jonhkr.visage.parser;
 
-import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Headers;
 import com.jonhkr.visage.message.Message;
 import com.jonhkr.visage.message.Payload;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class DefaultMessageParser implements MessageParser {
 
@@ -44,8 +46,26 @@ public class DefaultMessageParser implements MessageParser {
         }
     }
 
-    private List<Header> parseHeaders(BufferedReader reader) throws IOException {
-        List<Header> headers = new ArrayList<>();
+    @Override
+    public Headers parseHeaders(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            return parseHeaders(reader);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(InputStream in) {
+        try {
+            return parseHeaders(new BufferedReader(new InputStreamReader(in, Payload.CHARSET)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Headers parseHeaders(BufferedReader reader) throws IOException {
+        Headers.Builder headers = Headers.builder();
 
         String line;
         String lastLine = null;
@@ -66,11 +86,11 @@ public class DefaultMessageParser implements MessageParser {
                 throw new RuntimeException("Invalid header: \"" + line + "\"");
             }
 
-            headers.add(new Header(parts[0].trim(), parts[1].trim()));
+            headers.add(parts[0].trim(), parts[1].trim());
             lastLine = line;
         }
 
-        return headers;
+        return headers.build();
     }
 
     private Payload readPayload(BufferedReader reader) throws IOException {
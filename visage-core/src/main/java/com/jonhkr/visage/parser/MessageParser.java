@@ -16,11 +16,57 @@
 
 package com.jonhkr.visage.parser;
 
+import com.jonhkr.visage.message.Headers;
 import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public interface MessageParser {
     Message parse(String message);
     Message parse(BufferedReader reader);
+
+    default Message parse(ByteBuffer buffer) {
+        return parse(Payload.CHARSET.decode(buffer.duplicate()).toString());
+    }
+
+    default Message parse(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            return parse(reader);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parses a message read from the stream, which is left open. Decodes the
+     * stream as text by default, parsers that keep payload bytes as they are
+     * read them as bytes instead.
+     */
+    default Message parse(InputStream in) {
+        return parse(new BufferedReader(new InputStreamReader(in, Payload.CHARSET)));
+    }
+
+    /**
+     * Parses only the header block of a message file, without reading the
+     * payload. Parsers that cannot stop at the end of the header block fall
+     * back to parsing the whole message.
+     */
+    default Headers parseHeaders(Path path) {
+        return parse(path).getHeaders();
+    }
+
+    /**
+     * Parses only the header block of a message read from the stream, see
+     * {@link #parseHeaders(Path)}.
+     */
+    default Headers parseHeaders(InputStream in) {
+        return parse(in).getHeaders();
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.parser;
+
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Picks a parser per message by the magic bytes it starts with, so messages
+ * in different formats can share one spool directory. Messages matching no
+ * registered magic go to the fallback parser.
+ * <p>
+ * Magic bytes are read from the data the parser gets: files smaller than
+ * {@code streamingThreshold} are read into a buffer once, up to
+ * {@code mapThreshold} on the heap and memory-mapped above, and the buffer
+ * goes to the selected parser. Only larger files, which the parsers stream,
+ * are opened again by the selected parser. Header reads go through one
+ * stream. Text given as a {@link String} or reader cannot start with a
+ * binary magic and always goes to the fallback parser, registered parsers
+ * only ever get bytes.
+ */
+public class ParserRegistry implements MessageParser {
+
+    private final static long DEFAULT_MAP_THRESHOLD = 64 * 1024;
+    private final static long DEFAULT_STREAMING_THRESHOLD = 16 * 1024 * 1024;
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final MessageParser fallback;
+    private final long mapThreshold;
+    private final long streamingThreshold;
+
+    private volatile int magicLength;
+
+    public ParserRegistry(MessageParser fallback) {
+        this(fallback, DEFAULT_MAP_THRESHOLD, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    public ParserRegistry(MessageParser fallback, long mapThreshold, long streamingThreshold) {
+        this.fallback = fallback;
+        this.mapThreshold = mapThreshold;
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * Text messages through {@link ByteBufferMessageParser} and binary
+     * messages through {@link BinaryMessageParser}.
+     */
+    public static ParserRegistry defaults() {
+        return new ParserRegistry(new ByteBufferMessageParser())
+                .register(BinaryMessageParser.MAGIC, new BinaryMessageParser());
+    }
+
+    public ParserRegistry register(byte[] magic, MessageParser parser) {
+        if (magic.length == 0) {
+            throw new IllegalArgumentException("magic must not be empty");
+        }
+
+        entries.add(new Entry(magic.clone(), parser));
+        magicLength = Math.max(magicLength, magic.length);
+
+        return this;
+    }
+
+    @Override
+    public Message parse(String message) {
+        return fallback.parse(message);
+    }
+
+    @Override
+    public Message parse(BufferedReader reader) {
+        return fallback.parse(reader);
+    }
+
+    @Override
+    public Message parse(ByteBuffer buffer) {
+        return select(buffer).parse(buffer);
+    }
+
+    @Override
+    public Message parse(InputStream in) {
+        InputStream buffered = buffered(in);
+
+        return select(buffered).parse(buffered);
+    }
+
+    @Override
+    public Message parse(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size < streamingThreshold) {
+                ByteBuffer buffer = ByteBufferMessageParser.read(channel, size, mapThreshold);
+
+                return select(buffer).parse(buffer);
+            }
+
+            ByteBuffer magic = ByteBuffer.allocate(magicLength);
+
+            while (magic.hasRemaining() && channel.read(magic) != -1) {
+                // read up to the longest magic
+            }
+
+            magic.flip();
+
+            return select(magic).parse(path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            return parseHeaders(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Headers parseHeaders(InputStream in) {
+        InputStream buffered = buffered(in);
+
+        return select(buffered).parseHeaders(buffered);
+    }
+
+    private static InputStream buffered(InputStream in) {
+        return in.markSupported() ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * Peeks at the magic bytes, leaving the stream where it was.
+     */
+    private MessageParser select(InputStream in) {
+        int length = magicLength;
+        byte[] magic = new byte[length];
+        int read = 0;
+
+        in.mark(length);
+
+        try {
+            while (read < length) {
+                int n = in.read(magic, read, length - read);
+
+                if (n == -1) {
+                    break;
+                }
+
+                read += n;
+            }
+
+            in.reset();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return select(ByteBuffer.wrap(magic, 0, read));
+    }
+
+    private MessageParser select(ByteBuffer buffer) {
+        for (Entry entry : entries) {
+            if (entry.matches(buffer)) {
+                return entry.parser;
+            }
+        }
+
+        return fallback;
+    }
+
+    private static class Entry {
+
+        private final byte[] magic;
+        private final MessageParser parser;
+
+        Entry(byte[] magic, MessageParser parser) {
+            this.magic = magic;
+            this.parser = parser;
+        }
+
+        boolean matches(ByteBuffer buffer) {
+            if (buffer.remaining() < magic.length) {
+                return false;
+            }
+
+            int position = buffer.position();
+
+            for (int i = 0; i < magic.length; i++) {
+                if (buffer.get(position + i) != magic[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.publisher;
+
+/**
+ * Strategy deciding how many publishes {@link LimitingMessagePublisher} lets
+ * run at once, adjusted from every completed publish.
+ */
+public interface ConcurrencyLimit {
+
+    int getLimit();
+
+    /**
+     * Called once per publish with its latency, the number of publishes in
+     * flight when it started, itself included, and whether it failed.
+     */
+    void onSample(long latencyNanos, int inFlight, boolean dropped);
+}
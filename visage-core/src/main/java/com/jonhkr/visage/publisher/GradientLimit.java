@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.publisher;
+
+/**
+ * Limit following the ratio between the long term and the current publish
+ * latency. While latency stays near its long term average the limit keeps
+ * growing by about its square root per sample; once publishes slow down,
+ * requests are queueing downstream and the limit shrinks in proportion,
+ * down to half of it per sample.
+ * <p>
+ * The long term latency is an exponential average over about
+ * {@code longWindow} samples, so a sink that is slow for good becomes the
+ * new normal instead of starving the publisher. {@code tolerance} is how
+ * much slower than usual publishes may get before the limit shrinks and
+ * {@code smoothing} how much of each new estimate is applied at once.
+ * Failed publishes multiply the limit by 0.9.
+ */
+public class GradientLimit implements ConcurrencyLimit {
+
+    private final static double DROP_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final double longDecay;
+
+    private double estimatedLimit;
+    private double longLatency;
+    private volatile int limit;
+
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, 1.25, 0.2, 600);
+    }
+
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit, double tolerance, double smoothing,
+                         int longWindow) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+
+        if (tolerance < 1) {
+            throw new IllegalArgumentException("tolerance must be at least 1");
+        }
+
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("smoothing must be greater than 0 and at most 1");
+        }
+
+        if (longWindow < 1) {
+            throw new IllegalArgumentException("longWindow must be greater than zero");
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.longDecay = 2.0 / (longWindow + 1);
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void onSample(long latencyNanos, int inFlight, boolean dropped) {
+        if (dropped) {
+            update(estimatedLimit * DROP_RATIO);
+            return;
+        }
+
+        double latency = Math.max(latencyNanos, 1);
+
+        if (longLatency == 0) {
+            longLatency = latency;
+        } else {
+            longLatency += (latency - longLatency) * longDecay;
+        }
+
+        // Latency recovering far below its long term average, let the
+        // average catch up faster so the limit can grow again.
+        if (longLatency / latency > 2) {
+            longLatency *= 0.95;
+        }
+
+        // Publishers that do not use the limit say nothing about it.
+        if (inFlight < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / latency));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+
+        update(estimatedLimit * (1 - smoothing) + newLimit * smoothing);
+    }
+
+    private void update(double newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.publisher;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.metrics.Counter;
+import com.jonhkr.visage.metrics.MetricsRegistry;
+import com.jonhkr.visage.metrics.Timer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of publishes in flight on the delegate by a
+ * {@link ConcurrencyLimit} that adapts to the latency and failures of the
+ * publishes themselves, so a slowing sink makes callers wait instead of
+ * piling up requests on it.
+ * <p>
+ * Callers over the limit block, {@link #publishAsync(Message)} included,
+ * until a publish completes, and get a {@link LimitExceededException} if
+ * none did within {@code acquireTimeoutMillis}. Waiting delivery workers
+ * push back on the watcher like a full delivery queue does, and the watcher
+ * retries limited deliveries without spending their delivery attempts, so
+ * a slow sink does not dead-letter healthy messages.
+ */
+public class LimitingMessagePublisher implements MessagePublisher {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private final MessagePublisher delegate;
+    private final ConcurrencyLimit limit;
+    private final long acquireTimeoutNanos;
+    private final Counter limited;
+    private final Timer publishTime;
+
+    private int inFlight;
+
+    public LimitingMessagePublisher(MessagePublisher delegate, ConcurrencyLimit limit, long acquireTimeoutMillis) {
+        this(delegate, limit, acquireTimeoutMillis, Counter.NOOP, Timer.NOOP);
+    }
+
+    /**
+     * Also records into the registry: the current limit and the publishes
+     * in flight as gauges, the publishes that timed out waiting for a slot
+     * and the publish latency.
+     */
+    public LimitingMessagePublisher(MessagePublisher delegate, ConcurrencyLimit limit, long acquireTimeoutMillis,
+                                    MetricsRegistry registry) {
+        this(delegate, limit, acquireTimeoutMillis, registry.counter("publisher.limited"), registry.timer("publisher.time"));
+
+        registry.gauge("publisher.limit", limit::getLimit);
+        registry.gauge("publisher.inflight", this::getInFlight);
+    }
+
+    private LimitingMessagePublisher(MessagePublisher delegate, ConcurrencyLimit limit, long acquireTimeoutMillis,
+                                     Counter limited, Timer publishTime) {
+        this.delegate = delegate;
+        this.limit = limit;
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.limited = limited;
+        this.publishTime = publishTime;
+    }
+
+    @Override
+    public void publish(Message message) {
+        int observed = acquire();
+        long start = System.nanoTime();
+        boolean dropped = true;
+
+        try {
+            delegate.publish(message);
+            dropped = false;
+        } finally {
+            release(start, observed, dropped);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(Message message) {
+        int observed = acquire();
+        long start = System.nanoTime();
+        CompletableFuture<Void> future;
+
+        try {
+            future = delegate.publishAsync(message);
+        } catch (RuntimeException | Error e) {
+            release(start, observed, true);
+            throw e;
+        }
+
+        return future.whenComplete((result, failure) -> release(start, observed, failure != null));
+    }
+
+    public int getLimit() {
+        return limit.getLimit();
+    }
+
+    public int getInFlight() {
+        lock.lock();
+
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot, returns the number of publishes in flight including the
+     * new one.
+     */
+    private int acquire() {
+        lock.lock();
+
+        try {
+            long remaining = acquireTimeoutNanos;
+
+            while (inFlight >= limit.getLimit()) {
+                if (remaining <= 0) {
+                    limited.increment();
+                    throw new LimitExceededException("No publish slot freed up within "
+                            + TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + " ms, limit is " + limit.getLimit());
+                }
+
+                try {
+                    remaining = released.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+
+            return ++inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long start, int observed, boolean dropped) {
+        long latency = System.nanoTime() - start;
+        int before = limit.getLimit();
+
+        limit.onSample(latency, observed, dropped);
+        publishTime.record(latency);
+
+        lock.lock();
+
+        try {
+            inFlight--;
+
+            if (limit.getLimit() > before) {
+                released.signalAll();
+            } else {
+                released.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
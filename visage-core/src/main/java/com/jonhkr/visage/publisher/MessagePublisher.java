@@ -18,6 +18,21 @@ package com.jonhkr.visage.publisher;
 
 import com.jonhkr.visage.message.Message;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface MessagePublisher {
     void publish(Message message);
+
+    default CompletableFuture<Void> publishAsync(Message message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        try {
+            publish(message);
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
 }
@@ -0,0 +1,31 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.publisher;
+
+/**
+ * Thrown by a publisher for a message it can never publish as it is, one
+ * too large for the sink for instance. The watcher dead-letters such
+ * deliveries without retrying them.
+ */
+public class MessageRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MessageRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size worker pool backed by a bounded queue. When the queue is full the
+ * configured {@link RejectionPolicy} decides whether the submitter is blocked,
+ * runs the task itself or gets a {@link RejectedExecutionException}.
+ * <p>
+ * The time each task spends queued before a worker picks it up is recorded
+ * into the given {@link Timer}.
+ */
+public class BoundedExecutor implements StageExecutor {
+
+    private final String name;
+    private final int capacity;
+    private final ThreadPoolExecutor executor;
+    private final Timer queueWait;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    public BoundedExecutor(String name, int workers, int capacity, RejectionPolicy policy) {
+        this(name, workers, capacity, policy, Timer.NOOP);
+    }
+
+    public BoundedExecutor(String name, int workers, int capacity, RejectionPolicy policy, Timer queueWait) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be greater than zero");
+        }
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than zero");
+        }
+
+        this.name = name;
+        this.capacity = capacity;
+        this.queueWait = queueWait;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), new NamedThreadFactory(name), handler(policy));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.increment();
+        executor.execute(queued(task));
+        peakQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+    }
+
+    /**
+     * Puts the task straight on the queue, once every worker is started so
+     * that one of them picks it up.
+     */
+    @Override
+    public boolean offer(Runnable task) {
+        Runnable queued = queued(task);
+
+        executor.prestartAllCoreThreads();
+
+        if (executor.isShutdown() || !executor.getQueue().offer(queued)) {
+            return rejectIfShutdown();
+        }
+
+        if (executor.isShutdown() && executor.remove(queued)) {
+            return rejectIfShutdown();
+        }
+
+        submitted.increment();
+        peakQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+
+        return true;
+    }
+
+    @Override
+    public ExecutorStats getStats() {
+        return new ExecutorStats(
+                name,
+                executor.getMaximumPoolSize(),
+                executor.getActiveCount(),
+                executor.getQueue().size(),
+                peakQueueDepth.get(),
+                capacity,
+                submitted.sum(),
+                completed.sum(),
+                rejected.sum(),
+                blocked.sum());
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private Runnable queued(Runnable task) {
+        long queuedAt = System.nanoTime();
+
+        return () -> {
+            queueWait.recordSince(queuedAt);
+
+            try {
+                task.run();
+            } finally {
+                completed.increment();
+            }
+        };
+    }
+
+    private boolean rejectIfShutdown() {
+        if (executor.isShutdown()) {
+            rejected.increment();
+            throw new RejectedExecutionException(name + " has been shut down");
+        }
+
+        return false;
+    }
+
+    private RejectedExecutionHandler handler(RejectionPolicy policy) {
+        switch (policy) {
+            case BLOCK:
+                return (r, e) -> {
+                    if (e.isShutdown()) {
+                        rejected.increment();
+                        throw new RejectedExecutionException(name + " has been shut down");
+                    }
+
+                    blocked.increment();
+
+                    try {
+                        e.getQueue().put(r);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        rejected.increment();
+                        throw new RejectedExecutionException(ex);
+                    }
+
+                    // the workers may have drained the queue and exited while
+                    // the caller waited for room, like ThreadPoolExecutor take
+                    // the task back instead of stranding it
+                    if (e.isShutdown() && e.remove(r)) {
+                        rejected.increment();
+                        throw new RejectedExecutionException(name + " has been shut down");
+                    }
+                };
+            case CALLER_RUNS:
+                return (r, e) -> {
+                    if (e.isShutdown()) {
+                        rejected.increment();
+                        throw new RejectedExecutionException(name + " has been shut down");
+                    }
+
+                    r.run();
+                };
+            case REJECT:
+                return (r, e) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException(name + " queue is full");
+                };
+            default:
+                throw new IllegalArgumentException("Unknown rejection policy: " + policy);
+        }
+    }
+}
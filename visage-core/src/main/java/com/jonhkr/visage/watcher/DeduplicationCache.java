@@ -0,0 +1,282 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers message keys for a limited time and up to a limited number of
+ * keys. Keys live in lock striped segments, each keeping its keys in the
+ * order they were first seen, so both expired keys and keys evicted for
+ * room are always taken from the head of a segment.
+ * <p>
+ * A key can be reserved while its message is being handled, then completed
+ * or removed depending on the outcome. Reserved keys already count as seen,
+ * but only completed ones are written to snapshots.
+ * <p>
+ * The cache can be saved to and loaded from a snapshot file so the window
+ * survives restarts. Keys are stored as length prefixed UTF-8, so keys
+ * taken from headers may be of any length. Snapshots hold wall clock times, keys that expired
+ * while the process was down are dropped on load. A message whose handling
+ * was cut short by a restart is therefore not taken for a duplicate.
+ */
+public class DeduplicationCache {
+
+    private final static int SEGMENTS = 16;
+    private final static int SNAPSHOT_MAGIC = 0x56444332;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long windowMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public DeduplicationCache(long windowMillis, int maxEntries) {
+        if (maxEntries < SEGMENTS) {
+            throw new IllegalArgumentException("maxEntries must be at least " + SEGMENTS);
+        }
+
+        this.windowMillis = windowMillis;
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxEntries / SEGMENTS);
+        }
+    }
+
+    /**
+     * Records the key, returns {@code false} if it was already seen within
+     * the window.
+     */
+    public boolean add(String key) {
+        return add(key, System.currentTimeMillis(), true, false);
+    }
+
+    /**
+     * Records the key as pending until {@link #complete(String)} or
+     * {@link #remove(String)}, returns {@code false} if it was already seen
+     * within the window.
+     */
+    public boolean reserve(String key) {
+        return add(key, System.currentTimeMillis(), true, true);
+    }
+
+    /**
+     * Marks a reserved key as handled, so it is saved with the next
+     * snapshot.
+     */
+    public void complete(String key) {
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            segment.pending.remove(key);
+        }
+    }
+
+    /**
+     * Forgets a key, so a message that could not be handled is not taken for
+     * a duplicate when it comes back.
+     */
+    public void remove(String key) {
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            segment.seen.remove(key);
+            segment.pending.remove(key);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.seen.size();
+            }
+        }
+
+        return size;
+    }
+
+    public DeduplicationStats getStats() {
+        return new DeduplicationStats(size(), hits.sum(), misses.sum(), evictions.sum(), expirations.sum());
+    }
+
+    /**
+     * Writes every live completed key to the file, replacing it atomically.
+     */
+    public void save(Path file) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Map.Entry<String, Long> entry : segment.seen.entrySet()) {
+                    if (segment.pending.contains(entry.getKey())) {
+                        continue;
+                    }
+
+                    keys.add(entry.getKey());
+                    times.add(entry.getValue());
+                }
+            }
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(keys.size());
+
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(times.get(i));
+            }
+        }
+
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Adds the keys of a snapshot, returns how many were still in the window.
+     */
+    public int load(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a deduplication snapshot: " + file);
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+
+                if (length < 0) {
+                    throw new IOException("Corrupt deduplication snapshot: " + file);
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+
+                String key = new String(bytes, StandardCharsets.UTF_8);
+                long seenAt = in.readLong();
+
+                if (seenAt + windowMillis > now) {
+                    add(key, seenAt, false, false);
+                    loaded++;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        return loaded;
+    }
+
+    private boolean add(String key, long now, boolean count, boolean pending) {
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            expire(segment, now);
+
+            Long seenAt = segment.seen.get(key);
+
+            if (seenAt != null) {
+                if (count) {
+                    hits.increment();
+                }
+
+                return false;
+            }
+
+            if (count) {
+                misses.increment();
+            }
+
+            segment.seen.put(key, now);
+
+            if (pending) {
+                segment.pending.add(key);
+            }
+
+            if (segment.seen.size() > segment.capacity) {
+                Iterator<String> eldest = segment.seen.keySet().iterator();
+                segment.pending.remove(eldest.next());
+                eldest.remove();
+                evictions.increment();
+            }
+
+            return true;
+        }
+    }
+
+    private void expire(Segment segment, long now) {
+        Iterator<Map.Entry<String, Long>> entries = segment.seen.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+
+            if (entry.getValue() + windowMillis > now) {
+                break;
+            }
+
+            segment.pending.remove(entry.getKey());
+            entries.remove();
+            expirations.increment();
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static class Segment {
+
+        private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+        private final Set<String> pending = new HashSet<>();
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops messages already seen within the deduplication window. Messages are
+ * keyed by the configured header, messages without it by a SHA-256 hash of
+ * their headers and payload.
+ * <p>
+ * A key stays pending while its message is delivered and only counts as
+ * handled, and goes into the snapshot, once the delivery succeeded. A
+ * failed delivery forgets the key so the message is not dropped when it
+ * comes back.
+ */
+class Deduplicator {
+
+    private final static Logger LOGGER = LogManager.getLogger(Deduplicator.class);
+
+    private final static ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final static byte[] SEPARATOR = {0};
+
+    private final static ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private final DeduplicationCache cache;
+    private final String header;
+    private final Path snapshot;
+    private final long snapshotIntervalMillis;
+
+    Deduplicator(WatcherConfig config) {
+        this.cache = new DeduplicationCache(config.getDeduplicationWindowMillis(), config.getDeduplicationMaxEntries());
+        this.header = config.getDeduplicationHeader();
+        this.snapshot = config.getDeduplicationSnapshot();
+        this.snapshotIntervalMillis = config.getDeduplicationSnapshotIntervalMillis();
+    }
+
+    DeduplicationCache getCache() {
+        return cache;
+    }
+
+    void start(ScheduledExecutorService scheduler) {
+        if (snapshot == null) {
+            return;
+        }
+
+        try {
+            int loaded = cache.load(snapshot);
+            LOGGER.info("Loaded {} message keys from \"{}\".", loaded, snapshot);
+        } catch (IOException e) {
+            LOGGER.error("Failed to load deduplication snapshot \"{}\".", snapshot, e);
+        }
+
+        scheduler.scheduleWithFixedDelay(this::save, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (snapshot != null) {
+            save();
+        }
+    }
+
+    /**
+     * Returns the key of a message seen for the first time, pending until
+     * {@link #complete(String)} or {@link #forget(String)}, or {@code null}
+     * if the message is a duplicate.
+     */
+    String accept(Message message) {
+        String key = keyOf(message);
+
+        return cache.reserve(key) ? key : null;
+    }
+
+    void complete(String key) {
+        cache.complete(key);
+    }
+
+    void forget(String key) {
+        cache.remove(key);
+    }
+
+    String keyOf(Message message) {
+        String value = header == null ? null : message.getHeaders().getValue(header);
+
+        if (value != null) {
+            return value;
+        }
+
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+
+        for (Header h : message.getHeaders()) {
+            digest.update(h.getName().getBytes(Payload.CHARSET));
+            digest.update(SEPARATOR);
+            digest.update(h.getValue().getBytes(Payload.CHARSET));
+            digest.update(SEPARATOR);
+        }
+
+        digest.update(SEPARATOR);
+        update(digest, message.getPayload());
+
+        return "sha256:" + Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    /**
+     * Streaming payloads are read through a reused buffer rather than mapped,
+     * they can be larger than a mapping and than the heap.
+     */
+    private static void update(MessageDigest digest, Payload payload) {
+        if (!payload.isStreaming()) {
+            digest.update(payload.asByteBuffer());
+            return;
+        }
+
+        byte[] buffer = BUFFERS.get();
+
+        try (InputStream in = payload.openStream()) {
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void save() {
+        try {
+            cache.save(snapshot);
+        } catch (Exception e) {
+            LOGGER.error("Failed to save deduplication snapshot \"{}\".", snapshot, e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+/**
+ * Final failure of a delivery, after every attempt failed or one failed in
+ * a way retrying cannot fix.
+ */
+public class DeliveryException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int attempts;
+
+    public DeliveryException(int attempts, Throwable cause) {
+        super("Delivery failed after " + attempts + " attempts: " + cause.getMessage(), cause);
+        this.attempts = attempts;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
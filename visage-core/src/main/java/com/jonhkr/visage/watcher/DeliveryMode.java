@@ -0,0 +1,42 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+/**
+ * How consumers are run by the delivery stage.
+ */
+public enum DeliveryMode {
+    /**
+     * On a fixed pool of {@code deliveryWorkers} platform threads.
+     */
+    POOL,
+
+    /**
+     * Every consumer invocation on its own virtual thread, at most
+     * {@code virtualThreadConcurrency} at once. Falls back to {@link #POOL}
+     * on JVMs without virtual threads.
+     */
+    VIRTUAL_THREADS,
+
+    /**
+     * On {@code partitionLanes} single threaded lanes. Messages are assigned
+     * a lane by the hash of their {@code partitionHeader}, so messages with
+     * the same key are delivered one at a time in the order they were
+     * dispatched.
+     */
+    PARTITIONED
+}
@@ -0,0 +1,33 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import lombok.Data;
+
+@Data
+public class ExecutorStats {
+    private final String name;
+    private final int workers;
+    private final int activeWorkers;
+    private final int queueDepth;
+    private final int peakQueueDepth;
+    private final int queueCapacity;
+    private final long submitted;
+    private final long completed;
+    private final long rejected;
+    private final long blocked;
+}
@@ -0,0 +1,195 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Holds back message files until they are completely written. Every file
+ * waits on a {@link TimerWheel} until it has seen no {@code ENTRY_MODIFY}
+ * event and no size or mtime change for a whole quiescence period, so it is
+ * only ever parsed once. Even a file whose mtime is old waits for one period:
+ * mtimes of a second or more of granularity, or skewed by an NFS server's
+ * clock, cannot tell on their own whether the file is still being written.
+ * <p>
+ * Stable files are released on a thread of their own, so a release blocked
+ * by a full parse queue does not hold up the timers of the other files.
+ */
+class FileStabilizer {
+
+    private final static Logger LOGGER = LogManager.getLogger(FileStabilizer.class);
+
+    private final static long TICK_MILLIS = 10;
+    private final static int WHEEL_SIZE = 512;
+
+    private final ConcurrentMap<Path, Pending> pending = new ConcurrentHashMap<>();
+
+    private final long quiescenceMillis;
+    private final Predicate<Path> release;
+
+    private TimerWheel timer;
+    private ExecutorService releaser;
+
+    FileStabilizer(long quiescenceMillis, Predicate<Path> release) {
+        this.quiescenceMillis = quiescenceMillis;
+        this.release = release;
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Starts waiting for the file to be stable. Returns whether the file is
+     * now waiting.
+     */
+    boolean offer(Path file) {
+        if (pending.containsKey(file)) {
+            return false;
+        }
+
+        BasicFileAttributes attributes;
+
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read attributes of {}.", file.getFileName(), e);
+            return false;
+        }
+
+        if (!attributes.isRegularFile()) {
+            return false;
+        }
+
+        Pending entry = new Pending(attributes.size(), attributes.lastModifiedTime().toMillis());
+
+        if (pending.putIfAbsent(file, entry) != null) {
+            return false;
+        }
+
+        timer().schedule(() -> check(file, entry), quiescenceMillis);
+
+        return true;
+    }
+
+    /**
+     * Records a modification of a waiting file, restarting its quiescence
+     * period.
+     */
+    void modified(Path file) {
+        Pending entry = pending.get(file);
+
+        if (entry != null) {
+            entry.changedAt = System.nanoTime();
+        }
+    }
+
+    void stop() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.stop();
+            }
+
+            if (releaser != null) {
+                releaser.shutdownNow();
+            }
+        }
+
+        pending.clear();
+    }
+
+    private synchronized TimerWheel timer() {
+        if (timer == null) {
+            timer = new TimerWheel("visage-stabilizer", TICK_MILLIS, WHEEL_SIZE);
+        }
+
+        return timer;
+    }
+
+    private void check(Path file, Pending entry) {
+        long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.changedAt);
+
+        if (quiet < quiescenceMillis) {
+            timer().schedule(() -> check(file, entry), quiescenceMillis - quiet);
+            return;
+        }
+
+        BasicFileAttributes attributes;
+
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            pending.remove(file, entry);
+            LOGGER.debug("Message {} is gone before it was complete.", file.getFileName());
+            return;
+        }
+
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        if (attributes.size() != entry.size || modified != entry.modified) {
+            entry.size = attributes.size();
+            entry.modified = modified;
+            entry.changedAt = System.nanoTime();
+            timer().schedule(() -> check(file, entry), quiescenceMillis);
+            return;
+        }
+
+        if (pending.remove(file, entry)) {
+            try {
+                releaser().execute(() -> release.test(file));
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Stabilizer stopped before {} was released.", file.getFileName());
+            }
+        }
+    }
+
+    private synchronized ExecutorService releaser() {
+        if (releaser == null) {
+            releaser = Executors.newSingleThreadExecutor(new NamedThreadFactory("visage-stabilizer-release", true));
+        }
+
+        return releaser;
+    }
+
+    private static class Pending {
+
+        private volatile long changedAt = System.nanoTime();
+        private long size;
+        private long modified;
+
+        Pending(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
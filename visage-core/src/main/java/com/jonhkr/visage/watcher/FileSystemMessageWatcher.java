@@ -16,6 +16,7 @@
 
 package com.jonhkr.visage.watcher;
 
+import com.jonhkr.visage.message.Headers;
 import com.jonhkr.visage.message.Message;
 import com.jonhkr.visage.parser.MessageParser;
 import lombok.RequiredArgsConstructor;
@@ -24,48 +25,106 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
-@RequiredArgsConstructor
+/**
+ * Watches one or more directories for new message files.
+ * <p>
+ * Watched directories are spread across {@code watchThreads} shards, each
+ * with its own {@link WatchService} and thread. In recursive mode every
+ * subdirectory of a root is watched as well, and directories created later
+ * are registered and scanned by the shard that owns them as soon as they
+ * show up.
+ */
 public class FileSystemMessageWatcher implements MessageWatcher {
 
     private final static Logger LOGGER = LogManager.getLogger(FileSystemMessageWatcher.class);
 
-    private final ExecutorService workerExecutor = Executors.newSingleThreadExecutor();
-    private final ExecutorService consumersExecutor = Executors.newCachedThreadPool();
-    private final List<Consumer<Message>> consumers = new ArrayList<>();
+    private final static long MTIME_GRANULARITY_MILLIS = 2000;
+    private final static long REGISTRATION_POLL_MILLIS = 100;
+
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
 
-    private final Path path;
-    private final MessageParser messageParser;
+    private final List<Path> roots;
+    private final WatcherConfig config;
+    private final ExecutorService workerExecutor;
+    private final MessagePipeline pipeline;
 
+    private List<Shard> shards;
 
-    private Watcher watcher;
+    public FileSystemMessageWatcher(Path path, MessageParser messageParser) {
+        this(path, messageParser, new WatcherConfig());
+    }
+
+    public FileSystemMessageWatcher(Path path, MessageParser messageParser, WatcherConfig config) {
+        this(Collections.singletonList(path), messageParser, config);
+    }
+
+    public FileSystemMessageWatcher(List<Path> roots, MessageParser messageParser, WatcherConfig config) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one path must be watched");
+        }
+
+        if (config.getWatchThreads() < 1) {
+            throw new IllegalArgumentException("watchThreads must be greater than zero");
+        }
+
+        this.roots = new ArrayList<>(new LinkedHashSet<>(roots));
+        this.config = config;
+        this.workerExecutor = Executors.newFixedThreadPool(config.getWatchThreads(), new NamedThreadFactory("visage-watch"));
+        this.pipeline = new MessagePipeline(messageParser, config);
+
+        pipeline.getMetrics().directories(directories::size);
+    }
 
     @Override
     public void start() {
-        if (watcher != null) {
+        if (shards != null) {
             LOGGER.error("Cannot start an already started watcher.");
             return;
         }
 
-        LOGGER.info("Starting file system watcher on \"{}\".", path);
-        FileSystem fs = path.getFileSystem();
+        LOGGER.info("Starting file system watcher on {}.", roots);
 
         try {
-            WatchService service = fs.newWatchService();
-            path.register(service, ENTRY_CREATE);
+            List<Shard> started = new ArrayList<>(config.getWatchThreads());
+
+            for (int i = 0; i < config.getWatchThreads(); i++) {
+                started.add(new Shard(roots.get(0).getFileSystem().newWatchService()));
+            }
+
+            shards = started;
+
+            for (Path root : roots) {
+                Shard shard = shardOf(root);
+                shard.roots.put(root, shard.watch(root));
+            }
 
-            watcher = new Watcher(service);
+            pipeline.start("FileSystemMessageWatcher", roots.get(0));
 
-            workerExecutor.submit(watcher);
+            for (Shard shard : shards) {
+                workerExecutor.submit(shard);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -74,11 +133,13 @@ public class FileSystemMessageWatcher implements MessageWatcher {
     @Override
     public void stop() {
         try {
-            watcher.stop();
+            for (Shard shard : shards) {
+                shard.stop();
+            }
+
             workerExecutor.shutdown();
-            consumersExecutor.shutdown();
             workerExecutor.awaitTermination(10, TimeUnit.SECONDS);
-            consumersExecutor.awaitTermination(10, TimeUnit.MINUTES);
+            pipeline.shutdown();
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -86,26 +147,76 @@ public class FileSystemMessageWatcher implements MessageWatcher {
 
     @Override
     public void onMessage(Consumer<Message> consumer) {
-        consumers.add(consumer);
+        pipeline.onMessage(null, consumer);
     }
 
-    @RequiredArgsConstructor
-    private class Watcher implements Runnable {
+    @Override
+    public void onMessages(Consumer<List<Message>> consumer) {
+        pipeline.onMessages(null, consumer);
+    }
+
+    @Override
+    public void onMessage(Predicate<Headers> route, Consumer<Message> consumer) {
+        pipeline.onMessage(route, consumer);
+    }
+
+    @Override
+    public void onMessages(Predicate<Headers> route, Consumer<List<Message>> consumer) {
+        pipeline.onMessages(route, consumer);
+    }
+
+    public ExecutorStats getParseStats() {
+        return pipeline.getParseStats();
+    }
+
+    /**
+     * Returns {@code null} unless lane scheduling is enabled.
+     */
+    public ExecutorStats getParseStats(MessageLane lane) {
+        return pipeline.getParseStats(lane);
+    }
+
+    public ExecutorStats getDeliveryStats() {
+        return pipeline.getDeliveryStats();
+    }
+
+    /**
+     * Returns {@code null} unless deduplication is enabled.
+     */
+    public DeduplicationStats getDeduplicationStats() {
+        return pipeline.getDeduplicationStats();
+    }
+
+    private Shard shardOf(Path directory) {
+        return shards.get((directory.hashCode() & Integer.MAX_VALUE) % shards.size());
+    }
+
+    private class Shard implements Runnable {
 
         private final WatchService service;
-        private boolean stop = false;
+        private final Map<Path, Long> roots = new LinkedHashMap<>();
+        private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+        private final Set<Path> scannedDuringWatch = new HashSet<>();
+        private volatile boolean stop = false;
 
         private int retries = 0;
 
+        Shard(WatchService service) {
+            this.service = service;
+        }
+
         @Override
         public void run() {
             while(retries < 3) {
                 try {
+                    scanRoots();
                     loop();
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 } catch (ClosedWatchServiceException e) {
                     LOGGER.info("Watch service closed.");
+                } catch (IOException e) {
+                    LOGGER.error("Failed to scan {}.", roots.keySet(), e);
                 } finally {
                     if (!stop) {
                         LOGGER.warn("Watcher stopped abnormally.");
@@ -128,42 +239,237 @@ public class FileSystemMessageWatcher implements MessageWatcher {
             }
         }
 
-        private void loop() throws InterruptedException {
+        /**
+         * Queues a directory found by another shard. It is registered and
+         * scanned on this shard's thread, so its scan and its watch events
+         * are deduplicated against each other. Its files are only picked up
+         * when {@code scanFiles} is set: directories found while starting
+         * follow {@code scanOnStart}, directories created later are always
+         * scanned.
+         */
+        void submit(Path directory, boolean scanFiles) {
+            registrations.add(new Registration(directory, scanFiles));
+        }
+
+        private void loop() throws InterruptedException, IOException {
             for (;;) {
-                WatchKey key = service.take();
+                WatchKey key = service.poll();
+
+                if (key == null) {
+                    scannedDuringWatch.clear();
+                    registerSubmitted();
+                    key = service.poll(REGISTRATION_POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                    if (key == null) {
+                        if (stop) {
+                            return;
+                        }
+
+                        continue;
+                    }
+                }
 
                 if (stop) {
                     return;
                 }
 
+                Path directory = (Path) key.watchable();
+                boolean overflow = false;
+
                 for (WatchEvent<?> event : key.pollEvents()) {
                     if (stop) {
                         return;
                     }
 
                     if (event.kind() == OVERFLOW) {
+                        pipeline.getMetrics().overflows.increment();
+                        overflow = true;
                         continue;
                     }
 
                     WatchEvent<Path> ev = (WatchEvent<Path>) event;
                     Path filename = ev.context();
+                    Path child = directory.resolve(filename);
+
+                    if (event.kind() == ENTRY_MODIFY) {
+                        pipeline.modified(child);
+                        continue;
+                    }
 
                     LOGGER.debug("New message found with id: {}", filename);
 
-                    Path child = path.resolve(filename);
+                    if (scannedDuringWatch.remove(child)) {
+                        continue;
+                    }
+
+                    if (config.isRecursive() && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!pipeline.isArea(child)) {
+                            shardOf(child).submit(child, true);
+                        }
 
-                    try {
-                        deliver(messageParser.parse(Files.newBufferedReader(child)));
-                    } catch (Exception e) {
-                        LOGGER.debug(e.getMessage(), e);
-                        LOGGER.warn("Failed to parse message with id: {}", filename);
+                        continue;
                     }
+
+                    pipeline.offer(child);
                 }
 
                 if (!key.reset()) {
+                    directories.remove(directory);
+                    pipeline.removeDirectory(directory);
+
+                    if (roots.containsKey(directory)) {
+                        LOGGER.warn("Watched directory \"{}\" is no longer accessible.", directory);
+                        break;
+                    }
+
+                    LOGGER.debug("Stopped watching removed directory \"{}\".", directory);
+                    continue;
+                }
+
+                if (overflow) {
+                    LOGGER.warn("Watch service overflowed, rescanning \"{}\".", directory);
+                    scan(directory, System.currentTimeMillis(), true);
+                }
+            }
+        }
+
+        private void registerSubmitted() throws IOException {
+            Registration registration;
+
+            while (!stop && (registration = registrations.poll()) != null) {
+                try {
+                    register(registration.directory, registration.scanFiles);
+                } catch (NoSuchFileException e) {
+                    LOGGER.debug("Directory \"{}\" was removed before it could be watched.", registration.directory);
+                }
+            }
+        }
+
+        /**
+         * Roots are watched by {@link #start()} already, so no event is lost
+         * while the shard starts up. Only their initial scan runs here, and a
+         * root that went away is watched again on retry.
+         */
+        private void scanRoots() throws IOException {
+            for (Map.Entry<Path, Long> root : roots.entrySet()) {
+                if (!directories.contains(root.getKey())) {
+                    root.setValue(watch(root.getKey()));
+                }
+
+                if (config.isScanOnStart() || config.isRecursive()) {
+                    scan(root.getKey(), root.getValue(), config.isScanOnStart());
+                }
+            }
+        }
+
+        /**
+         * Starts watching the directory and then scans it, so files created
+         * before the registration are not missed. In recursive mode the scan
+         * also hands every subdirectory over to its shard.
+         */
+        private void register(Path directory, boolean scanFiles) throws IOException {
+            long registeredAt = watch(directory);
+
+            if (registeredAt != -1 && (scanFiles || config.isRecursive())) {
+                scan(directory, registeredAt, scanFiles);
+            }
+        }
+
+        /**
+         * Returns when the directory started being watched, or -1 if it was
+         * watched already.
+         */
+        long watch(Path directory) throws IOException {
+            if (!directories.add(directory)) {
+                return -1;
+            }
+
+            try {
+                long registeredAt = System.currentTimeMillis();
+
+                if (pipeline.isStabilizing()) {
+                    directory.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+                } else {
+                    directory.register(service, ENTRY_CREATE);
+                }
+
+                pipeline.addDirectory(directory);
+
+                return registeredAt;
+            } catch (IOException e) {
+                directories.remove(directory);
+                pipeline.removeDirectory(directory);
+                throw e;
+            }
+        }
+
+        /**
+         * Files modified after {@code since} may also have a pending create
+         * event. Those are remembered until the event shows up or the watch
+         * service has no more queued keys, so they are not delivered twice.
+         */
+        private void scan(Path directory, long since, boolean scanFiles) throws IOException {
+            int batchSize = config.getScanBatchSize();
+            List<Path> batch = new ArrayList<>(batchSize);
+            long found = 0;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path child : stream) {
+                    if (stop) {
+                        return;
+                    }
+
+                    BasicFileAttributes attributes;
+
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+
+                    if (attributes.isDirectory() && config.isRecursive() && !pipeline.isArea(child)) {
+                        shardOf(child).submit(child, scanFiles);
+                        continue;
+                    }
+
+                    if (!scanFiles || !attributes.isRegularFile()) {
+                        continue;
+                    }
+
+                    if (attributes.lastModifiedTime().toMillis() >= since - MTIME_GRANULARITY_MILLIS) {
+                        scannedDuringWatch.add(child);
+                    }
+
+                    batch.add(child);
+
+                    if (batch.size() == batchSize) {
+                        found += processAll(batch);
+                        batch.clear();
+                    }
+                }
+            }
+
+            found += processAll(batch);
+
+            if (scanFiles) {
+                LOGGER.info("Scan of \"{}\" found {} pending messages.", directory, found);
+            }
+        }
+
+        private int processAll(List<Path> batch) {
+            int processed = 0;
+
+            for (Path child : batch) {
+                if (stop) {
                     break;
                 }
+
+                if (pipeline.offer(child)) {
+                    processed++;
+                }
             }
+
+            return processed;
         }
 
         void stop() throws IOException {
@@ -172,9 +478,9 @@ public class FileSystemMessageWatcher implements MessageWatcher {
         }
     }
 
-    private void deliver(Message message) {
-        consumersExecutor.submit(() ->
-                consumers.forEach((c) -> consumersExecutor.submit(() -> c.accept(message))));
+    @RequiredArgsConstructor
+    private static class Registration {
+        private final Path directory;
+        private final boolean scanFiles;
     }
-
 }
@@ -0,0 +1,258 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.journal.JournalConfig;
+import com.jonhkr.visage.journal.JournalOffset;
+import com.jonhkr.visage.journal.JournalReader;
+import com.jonhkr.visage.journal.JournalRecord;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.MessageParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Watches a segmented journal written by
+ * {@link com.jonhkr.visage.journal.JournalWriter} instead of a directory of
+ * message files. Records are parsed straight from the mapped segments and
+ * the consumer offset is committed once every consumer is done with them.
+ * <p>
+ * Records whose delivery failed for the last time are written to the
+ * {@code failed} directory of the journal, next to an {@code .error} sidecar,
+ * before they are committed. Records that could not be queued for delivery
+ * are dispatched again later, and the journal is not read before a consumer
+ * is registered.
+ */
+public class JournalMessageWatcher implements MessageWatcher {
+
+    private final static Logger LOGGER = LogManager.getLogger(JournalMessageWatcher.class);
+
+    private final ExecutorService workerExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("visage-journal"));
+
+    private final Path directory;
+    private final MessageParser messageParser;
+    private final JournalConfig journalConfig;
+    private final WatcherConfig config;
+    private final WatcherMetrics metrics;
+    private final MessageDispatcher dispatcher;
+
+    private JournalReader reader;
+    private volatile boolean stop = false;
+
+    public JournalMessageWatcher(Path directory, MessageParser messageParser) {
+        this(directory, messageParser, new JournalConfig(), new WatcherConfig());
+    }
+
+    public JournalMessageWatcher(Path directory, MessageParser messageParser, JournalConfig journalConfig,
+                                 WatcherConfig config) {
+        this.directory = directory;
+        this.messageParser = messageParser;
+        this.journalConfig = journalConfig;
+        this.config = config;
+        this.metrics = new WatcherMetrics(config);
+        this.dispatcher = new MessageDispatcher(config, metrics);
+    }
+
+    @Override
+    public void start() {
+        if (reader != null) {
+            LOGGER.error("Cannot start an already started watcher.");
+            return;
+        }
+
+        LOGGER.info("Starting journal watcher on \"{}\".", directory);
+
+        try {
+            reader = new JournalReader(directory, journalConfig);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        metrics.registerMBean("JournalMessageWatcher", directory);
+
+        dispatcher.getScheduler().scheduleWithFixedDelay(this::flush,
+                journalConfig.getOffsetCommitIntervalMillis(),
+                journalConfig.getOffsetCommitIntervalMillis(),
+                TimeUnit.MILLISECONDS);
+
+        workerExecutor.submit(this::loop);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            stop = true;
+            workerExecutor.shutdown();
+            workerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            dispatcher.shutdown(10, TimeUnit.MINUTES);
+            reader.close();
+            metrics.unregisterMBean();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void onMessage(Consumer<Message> consumer) {
+        dispatcher.onMessage(null, consumer);
+    }
+
+    @Override
+    public void onMessages(Consumer<List<Message>> consumer) {
+        dispatcher.onMessages(null, consumer);
+    }
+
+    @Override
+    public void onMessage(Predicate<Headers> route, Consumer<Message> consumer) {
+        dispatcher.onMessage(route, consumer);
+    }
+
+    @Override
+    public void onMessages(Predicate<Headers> route, Consumer<List<Message>> consumer) {
+        dispatcher.onMessages(route, consumer);
+    }
+
+    public ExecutorStats getDeliveryStats() {
+        return dispatcher.getStats();
+    }
+
+    private void loop() {
+        long idle = journalConfig.getPollIntervalMillis();
+
+        while (!stop) {
+            try {
+                if (!dispatcher.hasConsumers()) {
+                    TimeUnit.MILLISECONDS.sleep(journalConfig.getMaxPollIntervalMillis());
+                    continue;
+                }
+
+                JournalRecord record = reader.poll();
+
+                if (record == null) {
+                    TimeUnit.MILLISECONDS.sleep(idle);
+                    idle = Math.min(idle * 2, journalConfig.getMaxPollIntervalMillis());
+                    continue;
+                }
+
+                idle = journalConfig.getPollIntervalMillis();
+                deliver(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Failed to read journal \"{}\".", directory, e);
+                idle = journalConfig.getMaxPollIntervalMillis();
+            }
+        }
+    }
+
+    private void deliver(JournalRecord record) {
+        long start = System.nanoTime();
+        Message message;
+
+        try {
+            message = messageParser.parse(record.getData());
+            metrics.messagesParsed.increment();
+        } catch (Exception e) {
+            metrics.parseFailures.increment();
+            LOGGER.debug(e.getMessage(), e);
+            LOGGER.warn("Failed to parse journal record at {}.", record.getOffset());
+            reader.commit(record);
+            return;
+        } finally {
+            metrics.parseTime.recordSince(start);
+        }
+
+        dispatch(record, message);
+    }
+
+    private void dispatch(JournalRecord record, Message message) {
+        dispatcher.dispatch(message, (failure) -> {
+            if (failure == null) {
+                reader.commit(record);
+            } else if (failure instanceof RejectedExecutionException) {
+                redispatch(record, message);
+            } else if (deadLetter(record, failure)) {
+                reader.commit(record);
+            }
+        });
+    }
+
+    private void redispatch(JournalRecord record, Message message) {
+        try {
+            if (!stop) {
+                dispatcher.getScheduler().schedule(() -> dispatch(record, message),
+                        journalConfig.getMaxPollIntervalMillis(), TimeUnit.MILLISECONDS);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Scheduler stopped before record {} was dispatched again.", record.getOffset());
+        }
+
+        LOGGER.warn("Journal record at {} was not delivered, it is delivered again after a restart.", record.getOffset());
+    }
+
+    /**
+     * Writes a record that could not be delivered to the failed directory.
+     * Returns whether it was written, records that were not are left
+     * uncommitted.
+     */
+    private boolean deadLetter(JournalRecord record, Throwable failure) {
+        JournalOffset offset = record.getOffset();
+        Path failed = directory.resolve(config.getFailedDirectoryName());
+        Path file = failed.resolve(String.format("%020d-%010d", offset.getSegment(), offset.getPosition()));
+        ByteBuffer data = record.getData();
+        byte[] bytes = new byte[data.remaining()];
+
+        data.get(bytes);
+
+        try {
+            Files.createDirectories(failed);
+            SpoolLifecycle.writeError(file.resolveSibling(file.getFileName() + SpoolLifecycle.ERROR_SUFFIX),
+                    file.getFileName().toString(), failure);
+            Files.write(file, bytes);
+        } catch (IOException e) {
+            LOGGER.error("Failed to dead-letter journal record at {}.", offset, e);
+            return false;
+        }
+
+        metrics.deadLetters.increment();
+
+        return true;
+    }
+
+    private void flush() {
+        try {
+            reader.flush();
+        } catch (Exception e) {
+            LOGGER.error("Failed to commit journal offset.", e);
+        }
+    }
+}
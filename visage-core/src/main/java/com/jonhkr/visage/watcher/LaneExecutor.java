@@ -0,0 +1,400 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Worker pool shared by one bounded queue per {@link MessageLane}, so a
+ * backlog of big files does not hold small ones back.
+ * <p>
+ * Each lane has a weight and a worker budget, both indexed by
+ * {@link MessageLane#ordinal()}. A lane never runs more tasks at once than
+ * its budget, and idle workers pick the next lane by smooth weighted round
+ * robin among the lanes that have queued tasks and a free slot: with weights
+ * 8, 4 and 1 and all lanes busy, 8 of every 13 tasks started are urgent.
+ * <p>
+ * Every lane queues up to {@code capacity} tasks, when a lane is full the
+ * {@link RejectionPolicy} applies as in {@link BoundedExecutor}.
+ */
+public class LaneExecutor implements StageExecutor {
+
+    private final static Logger LOGGER = LogManager.getLogger(LaneExecutor.class);
+
+    private final static MessageLane[] LANES = MessageLane.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final String name;
+    private final int capacity;
+    private final RejectionPolicy policy;
+    private final Timer queueWait;
+    private final Thread[] workers;
+    private final Lane[] lanes = new Lane[LANES.length];
+
+    private int queued;
+    private boolean shutdown = false;
+
+    public LaneExecutor(String name, int workers, int capacity, RejectionPolicy policy, Timer queueWait,
+                        int[] weights, int[] budgets) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be greater than zero");
+        }
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than zero");
+        }
+
+        if (weights.length != LANES.length || budgets.length != LANES.length) {
+            throw new IllegalArgumentException("a weight and a budget is required for every lane");
+        }
+
+        for (int i = 0; i < LANES.length; i++) {
+            if (weights[i] < 1 || budgets[i] < 1) {
+                throw new IllegalArgumentException("lane weights and budgets must be greater than zero");
+            }
+
+            lanes[i] = new Lane(weights[i], Math.min(budgets[i], workers));
+        }
+
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.queueWait = queueWait;
+        this.workers = new Thread[workers];
+
+        NamedThreadFactory threads = new NamedThreadFactory(name);
+
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = threads.newThread(this::work);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Runs the task on the {@link MessageLane#NORMAL} lane.
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(MessageLane.NORMAL, task);
+    }
+
+    public void execute(MessageLane messageLane, Runnable task) {
+        Lane lane = lanes[messageLane.ordinal()];
+
+        if (offer(messageLane, lane, task)) {
+            return;
+        }
+
+        try {
+            task.run();
+        } finally {
+            lock.lock();
+
+            try {
+                lane.completed++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues the task on the {@link MessageLane#NORMAL} lane if it has room.
+     */
+    @Override
+    public boolean offer(Runnable task) {
+        Lane lane = lanes[MessageLane.NORMAL.ordinal()];
+
+        lock.lock();
+
+        try {
+            if (shutdown) {
+                lane.rejected++;
+                throw new RejectedExecutionException(name + " has been shut down");
+            }
+
+            if (lane.queue.size() >= capacity) {
+                return false;
+            }
+
+            enqueue(lane, task);
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ExecutorStats getStats() {
+        lock.lock();
+
+        try {
+            int active = 0;
+            int peak = 0;
+            long submitted = 0;
+            long completed = 0;
+            long rejected = 0;
+            long blocked = 0;
+
+            for (Lane lane : lanes) {
+                active += lane.running;
+                peak = Math.max(peak, lane.peakQueueDepth);
+                submitted += lane.submitted;
+                completed += lane.completed;
+                rejected += lane.rejected;
+                blocked += lane.blocked;
+            }
+
+            return new ExecutorStats(name, workers.length, active, queued, peak, capacity * lanes.length,
+                    submitted, completed, rejected, blocked);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ExecutorStats getStats(MessageLane messageLane) {
+        lock.lock();
+
+        try {
+            Lane lane = lanes[messageLane.ordinal()];
+
+            return new ExecutorStats(name + "-" + messageLane.name().toLowerCase(), lane.budget, lane.running,
+                    lane.queue.size(), lane.peakQueueDepth, capacity,
+                    lane.submitted, lane.completed, lane.rejected, lane.blocked);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+
+        try {
+            shutdown = true;
+            available.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            worker.join(remaining);
+
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues the task, returns {@code false} if the lane is full and the
+     * caller must run it.
+     */
+    private boolean offer(MessageLane messageLane, Lane lane, Runnable task) {
+        lock.lock();
+
+        try {
+            if (shutdown) {
+                lane.rejected++;
+                throw new RejectedExecutionException(name + " has been shut down");
+            }
+
+            if (lane.queue.size() >= capacity) {
+                switch (policy) {
+                    case REJECT:
+                        lane.rejected++;
+                        throw new RejectedExecutionException(name + " " + messageLane + " lane is full");
+                    case CALLER_RUNS:
+                        lane.submitted++;
+                        return false;
+                    default:
+                        lane.blocked++;
+                        awaitRoom(lane);
+                }
+            }
+
+            enqueue(lane, task);
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Lane lane, Runnable task) {
+        lane.queue.add(new Task(task, System.nanoTime()));
+        lane.submitted++;
+        lane.peakQueueDepth = Math.max(lane.peakQueueDepth, lane.queue.size());
+        queued++;
+        available.signal();
+    }
+
+    private void awaitRoom(Lane lane) {
+        while (lane.queue.size() >= capacity) {
+            if (shutdown) {
+                lane.rejected++;
+                throw new RejectedExecutionException(name + " has been shut down");
+            }
+
+            try {
+                notFull.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lane.rejected++;
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+
+    private void work() {
+        for (;;) {
+            int index;
+            Task task;
+
+            lock.lock();
+
+            try {
+                while ((index = next()) < 0) {
+                    if (shutdown && queued == 0) {
+                        return;
+                    }
+
+                    available.awaitUninterruptibly();
+                }
+
+                task = lanes[index].queue.poll();
+                lanes[index].running++;
+                queued--;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                queueWait.recordSince(task.queuedAt);
+                task.task.run();
+            } catch (Throwable e) {
+                LOGGER.error("Task failed on {}.", Thread.currentThread().getName(), e);
+            } finally {
+                done(lanes[index]);
+            }
+        }
+    }
+
+    private void done(Lane lane) {
+        lock.lock();
+
+        try {
+            lane.running--;
+            lane.completed++;
+
+            if (queued > 0) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the lane the next task is taken from, -1 if no lane with queued
+     * tasks has a free slot. Must be called with the lock held.
+     */
+    private int next() {
+        int total = 0;
+        int best = -1;
+
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = lanes[i];
+
+            if (lane.queue.isEmpty() || lane.running >= lane.budget) {
+                continue;
+            }
+
+            lane.current += lane.weight;
+            total += lane.weight;
+
+            if (best == -1 || lane.current > lanes[best].current) {
+                best = i;
+            }
+        }
+
+        if (best != -1) {
+            lanes[best].current -= total;
+        }
+
+        return best;
+    }
+
+    private static class Lane {
+
+        private final Queue<Task> queue = new ArrayDeque<>();
+        private final int weight;
+        private final int budget;
+
+        private int current;
+        private int running;
+        private int peakQueueDepth;
+        private long submitted;
+        private long completed;
+        private long rejected;
+        private long blocked;
+
+        Lane(int weight, int budget) {
+            this.weight = weight;
+            this.budget = budget;
+        }
+    }
+
+    private static class Task {
+
+        private final Runnable task;
+        private final long queuedAt;
+
+        Task(Runnable task, long queuedAt) {
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Accumulates messages for a batch consumer. A batch is handed to the
+ * consumer as soon as it reaches {@code maxCount} messages or
+ * {@code maxBytes}, or {@code lingerMillis} after its first message arrived,
+ * whichever happens first. Lingering batches are flushed from the
+ * scheduler thread, which never waits for room in the delivery queue, see
+ * {@link RetryScheduler#offer(Runnable, DeliveryCallback)}.
+ */
+class MessageBatcher {
+
+    private final Consumer<List<Message>> consumer;
+    private final int maxCount;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final RetryScheduler retries;
+    private final ScheduledExecutorService scheduler;
+
+    private List<Message> messages;
+    private List<DeliveryCallback> callbacks;
+    private long bytes;
+    private long generation;
+
+    MessageBatcher(Consumer<List<Message>> consumer, int maxCount, long maxBytes, long lingerMillis,
+                   Executor executor, ScheduledExecutorService scheduler) {
+        this(consumer, maxCount, maxBytes, lingerMillis, new RetryScheduler(executor, scheduler), scheduler);
+    }
+
+    MessageBatcher(Consumer<List<Message>> consumer, int maxCount, long maxBytes, long lingerMillis,
+                   RetryScheduler retries, ScheduledExecutorService scheduler) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("maxCount must be greater than zero");
+        }
+
+        this.consumer = consumer;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.retries = retries;
+        this.scheduler = scheduler;
+        reset();
+    }
+
+    void add(Message message, DeliveryCallback onComplete) {
+        long size = sizeOf(message);
+        Batch full = null;
+        Batch overflow = null;
+
+        synchronized (this) {
+            if (!messages.isEmpty() && bytes + size > maxBytes) {
+                overflow = drain();
+            }
+
+            if (messages.isEmpty() && lingerMillis > 0) {
+                long scheduled = generation;
+                scheduler.schedule(() -> flush(scheduled), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+
+            messages.add(message);
+            callbacks.add(onComplete);
+            bytes += size;
+
+            if (messages.size() >= maxCount || bytes >= maxBytes || lingerMillis <= 0) {
+                full = drain();
+            }
+        }
+
+        submit(overflow);
+        submit(full);
+    }
+
+    void flush() {
+        Batch batch;
+
+        synchronized (this) {
+            batch = messages.isEmpty() ? null : drain();
+        }
+
+        submit(batch);
+    }
+
+    private void flush(long scheduled) {
+        Batch batch;
+
+        synchronized (this) {
+            if (scheduled != generation || messages.isEmpty()) {
+                return;
+            }
+
+            batch = drain();
+        }
+
+        retries.offer(() -> consumer.accept(batch.messages), batch::complete);
+    }
+
+    private Batch drain() {
+        Batch batch = new Batch(messages, callbacks);
+        generation++;
+        reset();
+
+        return batch;
+    }
+
+    private void reset() {
+        messages = new ArrayList<>(Math.min(maxCount, 1024));
+        callbacks = new ArrayList<>(Math.min(maxCount, 1024));
+        bytes = 0;
+    }
+
+    private void submit(Batch batch) {
+        if (batch == null) {
+            return;
+        }
+
+        retries.submit(() -> consumer.accept(batch.messages), batch::complete);
+    }
+
+    static long sizeOf(Message message) {
+        long size = message.getPayload() == null ? 0 : message.getPayload().getSize();
+
+        for (Header header : message.getHeaders()) {
+            size += header.getName().length() + header.getValue().length() + 2;
+        }
+
+        return size;
+    }
+
+    private static class Batch {
+
+        private final List<Message> messages;
+        private final List<DeliveryCallback> callbacks;
+
+        Batch(List<Message> messages, List<DeliveryCallback> callbacks) {
+            this.messages = messages;
+            this.callbacks = callbacks;
+        }
+
+        void complete(Throwable failure) {
+            callbacks.forEach((callback) -> callback.onComplete(failure));
+        }
+    }
+}
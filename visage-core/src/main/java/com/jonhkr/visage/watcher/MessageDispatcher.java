@@ -0,0 +1,299 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import lombok.RequiredArgsConstructor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Delivery stage shared by the watchers. Hands every message to the
+ * registered consumers on a {@link BoundedExecutor}, or on virtual threads in
+ * {@link DeliveryMode#VIRTUAL_THREADS} mode, and calls back once all of them
+ * are done with it.
+ * <p>
+ * In {@link DeliveryMode#PARTITIONED} mode every message goes to the
+ * {@link PartitionedExecutor} lane picked by its partition header, and every
+ * batch consumer is pinned to one lane, so deliveries keep the order in
+ * which messages were dispatched. Lanes are not reserved: the n-th batch
+ * consumer registered runs on lane n modulo the lane count, next to the
+ * other batch consumers and the keyed messages mapped to that lane, and
+ * waits behind them. Messages parsed by different parser workers may reach
+ * the dispatcher out of file order; use a single parser worker when that
+ * order matters.
+ * <p>
+ * Consumers may be registered with a route, a predicate on the message
+ * headers; a message is only handed to the consumers whose route matches.
+ * <p>
+ * A consumer that throws gets the message again after a backoff, see
+ * {@link RetryScheduler}; other consumers of the same message are not
+ * called again. Retries still waiting for their backoff at shutdown fail
+ * with a {@link RejectedExecutionException}, so their claims are given up.
+ */
+class MessageDispatcher {
+
+    private final static Logger LOGGER = LogManager.getLogger(MessageDispatcher.class);
+
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+    private final List<MessageBatcher> batchers = new CopyOnWriteArrayList<>();
+    private final List<RetryScheduler> retrySchedulers = new CopyOnWriteArrayList<>();
+
+    private final WatcherConfig config;
+    private final WatcherMetrics metrics;
+    private final StageExecutor consumersExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final RetryScheduler retries;
+    private final PartitionedExecutor partitioned;
+
+    MessageDispatcher(WatcherConfig config, WatcherMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.consumersExecutor = consumersExecutor(config, metrics);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("visage-scheduler", true));
+        this.retries = new RetryScheduler(consumersExecutor, scheduler, config, metrics.deliveryRetries);
+        this.partitioned = consumersExecutor instanceof PartitionedExecutor
+                ? (PartitionedExecutor) consumersExecutor
+                : null;
+
+        retrySchedulers.add(retries);
+
+        metrics.executor("delivery", consumersExecutor);
+    }
+
+    void onMessage(Predicate<Headers> route, Consumer<Message> listener) {
+        Consumer<Message> consumer = instrument(listener);
+
+        routes.add(new Route(route, (message, done) ->
+                retries.submit(laneFor(message), () -> consumer.accept(message), done)));
+    }
+
+    void onMessages(Predicate<Headers> route, Consumer<List<Message>> consumer) {
+        RetryScheduler batchRetries = retries;
+
+        if (partitioned != null) {
+            batchRetries = new RetryScheduler(partitioned.lane(batchers.size()), scheduler, config, metrics.deliveryRetries);
+            retrySchedulers.add(batchRetries);
+        }
+
+        MessageBatcher batcher = new MessageBatcher(instrument(consumer),
+                config.getBatchMaxCount(),
+                config.getBatchMaxBytes(),
+                config.getBatchLingerMillis(),
+                batchRetries,
+                scheduler);
+
+        batchers.add(batcher);
+        routes.add(new Route(route, batcher::add));
+    }
+
+    boolean hasConsumers() {
+        return !routes.isEmpty();
+    }
+
+    /**
+     * Whether every consumer has a route, in which case a message nobody
+     * routes to does not need its payload read at all.
+     */
+    boolean isRouted() {
+        List<Route> current = routes;
+
+        if (current.isEmpty()) {
+            return false;
+        }
+
+        for (Route route : current) {
+            if (route.predicate == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether any route matches the headers. A route that throws counts as a
+     * match, so the message is dispatched and its failure reported there.
+     */
+    boolean accepts(Headers headers) {
+        for (Route route : routes) {
+            try {
+                if (route.matches(headers)) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.debug("Route failed on headers {}.", headers, e);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Hands the message to every consumer whose route matches it. A message
+     * no route matches is complete right away, a route that throws fails the
+     * message without delivering it to anyone, and a message dispatched
+     * before any consumer was registered completes with a
+     * {@link RejectedExecutionException}, so its claim is given up instead of
+     * acked.
+     */
+    void dispatch(Message message, DeliveryCallback callback) {
+        List<Route> current = routes;
+
+        if (current.isEmpty()) {
+            LOGGER.warn("No consumer registered, message left unacknowledged.");
+            callback.onComplete(new RejectedExecutionException("No consumer registered"));
+            return;
+        }
+
+        List<Subscriber> targets = new ArrayList<>(current.size());
+
+        try {
+            for (Route route : current) {
+                if (route.matches(message.getHeaders())) {
+                    targets.add(route.subscriber);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Route failed, message not delivered.", e);
+            callback.onComplete(e);
+            return;
+        }
+
+        if (targets.isEmpty()) {
+            callback.onComplete(null);
+            return;
+        }
+
+        AtomicInteger pending = new AtomicInteger(targets.size());
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        DeliveryCallback done = (failure) -> {
+            if (failure != null) {
+                firstFailure.compareAndSet(null, failure);
+            }
+
+            if (pending.decrementAndGet() == 0) {
+                callback.onComplete(firstFailure.get());
+            }
+        };
+
+        for (Subscriber subscriber : targets) {
+            subscriber.deliver(message, done);
+        }
+    }
+
+    ExecutorStats getStats() {
+        return consumersExecutor.getStats();
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        batchers.forEach(MessageBatcher::flush);
+        scheduler.shutdownNow();
+        retrySchedulers.forEach(RetryScheduler::shutdown);
+        consumersExecutor.shutdown();
+        consumersExecutor.awaitTermination(timeout, unit);
+    }
+
+    private Executor laneFor(Message message) {
+        if (partitioned == null) {
+            return consumersExecutor;
+        }
+
+        return partitioned.lane(message.getHeaders().getValue(config.getPartitionHeader()));
+    }
+
+    private static StageExecutor consumersExecutor(WatcherConfig config, WatcherMetrics metrics) {
+        if (config.getDeliveryMode() == DeliveryMode.PARTITIONED) {
+            return new PartitionedExecutor("visage-delivery",
+                    config.getPartitionLanes(),
+                    config.getDeliveryQueueCapacity(),
+                    config.getDeliveryRejectionPolicy(),
+                    metrics.deliveryQueueWait);
+        }
+
+        if (config.getDeliveryMode() == DeliveryMode.VIRTUAL_THREADS) {
+            if (VirtualThreadExecutor.isSupported()) {
+                return new VirtualThreadExecutor("visage-delivery",
+                        config.getVirtualThreadConcurrency(),
+                        config.getDeliveryRejectionPolicy(),
+                        metrics.deliveryQueueWait);
+            }
+
+            LOGGER.warn("Virtual threads are not supported by this JVM, delivering on {} pooled workers.",
+                    config.getDeliveryWorkers());
+        }
+
+        return new BoundedExecutor("visage-delivery",
+                config.getDeliveryWorkers(),
+                config.getDeliveryQueueCapacity(),
+                config.getDeliveryRejectionPolicy(),
+                metrics.deliveryQueueWait);
+    }
+
+    private <T> Consumer<T> instrument(Consumer<T> consumer) {
+        return (value) -> {
+            long start = System.nanoTime();
+
+            try {
+                consumer.accept(value);
+                metrics.deliveries.increment();
+            } catch (RuntimeException | Error e) {
+                metrics.deliveryFailures.increment();
+                throw e;
+            } finally {
+                metrics.consumerTime.recordSince(start);
+            }
+        };
+    }
+
+    private interface Subscriber {
+        void deliver(Message message, DeliveryCallback done);
+    }
+
+    @RequiredArgsConstructor
+    private static class Route {
+
+        /**
+         * {@code null} for consumers that receive every message.
+         */
+        private final Predicate<Headers> predicate;
+        private final Subscriber subscriber;
+
+        boolean matches(Headers headers) {
+            return predicate == null || predicate.test(headers);
+        }
+    }
+}
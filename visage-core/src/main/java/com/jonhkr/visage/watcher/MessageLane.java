@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+/**
+ * Parse lanes message files are sorted into when {@code laneScheduling} is
+ * enabled, see {@link LaneExecutor}.
+ */
+public enum MessageLane {
+    /**
+     * Files whose {@code priorityHeader} is at least {@code urgentPriority}.
+     */
+    URGENT,
+
+    /**
+     * Everything that is neither urgent nor bulk.
+     */
+    NORMAL,
+
+    /**
+     * Files of {@code bulkThresholdBytes} or more, whatever their priority.
+     */
+    BULK
+}
@@ -0,0 +1,452 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.MessageParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Parse and delivery path shared by the directory watchers. Watchers only
+ * find message files and hand them to {@link #offer(Path)}; waiting for the
+ * file to be complete, claiming, parsing, routing, delivery and resolving the
+ * claim all happen here.
+ * <p>
+ * Files ending with one of the temporary suffixes are never picked up, so
+ * producers can write to a temporary name and rename the file once it is
+ * complete; by default files are handed to the parser as soon as they are
+ * found. Producers writing in place opt in to a {@code quiescenceMillis},
+ * files are then held back by a {@link FileStabilizer} until they stopped
+ * changing for that long, renamed files included.
+ * <p>
+ * With {@code laneScheduling} set, files are sorted into
+ * {@link MessageLane}s before they are parsed: files of
+ * {@code bulkThresholdBytes} or more, by a stat, into the bulk lane, the
+ * others into the normal lane, see {@link LaneExecutor}. Only when a
+ * {@code priorityHeader} is configured are files whose header is at least
+ * {@code urgentPriority} sorted into the urgent lane. That header is read
+ * by the thread that found the file, before the file is claimed, so it
+ * costs the watch thread a read per file.
+ * <p>
+ * With {@code deduplicate} set, messages already seen within the
+ * deduplication window are acked without being delivered, see
+ * {@link Deduplicator}.
+ */
+class MessagePipeline {
+
+    private final static Logger LOGGER = LogManager.getLogger(MessagePipeline.class);
+
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Path, SpoolLifecycle> lifecycles = new ConcurrentHashMap<>();
+
+    private final MessageParser messageParser;
+    private final WatcherConfig config;
+    private final WatcherMetrics metrics;
+    private final StageExecutor parserExecutor;
+    private final LaneExecutor laneExecutor;
+    private final MessageDispatcher dispatcher;
+    private final FileStabilizer stabilizer;
+    private final Deduplicator deduplicator;
+
+    MessagePipeline(MessageParser messageParser, WatcherConfig config) {
+        this.messageParser = messageParser;
+        this.config = config;
+        this.metrics = new WatcherMetrics(config);
+
+        if (config.isLaneScheduling()) {
+            this.laneExecutor = laneExecutor(config, metrics);
+            this.parserExecutor = laneExecutor;
+        } else {
+            this.laneExecutor = null;
+            this.parserExecutor = new BoundedExecutor("visage-parser",
+                    config.getParserWorkers(),
+                    config.getParseQueueCapacity(),
+                    config.getParseRejectionPolicy(),
+                    metrics.parseQueueWait);
+        }
+
+        this.dispatcher = new MessageDispatcher(config, metrics);
+        this.stabilizer = new FileStabilizer(config.getQuiescenceMillis(), this::process);
+
+        metrics.executor("parse", parserExecutor);
+
+        if (laneExecutor != null) {
+            metrics.lanes(laneExecutor);
+        }
+
+        metrics.stabilizing(stabilizer::size);
+
+        if (config.isDeduplicate()) {
+            this.deduplicator = new Deduplicator(config);
+            metrics.deduplication(deduplicator.getCache());
+        } else {
+            this.deduplicator = null;
+        }
+    }
+
+    WatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    void start(String type, Path path) {
+        if (config.isClaimFiles()) {
+            dispatcher.getScheduler().scheduleWithFixedDelay(this::reclaimStale,
+                    config.getReclaimIntervalMillis(), config.getReclaimIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        if (deduplicator != null) {
+            deduplicator.start(dispatcher.getScheduler());
+        }
+
+        metrics.registerMBean(type, path);
+    }
+
+    void shutdown() throws InterruptedException {
+        stabilizer.stop();
+        parserExecutor.shutdown();
+        parserExecutor.awaitTermination(10, TimeUnit.MINUTES);
+        dispatcher.shutdown(10, TimeUnit.MINUTES);
+
+        if (deduplicator != null) {
+            deduplicator.stop();
+        }
+
+        metrics.unregisterMBean();
+    }
+
+    void onMessage(Predicate<Headers> route, Consumer<Message> consumer) {
+        dispatcher.onMessage(route, consumer);
+    }
+
+    void onMessages(Predicate<Headers> route, Consumer<List<Message>> consumer) {
+        dispatcher.onMessages(route, consumer);
+    }
+
+    ExecutorStats getParseStats() {
+        return parserExecutor.getStats();
+    }
+
+    ExecutorStats getParseStats(MessageLane lane) {
+        return laneExecutor == null ? null : laneExecutor.getStats(lane);
+    }
+
+    ExecutorStats getDeliveryStats() {
+        return dispatcher.getStats();
+    }
+
+    DeduplicationStats getDeduplicationStats() {
+        return deduplicator == null ? null : deduplicator.getCache().getStats();
+    }
+
+    /**
+     * Sets up the claim areas of a newly watched directory when claiming is
+     * enabled.
+     */
+    void addDirectory(Path directory) throws IOException {
+        if (!config.isClaimFiles()) {
+            return;
+        }
+
+        SpoolLifecycle lifecycle = new SpoolLifecycle(directory, config);
+        lifecycle.init();
+        lifecycles.put(directory, lifecycle);
+    }
+
+    void removeDirectory(Path directory) {
+        lifecycles.remove(directory);
+    }
+
+    /**
+     * Whether the path is one of the areas the watcher moves files into: the
+     * claim areas of a spool directory, or the dead-letter directory of any
+     * watched directory when files are not claimed.
+     */
+    boolean isArea(Path path) {
+        if (!config.isClaimFiles()) {
+            return path.getFileName() != null && path.getFileName().toString().equals(config.getFailedDirectoryName());
+        }
+
+        SpoolLifecycle lifecycle = lifecycles.get(path.getParent());
+
+        return lifecycle != null && lifecycle.isArea(path);
+    }
+
+    /**
+     * Whether file modifications must be reported through
+     * {@link #modified(Path)}.
+     */
+    boolean isStabilizing() {
+        return config.getQuiescenceMillis() > 0;
+    }
+
+    /**
+     * Queues a message file for parsing once it is complete. Returns whether
+     * the file was accepted, see {@link #process(Path)}.
+     */
+    boolean offer(Path child) {
+        if (isTemporary(child) || isArea(child)) {
+            return false;
+        }
+
+        if (!isStabilizing()) {
+            return process(child);
+        }
+
+        if (inFlight.contains(child)) {
+            return false;
+        }
+
+        return stabilizer.offer(child);
+    }
+
+    void modified(Path child) {
+        stabilizer.modified(child);
+    }
+
+    boolean isTemporary(Path child) {
+        String name = child.getFileName().toString();
+
+        for (String suffix : config.getTemporarySuffixes()) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Queues a message file for parsing. Returns whether the file was
+     * accepted, {@code false} if it is a claim area, already in flight or
+     * the parse queue rejected it.
+     */
+    boolean process(Path child) {
+        if (isArea(child)) {
+            return false;
+        }
+
+        if (!inFlight.add(child)) {
+            LOGGER.debug("Message already in flight: {}", child.getFileName());
+            return false;
+        }
+
+        metrics.filesDetected.increment();
+
+        try {
+            if (laneExecutor != null) {
+                laneExecutor.execute(classify(child), () -> parse(child));
+            } else {
+                parserExecutor.execute(() -> parse(child));
+            }
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(child);
+            LOGGER.warn("Parse queue is full, message skipped: {}", child.getFileName());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Picks the parse lane of a message file. Files that cannot be read
+     * here are left to fail while being parsed and go to the normal lane.
+     */
+    MessageLane classify(Path child) {
+        try {
+            if (Files.size(child) >= config.getBulkThresholdBytes()) {
+                return MessageLane.BULK;
+            }
+        } catch (IOException e) {
+            return MessageLane.NORMAL;
+        }
+
+        if (config.getPriorityHeader() == null) {
+            return MessageLane.NORMAL;
+        }
+
+        String priority;
+
+        try {
+            priority = messageParser.parseHeaders(child).getValue(config.getPriorityHeader());
+        } catch (Exception e) {
+            return MessageLane.NORMAL;
+        }
+
+        if (priority == null) {
+            return MessageLane.NORMAL;
+        }
+
+        try {
+            return Integer.parseInt(priority.trim()) >= config.getUrgentPriority()
+                    ? MessageLane.URGENT
+                    : MessageLane.NORMAL;
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Invalid priority \"{}\" on message {}.", priority, child.getFileName());
+            return MessageLane.NORMAL;
+        }
+    }
+
+    private void parse(Path child) {
+        SpoolLifecycle lifecycle = lifecycles.get(child.getParent());
+        Path source = child;
+
+        if (lifecycle != null) {
+            try {
+                source = lifecycle.claim(child);
+            } catch (IOException e) {
+                inFlight.remove(child);
+                LOGGER.warn("Failed to claim message with id: {}", child.getFileName(), e);
+                return;
+            }
+
+            if (source == null) {
+                inFlight.remove(child);
+                LOGGER.debug("Message {} was claimed by another watcher.", child.getFileName());
+                return;
+            }
+        }
+
+        Path claimed = source;
+        long start = System.nanoTime();
+        Message message;
+
+        try {
+            if (dispatcher.isRouted() && !dispatcher.accepts(messageParser.parseHeaders(claimed))) {
+                metrics.messagesUnrouted.increment();
+                inFlight.remove(child);
+                LOGGER.debug("No consumer routes message {}, payload skipped.", child.getFileName());
+                resolve(lifecycle, claimed, null);
+                return;
+            }
+
+            message = messageParser.parse(claimed);
+            metrics.messagesParsed.increment();
+        } catch (Exception e) {
+            metrics.parseFailures.increment();
+            inFlight.remove(child);
+            LOGGER.debug(e.getMessage(), e);
+            LOGGER.warn("Failed to parse message with id: {}", child.getFileName());
+            resolve(lifecycle, claimed, e);
+            return;
+        } finally {
+            metrics.parseTime.recordSince(start);
+        }
+
+        String key = null;
+
+        if (deduplicator != null) {
+            key = deduplicator.accept(message);
+
+            if (key == null) {
+                inFlight.remove(child);
+                LOGGER.debug("Duplicate message {} skipped.", child.getFileName());
+                resolve(lifecycle, claimed, null);
+                return;
+            }
+        }
+
+        String deduplicationKey = key;
+        DeliveryCallback done = (failure) -> {
+            if (deduplicationKey != null) {
+                if (failure == null) {
+                    deduplicator.complete(deduplicationKey);
+                } else {
+                    deduplicator.forget(deduplicationKey);
+                }
+            }
+
+            inFlight.remove(child);
+            resolve(lifecycle, claimed, failure);
+        };
+
+        try {
+            dispatcher.dispatch(message, done);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to dispatch message {}.", child.getFileName(), e);
+            done.onComplete(e);
+        }
+    }
+
+    private static LaneExecutor laneExecutor(WatcherConfig config, WatcherMetrics metrics) {
+        int[] weights = new int[MessageLane.values().length];
+        int[] budgets = new int[MessageLane.values().length];
+
+        weights[MessageLane.URGENT.ordinal()] = config.getUrgentLaneWeight();
+        weights[MessageLane.NORMAL.ordinal()] = config.getNormalLaneWeight();
+        weights[MessageLane.BULK.ordinal()] = config.getBulkLaneWeight();
+        budgets[MessageLane.URGENT.ordinal()] = config.getParserWorkers();
+        budgets[MessageLane.NORMAL.ordinal()] = config.getNormalLaneWorkers();
+        budgets[MessageLane.BULK.ordinal()] = config.getBulkLaneWorkers();
+
+        return new LaneExecutor("visage-parser",
+                config.getParserWorkers(),
+                config.getParseQueueCapacity(),
+                config.getParseRejectionPolicy(),
+                metrics.parseQueueWait,
+                weights,
+                budgets);
+    }
+
+    /**
+     * Acks or dead-letters the message file. Unclaimed files stay where they
+     * are once handled, but failed ones are still moved to the dead-letter
+     * directory so they are not lost.
+     */
+    private void resolve(SpoolLifecycle lifecycle, Path claimed, Throwable failure) {
+        try {
+            if (lifecycle == null) {
+                if (failure != null && !(failure instanceof RejectedExecutionException)) {
+                    SpoolLifecycle.deadLetter(claimed, config.getFailedDirectoryName(), failure);
+                    metrics.deadLetters.increment();
+                }
+            } else if (failure == null) {
+                lifecycle.ack(claimed);
+            } else if (failure instanceof RejectedExecutionException) {
+                lifecycle.abandon(claimed);
+            } else {
+                lifecycle.fail(claimed, failure);
+                metrics.deadLetters.increment();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to resolve message {}.", claimed.getFileName(), e);
+        }
+    }
+
+    private void reclaimStale() {
+        for (SpoolLifecycle lifecycle : lifecycles.values()) {
+            try {
+                lifecycle.reclaimStale();
+            } catch (Exception e) {
+                LOGGER.error("Failed to reclaim stale messages.", e);
+            }
+        }
+    }
+}
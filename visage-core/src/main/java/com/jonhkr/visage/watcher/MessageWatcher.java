@@ -16,12 +16,57 @@
 
 package com.jonhkr.visage.watcher;
 
+import com.jonhkr.visage.message.Headers;
 import com.jonhkr.visage.message.Message;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public interface MessageWatcher {
     void start();
     void stop();
     void onMessage(Consumer<Message> consumer);
+
+    /**
+     * Registers a consumer that receives messages in batches. Watchers that
+     * do not batch deliver every message as a batch of its own.
+     */
+    default void onMessages(Consumer<List<Message>> consumer) {
+        onMessage((message) -> consumer.accept(Collections.singletonList(message)));
+    }
+
+    /**
+     * Registers a consumer for the messages whose headers match the route.
+     * Watchers may evaluate routes on the header block alone and skip
+     * reading the payload of messages no consumer is interested in.
+     */
+    default void onMessage(Predicate<Headers> route, Consumer<Message> consumer) {
+        onMessage((message) -> {
+            if (route.test(message.getHeaders())) {
+                consumer.accept(message);
+            }
+        });
+    }
+
+    /**
+     * Batch counterpart of {@link #onMessage(Predicate, Consumer)}.
+     */
+    default void onMessages(Predicate<Headers> route, Consumer<List<Message>> consumer) {
+        onMessages((messages) -> {
+            List<Message> matching = new ArrayList<>(messages.size());
+
+            for (Message message : messages) {
+                if (route.test(message.getHeaders())) {
+                    matching.add(message);
+                }
+            }
+
+            if (!matching.isEmpty()) {
+                consumer.accept(matching);
+            }
+        });
+    }
 }
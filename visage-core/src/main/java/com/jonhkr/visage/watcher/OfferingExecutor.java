@@ -0,0 +1,35 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.jonhkr.visage.watcher;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor that can also queue a task without waiting for room, for callers
+ * such as the scheduler thread that must never block nor run a consumer.
+ */
+public interface OfferingExecutor extends Executor {
+
+    /**
+     * Queues the task if there is room right away, whatever the
+     * {@link RejectionPolicy}. Returns whether the task was queued; a shut
+     * down executor throws {@link RejectedExecutionException}.
+     */
+    boolean offer(Runnable task);
+}
@@ -0,0 +1,300 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed set of single threaded lanes. Tasks submitted to the same lane run
+ * one at a time in submission order, tasks on different lanes run in
+ * parallel. Submitting is lock free: the task is appended to the lane's
+ * queue and the lane thread is only unparked when it went idle.
+ * <p>
+ * Each lane queues up to {@code capacity} tasks. When a lane is full the
+ * {@link RejectionPolicy} decides whether the submitter waits or gets a
+ * {@link RejectedExecutionException}; running the task on the caller would
+ * break the lane order, so {@link RejectionPolicy#CALLER_RUNS} waits too.
+ */
+public class PartitionedExecutor implements StageExecutor {
+
+    private final static Logger LOGGER = LogManager.getLogger(PartitionedExecutor.class);
+
+    private final static long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final String name;
+    private final int capacity;
+    private final RejectionPolicy policy;
+    private final Timer queueWait;
+    private final Lane[] lanes;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    private volatile boolean shutdown = false;
+
+    public PartitionedExecutor(String name, int lanes, int capacity, RejectionPolicy policy, Timer queueWait) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be greater than zero");
+        }
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than zero");
+        }
+
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.queueWait = queueWait;
+        this.lanes = new Lane[lanes];
+
+        NamedThreadFactory threads = new NamedThreadFactory(name);
+
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane();
+            this.lanes[i].thread = threads.newThread(this.lanes[i]::run);
+            this.lanes[i].thread.start();
+        }
+    }
+
+    /**
+     * Returns the lane tasks for the given key run on, or the next lane in
+     * turn for a {@code null} key.
+     */
+    public OfferingExecutor lane(Object key) {
+        if (key == null) {
+            return lanes[Math.floorMod(next.getAndIncrement(), lanes.length)];
+        }
+
+        int hash = key.hashCode();
+
+        return lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)];
+    }
+
+    /**
+     * Runs the task on the next lane in turn, without any ordering.
+     */
+    @Override
+    public void execute(Runnable task) {
+        lane(null).execute(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        return lane(null).offer(task);
+    }
+
+    @Override
+    public ExecutorStats getStats() {
+        int active = 0;
+        int depth = 0;
+
+        for (Lane lane : lanes) {
+            active += lane.running ? 1 : 0;
+            depth += lane.size.get();
+        }
+
+        return new ExecutorStats(
+                name,
+                lanes.length,
+                active,
+                depth,
+                peakQueueDepth.get(),
+                capacity * lanes.length,
+                submitted.sum(),
+                completed.sum(),
+                rejected.sum(),
+                blocked.sum());
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (Lane lane : lanes) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            lane.thread.join(remaining);
+
+            if (lane.thread.isAlive()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private class Lane implements OfferingExecutor {
+
+        private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Thread thread;
+        private volatile boolean idle = false;
+        private volatile boolean running = false;
+
+        @Override
+        public void execute(Runnable task) {
+            if (shutdown) {
+                rejected.increment();
+                throw new RejectedExecutionException(name + " has been shut down");
+            }
+
+            reserve();
+            enqueue(task);
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            if (shutdown) {
+                rejected.increment();
+                throw new RejectedExecutionException(name + " has been shut down");
+            }
+
+            int depth = size.incrementAndGet();
+
+            if (depth > capacity) {
+                size.decrementAndGet();
+                return false;
+            }
+
+            peakQueueDepth.accumulateAndGet(depth, Math::max);
+            enqueue(task);
+
+            return true;
+        }
+
+        private void enqueue(Runnable task) {
+            submitted.increment();
+            queue.offer(new Task(task, System.nanoTime()));
+
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void reserve() {
+            int depth = size.incrementAndGet();
+
+            if (depth <= capacity) {
+                peakQueueDepth.accumulateAndGet(depth, Math::max);
+                return;
+            }
+
+            size.decrementAndGet();
+
+            if (policy == RejectionPolicy.REJECT) {
+                rejected.increment();
+                throw new RejectedExecutionException(name + " lane is full");
+            }
+
+            blocked.increment();
+
+            for (;;) {
+                LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+
+                if (shutdown) {
+                    rejected.increment();
+                    throw new RejectedExecutionException(name + " has been shut down");
+                }
+
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    rejected.increment();
+                    throw new RejectedExecutionException(name + " was interrupted while waiting for room");
+                }
+
+                if (size.incrementAndGet() <= capacity) {
+                    return;
+                }
+
+                size.decrementAndGet();
+            }
+        }
+
+        private void run() {
+            for (;;) {
+                Task task = queue.poll();
+
+                if (task == null) {
+                    if (shutdown) {
+                        return;
+                    }
+
+                    idle = true;
+
+                    if (queue.isEmpty() && !shutdown) {
+                        LockSupport.park(this);
+                    }
+
+                    idle = false;
+                    continue;
+                }
+
+                size.decrementAndGet();
+                running = true;
+
+                try {
+                    queueWait.recordSince(task.queuedAt);
+                    task.task.run();
+                } catch (Throwable e) {
+                    LOGGER.error("Task failed on {}.", Thread.currentThread().getName(), e);
+                } finally {
+                    running = false;
+                    completed.increment();
+                }
+            }
+        }
+    }
+
+    private static class Task {
+
+        private final Runnable task;
+        private final long queuedAt;
+
+        Task(Runnable task, long queuedAt) {
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.MessageParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Finds new message files by listing the watched directories instead of
+ * relying on a {@link WatchService}, for network and overlay file systems
+ * where watch events get lost.
+ * <p>
+ * Each directory keeps a {@link SeenIndex} of the entries already handled, so
+ * only new entries are handed to the pipeline, and a directory whose
+ * modification time has not changed since it was last listed is not listed
+ * again until the next full scan. Listings only read the attributes of names
+ * the index does not know, a scan costs one stat per new file rather than
+ * one per file still in the directory. The identity of known names is only
+ * checked on full scans: a file replaced under a name that is still listed
+ * is picked up within {@code fullScanIntervalMillis}, sooner when a listing
+ * in between already missed the name. The poll interval drops to the minimum whenever new files
+ * are found and doubles up to the maximum while the directories stay idle.
+ */
+public class PollingMessageWatcher implements MessageWatcher {
+
+    private final static Logger LOGGER = LogManager.getLogger(PollingMessageWatcher.class);
+
+    private final static long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private final ExecutorService workerExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("visage-poll"));
+    private final Map<Path, Directory> directories = new LinkedHashMap<>();
+
+    private final List<Path> roots;
+    private final WatcherConfig config;
+    private final PollingConfig pollingConfig;
+    private final MessagePipeline pipeline;
+
+    private volatile boolean started = false;
+    private volatile boolean stop = false;
+    private volatile int directoryCount = 0;
+
+    public PollingMessageWatcher(Path path, MessageParser messageParser) {
+        this(Collections.singletonList(path), messageParser, new WatcherConfig(), new PollingConfig());
+    }
+
+    public PollingMessageWatcher(List<Path> roots, MessageParser messageParser, WatcherConfig config,
+                                 PollingConfig pollingConfig) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one path must be watched");
+        }
+
+        this.roots = new ArrayList<>(new LinkedHashSet<>(roots));
+        this.config = config;
+        this.pollingConfig = pollingConfig;
+        this.pipeline = new MessagePipeline(messageParser, config);
+
+        pipeline.getMetrics().directories(() -> directoryCount);
+    }
+
+    @Override
+    public void start() {
+        if (started) {
+            LOGGER.error("Cannot start an already started watcher.");
+            return;
+        }
+
+        started = true;
+
+        LOGGER.info("Starting polling watcher on {}.", roots);
+
+        try {
+            for (Path root : roots) {
+                if (!Files.isDirectory(root)) {
+                    throw new NoSuchFileException(root.toString());
+                }
+
+                addDirectory(root, config.isScanOnStart());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        pipeline.start("PollingMessageWatcher", roots.get(0));
+        workerExecutor.submit(this::loop);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            stop = true;
+            workerExecutor.shutdown();
+            workerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            pipeline.shutdown();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void onMessage(Consumer<Message> consumer) {
+        pipeline.onMessage(null, consumer);
+    }
+
+    @Override
+    public void onMessages(Consumer<List<Message>> consumer) {
+        pipeline.onMessages(null, consumer);
+    }
+
+    @Override
+    public void onMessage(Predicate<Headers> route, Consumer<Message> consumer) {
+        pipeline.onMessage(route, consumer);
+    }
+
+    @Override
+    public void onMessages(Predicate<Headers> route, Consumer<List<Message>> consumer) {
+        pipeline.onMessages(route, consumer);
+    }
+
+    public ExecutorStats getParseStats() {
+        return pipeline.getParseStats();
+    }
+
+    /**
+     * Returns {@code null} unless lane scheduling is enabled.
+     */
+    public ExecutorStats getParseStats(MessageLane lane) {
+        return pipeline.getParseStats(lane);
+    }
+
+    public ExecutorStats getDeliveryStats() {
+        return pipeline.getDeliveryStats();
+    }
+
+    /**
+     * Returns {@code null} unless deduplication is enabled.
+     */
+    public DeduplicationStats getDeduplicationStats() {
+        return pipeline.getDeduplicationStats();
+    }
+
+    private void loop() {
+        long interval = pollingConfig.getMinPollIntervalMillis();
+
+        while (!stop) {
+            int found = 0;
+
+            try {
+                found = pollAll();
+            } catch (Exception e) {
+                LOGGER.error("Failed to poll {}.", roots, e);
+            }
+
+            if (found > 0) {
+                interval = pollingConfig.getMinPollIntervalMillis();
+            } else {
+                interval = Math.min(interval * 2, pollingConfig.getMaxPollIntervalMillis());
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private int pollAll() throws IOException {
+        int found = 0;
+
+        for (Directory directory : new ArrayList<>(directories.values())) {
+            if (stop) {
+                break;
+            }
+
+            try {
+                found += directory.poll();
+            } catch (NoSuchFileException e) {
+                if (roots.contains(directory.path)) {
+                    LOGGER.warn("Watched directory \"{}\" is no longer accessible.", directory.path);
+                    continue;
+                }
+
+                LOGGER.debug("Stopped polling removed directory \"{}\".", directory.path);
+                removeDirectory(directory.path);
+            }
+        }
+
+        return found;
+    }
+
+    private void addDirectory(Path path, boolean processExisting) throws IOException {
+        if (directories.containsKey(path)) {
+            return;
+        }
+
+        pipeline.addDirectory(path);
+        directories.put(path, new Directory(path, processExisting));
+        directoryCount = directories.size();
+    }
+
+    private void removeDirectory(Path path) {
+        directories.remove(path);
+        pipeline.removeDirectory(path);
+        directoryCount = directories.size();
+    }
+
+    private class Directory {
+
+        private final Path path;
+        private final SeenIndex seen = new SeenIndex();
+
+        private boolean processExisting;
+        private FileTime lastModified;
+        private long listedAt;
+        private long verifiedAt;
+        private boolean dirty = true;
+
+        Directory(Path path, boolean processExisting) {
+            this.path = path;
+            this.processExisting = processExisting;
+        }
+
+        /**
+         * Lists the directory if it may have changed and hands new files to
+         * the pipeline. Returns how many were accepted.
+         */
+        int poll() throws IOException {
+            long now = System.currentTimeMillis();
+            FileTime modified = Files.getLastModifiedTime(path);
+
+            if (!dirty
+                    && modified.equals(lastModified)
+                    && listedAt - modified.toMillis() > MTIME_GRANULARITY_MILLIS
+                    && now - listedAt < pollingConfig.getFullScanIntervalMillis()) {
+                return 0;
+            }
+
+            boolean verify = now - verifiedAt >= pollingConfig.getFullScanIntervalMillis();
+
+            lastModified = modified;
+            listedAt = now;
+            dirty = false;
+
+            if (verify) {
+                verifiedAt = now;
+            }
+
+            int found = list(verify);
+
+            processExisting = true;
+
+            return found;
+        }
+
+        /**
+         * Hands new entries to the pipeline. Known names are skipped without
+         * reading their attributes unless {@code verify} is set, which also
+         * checks that they still name the same file.
+         */
+        private int list(boolean verify) throws IOException {
+            int found = 0;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    if (stop) {
+                        dirty = true;
+                        break;
+                    }
+
+                    String name = child.getFileName().toString();
+
+                    if (!verify && seen.mark(name)) {
+                        continue;
+                    }
+
+                    BasicFileAttributes attributes;
+
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+
+                    long stamp = SeenIndex.stamp(attributes);
+
+                    if (seen.mark(name, stamp)) {
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        if (config.isRecursive() && !pipeline.isArea(child)) {
+                            addDirectory(child, true);
+                        }
+                    } else if (attributes.isRegularFile() && processExisting && !pipeline.isTemporary(child)) {
+                        if (!pipeline.offer(child)) {
+                            dirty = true;
+                            continue;
+                        }
+
+                        found++;
+                    }
+
+                    seen.add(name, stamp);
+                }
+            }
+
+            if (!stop) {
+                seen.sweep();
+            }
+
+            return found;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+/**
+ * What a {@link BoundedExecutor} does with a task when its queue is full.
+ */
+public enum RejectionPolicy {
+    /**
+     * Drop the task and throw {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT,
+
+    /**
+     * Block the submitting thread until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Run the task on the submitting thread.
+     */
+    CALLER_RUNS
+}
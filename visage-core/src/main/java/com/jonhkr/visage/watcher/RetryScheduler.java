@@ -0,0 +1,320 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Counter;
+import com.jonhkr.visage.publisher.LimitExceededException;
+import com.jonhkr.visage.publisher.MessageRejectedException;
+import lombok.RequiredArgsConstructor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs deliveries on an executor and retries the failed ones with
+ * exponential backoff. The wait between two attempts is spent in the
+ * scheduler's delay queue, not on a worker, so a failing consumer never
+ * holds a worker while it backs off.
+ * <p>
+ * Delays double, by default, from {@code initialBackoffMillis} up to
+ * {@code maxBackoffMillis}, and half of each delay is random so that
+ * messages failing together do not all come back at the same time. Once
+ * {@code maxAttempts} attempts failed the delivery completes with a
+ * {@link DeliveryException}.
+ * <p>
+ * A {@link LimitExceededException} is back-pressure from a publisher, not
+ * a failure of the message: the attempt is run again after the backoff
+ * without counting towards {@code maxAttempts}. A
+ * {@link MessageRejectedException} or an {@link Error} will not go away by
+ * retrying, the delivery completes with it at once.
+ * <p>
+ * In {@link DeliveryMode#PARTITIONED} mode deliveries must not overtake
+ * each other, so a failed attempt is retried on the lane that ran it after
+ * sleeping for the backoff, holding the lane meanwhile.
+ * <p>
+ * The scheduler thread is shared with linger flushes, reclaims and
+ * snapshots, so retries queue from it without blocking: a full queue puts
+ * the retry back on the scheduler for a moment. Retries still waiting when
+ * the scheduler is stopped complete with a
+ * {@link RejectedExecutionException} on {@link #shutdown()}.
+ */
+class RetryScheduler {
+
+    private final static Logger LOGGER = LogManager.getLogger(RetryScheduler.class);
+
+    private final static long FULL_QUEUE_DELAY_MILLIS = 10;
+
+    private final Set<Postponed> postponed = ConcurrentHashMap.newKeySet();
+
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final Counter retries;
+    private final boolean ordered;
+
+    RetryScheduler(Executor executor, ScheduledExecutorService scheduler) {
+        this(executor, scheduler, 1, 0, 0, 1, Counter.NOOP, false);
+    }
+
+    RetryScheduler(Executor executor, ScheduledExecutorService scheduler, WatcherConfig config, Counter retries) {
+        this(executor, scheduler,
+                config.getMaxDeliveryAttempts(),
+                config.getRetryInitialBackoffMillis(),
+                config.getRetryMaxBackoffMillis(),
+                config.getRetryBackoffMultiplier(),
+                retries,
+                config.getDeliveryMode() == DeliveryMode.PARTITIONED);
+    }
+
+    RetryScheduler(Executor executor, ScheduledExecutorService scheduler, int maxAttempts,
+                   long initialBackoffMillis, long maxBackoffMillis, double multiplier, Counter retries,
+                   boolean ordered) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be greater than zero");
+        }
+
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.multiplier = multiplier;
+        this.retries = retries;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Runs the delivery, completing {@code done} once it succeeded, failed
+     * for the last time or could not be queued.
+     */
+    void submit(Runnable delivery, DeliveryCallback done) {
+        submit(executor, delivery, done);
+    }
+
+    /**
+     * Runs the delivery on the given executor instead of the default one,
+     * a partition lane for instance.
+     */
+    void submit(Executor executor, Runnable delivery, DeliveryCallback done) {
+        if (ordered) {
+            submitOrdered(executor, delivery, done);
+        } else {
+            submit(executor, delivery, 1, done);
+        }
+    }
+
+    /**
+     * Like {@link #submit(Runnable, DeliveryCallback)}, for callers on the
+     * scheduler thread: the delivery is postponed rather than waited for
+     * when the queue is full.
+     */
+    void offer(Runnable delivery, DeliveryCallback done) {
+        offer(executor, ordered ? ordered(delivery, done) : attempt(executor, delivery, 1, done), done);
+    }
+
+    /**
+     * Completes the deliveries still waiting on the scheduler with a
+     * {@link RejectedExecutionException}, once the scheduler stopped running
+     * them.
+     */
+    void shutdown() {
+        for (Postponed waiting : postponed) {
+            if (postponed.remove(waiting)) {
+                waiting.done.onComplete(new RejectedExecutionException("Delivery retry dropped at shutdown"));
+            }
+        }
+    }
+
+    long backoff(int attempt) {
+        double ceiling = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, attempt - 1));
+        long half = (long) ceiling / 2;
+
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private void submit(Executor executor, Runnable delivery, int attempt, DeliveryCallback done) {
+        try {
+            executor.execute(attempt(executor, delivery, attempt, done));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Delivery queue is full, delivery dropped: {}", e.getMessage());
+            done.onComplete(e);
+        }
+    }
+
+    private void submitOrdered(Executor executor, Runnable delivery, DeliveryCallback done) {
+        try {
+            executor.execute(ordered(delivery, done));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Delivery queue is full, delivery dropped: {}", e.getMessage());
+            done.onComplete(e);
+        }
+    }
+
+    private Runnable attempt(Executor executor, Runnable delivery, int attempt, DeliveryCallback done) {
+        return () -> {
+            try {
+                delivery.run();
+            } catch (LimitExceededException e) {
+                limited(executor, delivery, attempt, e, done);
+                return;
+            } catch (MessageRejectedException e) {
+                broken(attempt, e, done);
+                return;
+            } catch (Exception e) {
+                failed(executor, delivery, attempt, e, done);
+                return;
+            } catch (Throwable e) {
+                broken(attempt, e, done);
+                return;
+            }
+
+            done.onComplete(null);
+        };
+    }
+
+    private Runnable ordered(Runnable delivery, DeliveryCallback done) {
+        return () -> {
+            for (int attempt = 1; ; ) {
+                long delay;
+
+                try {
+                    delivery.run();
+                    done.onComplete(null);
+                    return;
+                } catch (LimitExceededException e) {
+                    delay = backoff(attempt);
+                    LOGGER.debug("Delivery attempt {} was limited, retrying in {} ms: {}", attempt, delay, e.getMessage());
+                } catch (MessageRejectedException e) {
+                    broken(attempt, e, done);
+                    return;
+                } catch (Exception e) {
+                    if (attempt >= maxAttempts) {
+                        LOGGER.error("Delivery failed after {} attempts.", attempt, e);
+                        done.onComplete(new DeliveryException(attempt, e));
+                        return;
+                    }
+
+                    delay = backoff(attempt);
+                    LOGGER.warn("Delivery attempt {} of {} failed, retrying in {} ms.", attempt, maxAttempts, delay, e);
+                    retries.increment();
+                    attempt++;
+                } catch (Throwable e) {
+                    broken(attempt, e, done);
+                    return;
+                }
+
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    done.onComplete(new RejectedExecutionException(ie));
+                    return;
+                }
+            }
+        };
+    }
+
+    private void failed(Executor executor, Runnable delivery, int attempt, Exception failure, DeliveryCallback done) {
+        if (attempt >= maxAttempts) {
+            LOGGER.error("Delivery failed after {} attempts.", attempt, failure);
+            done.onComplete(new DeliveryException(attempt, failure));
+            return;
+        }
+
+        long delay = backoff(attempt);
+        LOGGER.warn("Delivery attempt {} of {} failed, retrying in {} ms.", attempt, maxAttempts, delay, failure);
+        retries.increment();
+
+        schedule(executor, attempt(executor, delivery, attempt + 1, done), done, delay);
+    }
+
+    /**
+     * Failures retrying cannot fix complete the delivery right away, so its
+     * message is dead-lettered instead of staying claimed.
+     */
+    private void broken(int attempt, Throwable error, DeliveryCallback done) {
+        LOGGER.error("Delivery attempt {} failed for good, giving up.", attempt, error);
+        done.onComplete(new DeliveryException(attempt, error));
+    }
+
+    private void limited(Executor executor, Runnable delivery, int attempt, LimitExceededException limit,
+                         DeliveryCallback done) {
+        long delay = backoff(attempt);
+        LOGGER.debug("Delivery attempt {} was limited, retrying in {} ms: {}", attempt, delay, limit.getMessage());
+
+        schedule(executor, attempt(executor, delivery, attempt, done), done, delay);
+    }
+
+    /**
+     * Queues the task from the scheduler thread. Waiting for room, or
+     * running the task in place, would hold up every other task of the
+     * scheduler, so a full queue postpones the task instead.
+     */
+    private void offer(Executor executor, Runnable task, DeliveryCallback done) {
+        try {
+            if (!(executor instanceof OfferingExecutor)) {
+                executor.execute(task);
+                return;
+            }
+
+            if (!((OfferingExecutor) executor).offer(task)) {
+                schedule(executor, task, done, FULL_QUEUE_DELAY_MILLIS);
+            }
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Delivery queue rejected a retry: {}", e.getMessage());
+            done.onComplete(e);
+        }
+    }
+
+    private void schedule(Executor executor, Runnable task, DeliveryCallback done, long delay) {
+        Postponed postponed = new Postponed(executor, task, done);
+        this.postponed.add(postponed);
+
+        try {
+            scheduler.schedule(postponed, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (this.postponed.remove(postponed)) {
+                done.onComplete(e);
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private class Postponed implements Runnable {
+
+        private final Executor executor;
+        private final Runnable task;
+        private final DeliveryCallback done;
+
+        @Override
+        public void run() {
+            if (postponed.remove(this)) {
+                offer(executor, task, done);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Headers;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Common routes for {@link MessageWatcher#onMessage(Predicate, java.util.function.Consumer)}.
+ * Header names are matched ignoring case, values exactly.
+ */
+public final class Routes {
+
+    private Routes() {
+    }
+
+    public static Predicate<Headers> has(String name) {
+        return (headers) -> headers.has(name);
+    }
+
+    /**
+     * Matches messages with a {@code name} header holding any of the values.
+     */
+    public static Predicate<Headers> header(String name, String... values) {
+        if (values.length == 1) {
+            String value = values[0];
+            return (headers) -> headers.getValues(name).contains(value);
+        }
+
+        Set<String> accepted = new HashSet<>(Arrays.asList(values));
+
+        return (headers) -> {
+            for (String value : headers.getValues(name)) {
+                if (accepted.contains(value)) {
+                    return true;
+                }
+            }
+
+            return false;
+        };
+    }
+}
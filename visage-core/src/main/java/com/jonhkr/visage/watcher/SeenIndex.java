@@ -0,0 +1,189 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Compact set of directory entries already handled, kept in an open
+ * addressing table of name hashes next to the names and a stamp of the file
+ * behind each entry, instead of a {@link java.nio.file.Path} per file.
+ * <p>
+ * An entry is only known when both its name, compared in full on a hash hit,
+ * and its stamp match, so a file deleted and created again under the same
+ * name between two listings counts as a new entry. The stamp is derived from
+ * the file key, the inode on Unix, which stays the same while a file is being
+ * written, see {@link #stamp(BasicFileAttributes)}.
+ * <p>
+ * Every listing marks the entries it still finds, {@link #sweep()} then drops
+ * the ones that are gone so the index only grows with the directory.
+ */
+class SeenIndex {
+
+    private final static int INITIAL_CAPACITY = 64;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private long[] stamps = new long[INITIAL_CAPACITY];
+    private int[] marks = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private int generation = 1;
+
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Identity of the file behind an entry: its file key when the file
+     * system has one, its creation time otherwise.
+     */
+    static long stamp(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+
+        return fileKey != null ? hash(fileKey.toString()) : attributes.creationTime().toMillis();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Marks the entry as present in the current listing, returning whether
+     * it was already known with the same stamp.
+     */
+    boolean mark(String name, long stamp) {
+        return mark(hash(name), name, stamp);
+    }
+
+    boolean mark(long key, String name, long stamp) {
+        int slot = find(keys, names, key, name);
+
+        if (keys[slot] == 0 || stamps[slot] != stamp) {
+            return false;
+        }
+
+        marks[slot] = generation;
+
+        return true;
+    }
+
+    /**
+     * Marks the entry as present by its name alone, returning whether it was
+     * known, for listings that do not read the stamp of known entries.
+     */
+    boolean mark(String name) {
+        int slot = find(keys, names, hash(name), name);
+
+        if (keys[slot] == 0) {
+            return false;
+        }
+
+        marks[slot] = generation;
+
+        return true;
+    }
+
+    void add(String name, long stamp) {
+        add(hash(name), name, stamp);
+    }
+
+    void add(long key, String name, long stamp) {
+        int slot = find(keys, names, key, name);
+
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            names[slot] = name;
+            size++;
+        }
+
+        stamps[slot] = stamp;
+        marks[slot] = generation;
+
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2, false);
+        }
+    }
+
+    /**
+     * Drops every entry not marked since the previous sweep.
+     */
+    void sweep() {
+        int live = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && marks[i] == generation) {
+                live++;
+            }
+        }
+
+        if (live != size) {
+            int capacity = keys.length;
+
+            while (capacity > INITIAL_CAPACITY && live * 8 < capacity) {
+                capacity /= 2;
+            }
+
+            rehash(capacity, true);
+        }
+
+        generation++;
+    }
+
+    private void rehash(int capacity, boolean liveOnly) {
+        long[] oldKeys = keys;
+        String[] oldNames = names;
+        long[] oldStamps = stamps;
+        int[] oldMarks = marks;
+
+        keys = new long[capacity];
+        names = new String[capacity];
+        stamps = new long[capacity];
+        marks = new int[capacity];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && (!liveOnly || oldMarks[i] == generation)) {
+                int slot = find(keys, names, oldKeys[i], oldNames[i]);
+                keys[slot] = oldKeys[i];
+                names[slot] = oldNames[i];
+                stamps[slot] = oldStamps[i];
+                marks[slot] = oldMarks[i];
+                size++;
+            }
+        }
+    }
+
+    private static int find(long[] keys, String[] names, long key, String name) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+
+        while (keys[slot] != 0 && (keys[slot] != key || !names[slot].equals(name))) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Claim/ack lifecycle of message files in a spool directory shared by several
+ * watchers, possibly in different processes.
+ * <p>
+ * A file is claimed by atomically renaming it into the {@code processing}
+ * area, only one of the competing watchers can win that rename. Claims are
+ * named after the file behind a prefix unique to the claim, so a file
+ * reusing the name of a claim still being processed never replaces it, and
+ * the file is touched before it is renamed, so its claim never looks stale
+ * to the other watchers. Once the
+ * message has been handled the claim is acked, which deletes the file or
+ * moves it to the {@code done} area, or failed, which moves it to the
+ * {@code failed} area, the dead-letter directory, next to an {@code .error}
+ * sidecar file describing the failure. Claims that are not resolved within the claim timeout,
+ * for instance because their owner died, are moved back into the spool
+ * directory so another watcher picks them up.
+ */
+class SpoolLifecycle {
+
+    private final static Logger LOGGER = LogManager.getLogger(SpoolLifecycle.class);
+
+    final static String ERROR_SUFFIX = ".error";
+    final static char CLAIM_SEPARATOR = '~';
+
+    private final Set<Path> claims = ConcurrentHashMap.newKeySet();
+    private final AtomicLong claimSequence = new AtomicLong();
+    private final String claimPrefix = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16);
+
+    private final Path spool;
+    private final Path processing;
+    private final Path done;
+    private final Path failed;
+    private final long claimTimeoutMillis;
+
+    SpoolLifecycle(Path spool, WatcherConfig config) {
+        this.spool = spool;
+        this.processing = spool.resolve(config.getProcessingDirectoryName());
+        this.done = config.getDoneDirectoryName() == null ? null : spool.resolve(config.getDoneDirectoryName());
+        this.failed = spool.resolve(config.getFailedDirectoryName());
+        this.claimTimeoutMillis = config.getClaimTimeoutMillis();
+    }
+
+    void init() throws IOException {
+        Files.createDirectories(processing);
+        Files.createDirectories(failed);
+
+        if (done != null) {
+            Files.createDirectories(done);
+        }
+    }
+
+    boolean isArea(Path path) {
+        return path.equals(processing) || path.equals(failed) || path.equals(done);
+    }
+
+    /**
+     * Returns the claimed path, or {@code null} when the file was claimed by
+     * someone else first.
+     */
+    Path claim(Path file) throws IOException {
+        Path claimed = processing.resolve(claimPrefix + Long.toHexString(claimSequence.incrementAndGet())
+                + CLAIM_SEPARATOR + file.getFileName());
+
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Could not touch file {} before claiming it.", file, e);
+        }
+
+        claims.add(claimed);
+
+        try {
+            Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            claims.remove(claimed);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            claims.remove(claimed);
+            throw e;
+        }
+
+        return claimed;
+    }
+
+    /**
+     * Name of the message file behind a claim.
+     */
+    static String fileName(Path claimed) {
+        String name = claimed.getFileName().toString();
+
+        return name.substring(name.indexOf(CLAIM_SEPARATOR) + 1);
+    }
+
+    void ack(Path claimed) throws IOException {
+        try {
+            if (done == null) {
+                Files.deleteIfExists(claimed);
+            } else {
+                Files.move(claimed, done.resolve(fileName(claimed)),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            claims.remove(claimed);
+        }
+    }
+
+    void fail(Path claimed, Throwable failure) throws IOException {
+        try {
+            writeError(failed.resolve(fileName(claimed) + ERROR_SUFFIX), fileName(claimed), failure);
+            Files.move(claimed, failed.resolve(fileName(claimed)),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            claims.remove(claimed);
+        }
+    }
+
+    /**
+     * Moves a file that was never claimed into the dead-letter directory of
+     * the directory it is in, next to its {@code .error} sidecar file.
+     */
+    static void deadLetter(Path file, String failedDirectoryName, Throwable failure) throws IOException {
+        Path failed = Files.createDirectories(file.resolveSibling(failedDirectoryName));
+        String name = file.getFileName().toString();
+
+        writeError(failed.resolve(name + ERROR_SUFFIX), name, failure);
+        Files.move(file, failed.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static void writeError(Path sidecar, String fileName, Throwable failure) throws IOException {
+        StringWriter error = new StringWriter();
+        PrintWriter writer = new PrintWriter(error);
+
+        writer.println("File: " + fileName);
+        writer.println("Failed-At: " + Instant.now());
+        writer.println("Attempts: " + (failure instanceof DeliveryException ? ((DeliveryException) failure).getAttempts() : 1));
+        writer.println("Error: " + failure);
+        writer.println();
+        failure.printStackTrace(writer);
+        writer.flush();
+
+        Files.write(sidecar, error.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gives up a claim without resolving it, the file stays in the processing
+     * area until it is reclaimed.
+     */
+    void abandon(Path claimed) {
+        claims.remove(claimed);
+    }
+
+    int reclaimStale() throws IOException {
+        long deadline = System.currentTimeMillis() - claimTimeoutMillis;
+        int reclaimed = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(processing)) {
+            for (Path claimed : stream) {
+                if (claims.contains(claimed)) {
+                    continue;
+                }
+
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(claimed, BasicFileAttributes.class);
+
+                    if (!attributes.isRegularFile() || attributes.lastModifiedTime().toMillis() > deadline) {
+                        continue;
+                    }
+
+                    Path file = spool.resolve(fileName(claimed));
+
+                    if (Files.exists(file)) {
+                        LOGGER.debug("Stale claim {} waits for {} to be claimed first.", claimed, file.getFileName());
+                        continue;
+                    }
+
+                    Files.move(claimed, file, StandardCopyOption.ATOMIC_MOVE);
+                    reclaimed++;
+                } catch (NoSuchFileException e) {
+                    LOGGER.debug("Stale claim {} was resolved concurrently.", claimed);
+                }
+            }
+        }
+
+        if (reclaimed > 0) {
+            LOGGER.warn("Reclaimed {} stale messages in \"{}\".", reclaimed, processing);
+        }
+
+        return reclaimed;
+    }
+}
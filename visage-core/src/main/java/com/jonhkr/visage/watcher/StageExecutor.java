@@ -0,0 +1,32 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor running one stage of the watcher pipeline, parsing or delivery,
+ * that reports its load through {@link ExecutorStats}.
+ */
+public interface StageExecutor extends OfferingExecutor {
+
+    ExecutorStats getStats();
+
+    void shutdown();
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for large numbers of short, imprecise timeouts.
+ * Scheduling is a lock free enqueue; a single thread moves new timeouts into
+ * their bucket, advances one bucket per tick and runs whatever expired, and
+ * parks while there is nothing scheduled. Tasks run on the wheel thread and
+ * must be short.
+ */
+class TimerWheel {
+
+    private final static Logger LOGGER = LogManager.getLogger(TimerWheel.class);
+
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final Thread worker;
+
+    private volatile boolean stop = false;
+
+    private long tick = 0;
+    private int pending = 0;
+
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = wheelSize - 1;
+        this.buckets = newBuckets(wheelSize);
+
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+
+        this.worker = new NamedThreadFactory(name, true).newThread(this::run);
+        this.worker.start();
+    }
+
+    void schedule(Runnable task, long delayMillis) {
+        incoming.add(new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task));
+        LockSupport.unpark(worker);
+    }
+
+    void stop() {
+        stop = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stop) {
+            transfer();
+
+            if (pending == 0) {
+                tick = currentTick();
+                LockSupport.park(this);
+                continue;
+            }
+
+            long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            tick++;
+            expire(buckets[(int) (tick & mask)]);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Timeout>[] newBuckets(int size) {
+        return new ArrayDeque[size];
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - start) / tickNanos;
+    }
+
+    private void transfer() {
+        Timeout timeout;
+
+        while ((timeout = incoming.poll()) != null) {
+            long deadlineTick = (timeout.deadline - start + tickNanos - 1) / tickNanos;
+
+            timeout.tick = Math.max(deadlineTick, tick + 1);
+            buckets[(int) (timeout.tick & mask)].add(timeout);
+            pending++;
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+
+            if (timeout.tick > tick) {
+                bucket.add(timeout);
+                continue;
+            }
+
+            pending--;
+
+            try {
+                timeout.task.run();
+            } catch (Exception e) {
+                LOGGER.error("Timer task failed.", e);
+            }
+        }
+    }
+
+    private static class Timeout {
+
+        private final long deadline;
+        private final Runnable task;
+        private long tick;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
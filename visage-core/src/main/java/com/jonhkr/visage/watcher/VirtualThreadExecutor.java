@@ -0,0 +1,216 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs every task on a new virtual thread, with at most {@code concurrency}
+ * tasks running at once. When every permit is taken the
+ * {@link RejectionPolicy} decides whether the submitter waits for one, runs
+ * the task itself or gets a {@link RejectedExecutionException}.
+ * <p>
+ * The project is built for Java 8, so virtual threads are created through
+ * reflection; {@link #isSupported()} tells whether the running JVM has them.
+ */
+public class VirtualThreadExecutor implements StageExecutor {
+
+    private final static Logger LOGGER = LogManager.getLogger(VirtualThreadExecutor.class);
+
+    private final String name;
+    private final int concurrency;
+    private final RejectionPolicy policy;
+    private final Timer queueWait;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    public VirtualThreadExecutor(String name, int concurrency, RejectionPolicy policy, Timer queueWait) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be greater than zero");
+        }
+
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+
+        this.name = name;
+        this.concurrency = concurrency;
+        this.policy = policy;
+        this.queueWait = queueWait;
+        this.permits = new Semaphore(concurrency);
+        this.executor = newThreadPerTaskExecutor(name);
+    }
+
+    public static boolean isSupported() {
+        return Support.SUPPORTED;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (executor.isShutdown()) {
+            rejected.increment();
+            throw new RejectedExecutionException(name + " has been shut down");
+        }
+
+        submitted.increment();
+        long queuedAt = System.nanoTime();
+
+        if (!permits.tryAcquire()) {
+            switch (policy) {
+                case REJECT:
+                    rejected.increment();
+                    throw new RejectedExecutionException(name + " is at its concurrency limit");
+                case CALLER_RUNS:
+                    run(task, queuedAt);
+                    return;
+                default:
+                    acquire();
+            }
+        }
+
+        start(task, queuedAt);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (executor.isShutdown()) {
+            rejected.increment();
+            throw new RejectedExecutionException(name + " has been shut down");
+        }
+
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+
+        submitted.increment();
+        start(task, System.nanoTime());
+
+        return true;
+    }
+
+    @Override
+    public ExecutorStats getStats() {
+        return new ExecutorStats(
+                name,
+                concurrency,
+                concurrency - permits.availablePermits(),
+                permits.getQueueLength(),
+                peakQueueDepth.get(),
+                concurrency,
+                submitted.sum(),
+                completed.sum(),
+                rejected.sum(),
+                blocked.sum());
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private void start(Runnable task, long queuedAt) {
+        try {
+            executor.execute(() -> {
+                try {
+                    run(task, queuedAt);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    private void acquire() {
+        blocked.increment();
+        peakQueueDepth.accumulateAndGet(permits.getQueueLength() + 1, Math::max);
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    private void run(Runnable task, long queuedAt) {
+        queueWait.recordSince(queuedAt);
+
+        try {
+            task.run();
+        } finally {
+            completed.increment();
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(String name) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+        }
+    }
+
+    private static class Support {
+
+        private final static boolean SUPPORTED = probe();
+
+        private static boolean probe() {
+            try {
+                newThreadPerTaskExecutor("visage-probe").shutdown();
+                return true;
+            } catch (UnsupportedOperationException e) {
+                LOGGER.debug("Virtual threads are not available.", e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.metrics.DefaultMetricsRegistry;
+import com.jonhkr.visage.metrics.MetricsRegistry;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+@Data
+@Accessors(chain = true)
+public class WatcherConfig {
+    private int parserWorkers = Runtime.getRuntime().availableProcessors();
+    private int parseQueueCapacity = 1024;
+    private RejectionPolicy parseRejectionPolicy = RejectionPolicy.BLOCK;
+    private boolean laneScheduling = false;
+    private String priorityHeader = null;
+    private int urgentPriority = 1;
+    private long bulkThresholdBytes = 1024 * 1024;
+    private int urgentLaneWeight = 8;
+    private int normalLaneWeight = 4;
+    private int bulkLaneWeight = 1;
+    private int normalLaneWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int bulkLaneWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    private int deliveryWorkers = Runtime.getRuntime().availableProcessors();
+    private int deliveryQueueCapacity = 1024;
+    private RejectionPolicy deliveryRejectionPolicy = RejectionPolicy.BLOCK;
+    private DeliveryMode deliveryMode = DeliveryMode.POOL;
+    private int virtualThreadConcurrency = 1024;
+    private String partitionHeader = HeaderNames.KEY;
+    private int partitionLanes = Runtime.getRuntime().availableProcessors();
+    /**
+     * Deliveries failing this many times are dead-lettered: the file is moved
+     * to the {@code failedDirectoryName} directory next to an {@code .error}
+     * sidecar, whether files are claimed or not.
+     */
+    private int maxDeliveryAttempts = 3;
+    private long retryInitialBackoffMillis = 500;
+    private long retryMaxBackoffMillis = 60 * 1000;
+    private double retryBackoffMultiplier = 2;
+    private int batchMaxCount = 100;
+    private long batchMaxBytes = 1024 * 1024;
+    private long batchLingerMillis = 50;
+    private int watchThreads = 1;
+    private boolean recursive = false;
+    private boolean scanOnStart = true;
+    private int scanBatchSize = 512;
+    private List<String> temporarySuffixes = Collections.singletonList(".tmp");
+    /**
+     * How long a file must stop changing before it is parsed, for producers
+     * writing in place. Zero, the default, parses files as soon as they are
+     * found, which suits producers renaming complete files into place.
+     */
+    private long quiescenceMillis = 0;
+    private boolean claimFiles = false;
+    private String processingDirectoryName = "processing";
+    private String doneDirectoryName = null;
+    private String failedDirectoryName = "failed";
+    private long claimTimeoutMillis = 10 * 60 * 1000;
+    private long reclaimIntervalMillis = 60 * 1000;
+    private boolean deduplicate = false;
+    private String deduplicationHeader = HeaderNames.MESSAGE_ID;
+    private long deduplicationWindowMillis = 60 * 60 * 1000;
+    private int deduplicationMaxEntries = 100000;
+    private Path deduplicationSnapshot = null;
+    private long deduplicationSnapshotIntervalMillis = 60 * 1000;
+    private MetricsRegistry metricsRegistry = new DefaultMetricsRegistry();
+    private boolean jmxEnabled = true;
+}
@@ -0,0 +1,137 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Counter;
+import com.jonhkr.visage.metrics.DefaultMetricsRegistry;
+import com.jonhkr.visage.metrics.MetricsRegistry;
+import com.jonhkr.visage.metrics.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.nio.file.Path;
+import java.util.function.IntSupplier;
+
+/**
+ * Instruments recorded by the watcher pipeline, looked up once so the hot
+ * path never touches the registry.
+ */
+class WatcherMetrics {
+
+    private final static Logger LOGGER = LogManager.getLogger(WatcherMetrics.class);
+
+    private final static String DOMAIN = "com.jonhkr.visage";
+
+    final Counter filesDetected;
+    final Counter messagesParsed;
+    final Counter parseFailures;
+    final Counter messagesUnrouted;
+    final Counter overflows;
+    final Counter deliveries;
+    final Counter deliveryFailures;
+    final Counter deliveryRetries;
+    final Counter deadLetters;
+
+    final Timer parseTime;
+    final Timer parseQueueWait;
+    final Timer deliveryQueueWait;
+    final Timer consumerTime;
+
+    private final MetricsRegistry registry;
+    private final boolean jmxEnabled;
+
+    private ObjectName objectName;
+
+    WatcherMetrics(WatcherConfig config) {
+        this.registry = config.getMetricsRegistry();
+        this.jmxEnabled = config.isJmxEnabled();
+
+        filesDetected = registry.counter("files.detected");
+        messagesParsed = registry.counter("messages.parsed");
+        parseFailures = registry.counter("parse.failures");
+        messagesUnrouted = registry.counter("messages.unrouted");
+        overflows = registry.counter("watch.overflows");
+        deliveries = registry.counter("consumer.deliveries");
+        deliveryFailures = registry.counter("consumer.failures");
+        deliveryRetries = registry.counter("consumer.retries");
+        deadLetters = registry.counter("messages.dead.lettered");
+
+        parseTime = registry.timer("parse.time");
+        parseQueueWait = registry.timer("parse.queue.wait");
+        deliveryQueueWait = registry.timer("delivery.queue.wait");
+        consumerTime = registry.timer("consumer.time");
+    }
+
+    void executor(String stage, StageExecutor executor) {
+        registry.gauge(stage + ".queue.depth", () -> executor.getStats().getQueueDepth());
+        registry.gauge(stage + ".workers.active", () -> executor.getStats().getActiveWorkers());
+    }
+
+    void lanes(LaneExecutor executor) {
+        for (MessageLane lane : MessageLane.values()) {
+            String prefix = "parse.lane." + lane.name().toLowerCase();
+
+            registry.gauge(prefix + ".queue.depth", () -> executor.getStats(lane).getQueueDepth());
+            registry.gauge(prefix + ".workers.active", () -> executor.getStats(lane).getActiveWorkers());
+        }
+    }
+
+    void directories(IntSupplier count) {
+        registry.gauge("watch.directories", count::getAsInt);
+    }
+
+    void deduplication(DeduplicationCache cache) {
+        registry.gauge("dedup.size", cache::size);
+        registry.gauge("dedup.hits", () -> cache.getStats().getHits());
+        registry.gauge("dedup.misses", () -> cache.getStats().getMisses());
+        registry.gauge("dedup.evictions", () -> cache.getStats().getEvictions());
+    }
+
+    void stabilizing(IntSupplier count) {
+        registry.gauge("files.stabilizing", count::getAsInt);
+    }
+
+    /**
+     * Exposes the registry through JMX when enabled and supported by the
+     * configured registry.
+     */
+    void registerMBean(String type, Path path) {
+        if (!jmxEnabled || !(registry instanceof DefaultMetricsRegistry)) {
+            return;
+        }
+
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type
+                    + ",path=" + ObjectName.quote(path.toAbsolutePath().toString()));
+
+            if (((DefaultMetricsRegistry) registry).registerMBean(name)) {
+                objectName = name;
+            }
+        } catch (MalformedObjectNameException e) {
+            LOGGER.warn("Invalid metrics MBean name for \"{}\".", path, e);
+        }
+    }
+
+    void unregisterMBean() {
+        if (objectName != null) {
+            ((DefaultMetricsRegistry) registry).unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+}
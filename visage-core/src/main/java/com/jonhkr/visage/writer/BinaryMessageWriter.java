@@ -0,0 +1,130 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.writer;
+
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import com.jonhkr.visage.parser.BinaryMessageParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes messages in the binary format read by {@link BinaryMessageParser}.
+ * Common header names are written as a single byte.
+ */
+public class BinaryMessageWriter implements MessageWriter {
+
+    private final static int MAX_VARINT_SIZE = 10;
+
+    @Override
+    public ByteBuffer encode(Message message) {
+        byte[] headers = encodeHeaders(message);
+        ByteBuffer payload = message.getPayload().asByteBuffer();
+        ByteBuffer buffer = ByteBuffer.allocate(headers.length + MAX_VARINT_SIZE + payload.remaining());
+
+        buffer.put(headers);
+        putVarint(buffer, payload.remaining());
+        buffer.put(payload);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Override
+    public void write(Message message, OutputStream out) throws IOException {
+        out.write(encodeHeaders(message));
+
+        ByteBuffer length = ByteBuffer.allocate(MAX_VARINT_SIZE);
+        putVarint(length, message.getPayload().getSize());
+        out.write(length.array(), 0, length.position());
+
+        byte[] buffer = new byte[8192];
+        int read;
+
+        try (InputStream payload = message.getPayload().openStream()) {
+            while ((read = payload.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Encodes the magic, version and headers, everything up to the payload
+     * length.
+     */
+    public byte[] encodeHeaders(Message message) {
+        List<Header> headers = message.getHeaders();
+        byte[][] names = new byte[headers.size()][];
+        byte[][] values = new byte[headers.size()][];
+        int size = BinaryMessageParser.MAGIC.length + 1 + MAX_VARINT_SIZE;
+
+        for (int i = 0; i < headers.size(); i++) {
+            Header header = headers.get(i);
+
+            if (header.getName().isEmpty()) {
+                throw new IllegalArgumentException("Invalid header name: \"\"");
+            }
+
+            if (HeaderNames.indexOf(header.getName()) == -1) {
+                names[i] = header.getName().getBytes(Payload.CHARSET);
+            }
+
+            values[i] = header.getValue().getBytes(Payload.CHARSET);
+            size += 2 * MAX_VARINT_SIZE + (names[i] == null ? 1 : names[i].length) + values[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        buffer.put(BinaryMessageParser.MAGIC);
+        buffer.put(BinaryMessageParser.VERSION);
+        putVarint(buffer, headers.size());
+
+        for (int i = 0; i < headers.size(); i++) {
+            if (names[i] == null) {
+                putVarint(buffer, 0);
+                buffer.put((byte) HeaderNames.indexOf(headers.get(i).getName()));
+            } else {
+                putVarint(buffer, names[i].length);
+                buffer.put(names[i]);
+            }
+
+            putVarint(buffer, values[i].length);
+            buffer.put(values[i]);
+        }
+
+        byte[] encoded = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(encoded);
+
+        return encoded;
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.writer;
+
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes messages in the text format read by
+ * {@link com.jonhkr.visage.parser.DefaultMessageParser}: one
+ * {@code name: value} line per header, two empty lines and the payload.
+ */
+public class TextMessageWriter implements MessageWriter {
+
+    private final static byte[] HEADER_TERMINATOR = "\n\n".getBytes(Payload.CHARSET);
+
+    @Override
+    public ByteBuffer encode(Message message) {
+        byte[] headers = encodeHeaders(message);
+        ByteBuffer payload = message.getPayload().asByteBuffer();
+        ByteBuffer buffer = ByteBuffer.allocate(headers.length + payload.remaining());
+
+        buffer.put(headers);
+        buffer.put(payload);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Override
+    public void write(Message message, OutputStream out) throws IOException {
+        out.write(encodeHeaders(message));
+
+        byte[] buffer = new byte[8192];
+        int read;
+
+        try (InputStream payload = message.getPayload().openStream()) {
+            while ((read = payload.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    public byte[] encodeHeaders(Message message) {
+        StringBuilder builder = new StringBuilder();
+
+        for (Header header : message.getHeaders()) {
+            validate(header);
+            builder.append(header.getName()).append(": ").append(header.getValue()).append('\n');
+        }
+
+        byte[] headers = builder.toString().getBytes(Payload.CHARSET);
+        byte[] encoded = new byte[headers.length + HEADER_TERMINATOR.length];
+
+        System.arraycopy(headers, 0, encoded, 0, headers.length);
+        System.arraycopy(HEADER_TERMINATOR, 0, encoded, headers.length, HEADER_TERMINATOR.length);
+
+        return encoded;
+    }
+
+    private static void validate(Header header) {
+        String name = header.getName();
+        String value = header.getValue();
+
+        if (name.isEmpty() || name.indexOf(':') != -1 || !name.trim().equals(name) || hasLineBreak(name)) {
+            throw new IllegalArgumentException("Invalid header name: \"" + name + "\"");
+        }
+
+        if (!value.trim().equals(value) || hasLineBreak(value)) {
+            throw new IllegalArgumentException("Invalid header value for " + name + ": \"" + value + "\"");
+        }
+    }
+
+    private static boolean hasLineBreak(String value) {
+        return value.indexOf('\n') != -1 || value.indexOf('\r') != -1;
+    }
+}
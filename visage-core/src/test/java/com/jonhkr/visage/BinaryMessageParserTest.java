@@ -0,0 +1,136 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage;
+
+import com.jonhkr.visage.message.FilePayload;
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import com.jonhkr.visage.parser.BinaryMessageParser;
+import com.jonhkr.visage.parser.ParserRegistry;
+import com.jonhkr.visage.writer.BinaryMessageWriter;
+import com.jonhkr.visage.writer.TextMessageWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class BinaryMessageParserTest {
+
+    private final Message message = new Message(Headers.builder()
+            .add(HeaderNames.MESSAGE_ID, "42")
+            .add("x-trace", "a: b\nc")
+            .add("x-trace", "\u00fcn\u00efc\u00f6d\u00e9")
+            .build(), new Payload("payload data"));
+
+    @Test
+    public void roundTripsMessages() {
+        ByteBuffer encoded = new BinaryMessageWriter().encode(message);
+        Message parsed = new BinaryMessageParser().parse(encoded);
+
+        assertEquals(message.getHeaders(), parsed.getHeaders());
+        assertEquals("payload data", parsed.getPayload().getData().toString());
+        assertSame(HeaderNames.MESSAGE_ID, parsed.getHeaders().get(0).getName());
+    }
+
+    @Test
+    public void parsesFilesOfEverySize() throws IOException {
+        Path file = Files.createTempFile("visage", ".bin");
+
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                new BinaryMessageWriter().write(message, out);
+            }
+
+            for (BinaryMessageParser parser : new BinaryMessageParser[]{
+                    new BinaryMessageParser(),
+                    new BinaryMessageParser(0, Long.MAX_VALUE),
+                    new BinaryMessageParser(0, 0)}) {
+                Message parsed = parser.parse(file);
+
+                assertEquals(message.getHeaders(), parsed.getHeaders());
+                assertEquals("payload data", parsed.getPayload().getData().toString());
+                assertEquals(message.getHeaders(), parser.parseHeaders(file));
+            }
+
+            assertTrue(new BinaryMessageParser(0, 0).parse(file).getPayload() instanceof FilePayload);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedMessages() {
+        ByteBuffer encoded = new BinaryMessageWriter().encode(message);
+        encoded.limit(encoded.limit() - 1);
+
+        try {
+            new BinaryMessageParser().parse(encoded);
+            fail("Expected truncated message to be rejected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().startsWith("Truncated"));
+        }
+    }
+
+    @Test
+    public void registrySelectsParserByMagicBytes() throws IOException {
+        Path binary = Files.createTempFile("visage", ".msg");
+        Path text = Files.createTempFile("visage", ".msg");
+        ParserRegistry registry = ParserRegistry.defaults();
+
+        try {
+            Files.write(binary, toArray(new BinaryMessageWriter().encode(message)));
+            Files.write(text, "header1: value\n\n\npayload data".getBytes(StandardCharsets.UTF_8));
+
+            assertEquals("42", registry.parse(binary).getHeaders().getValue(HeaderNames.MESSAGE_ID));
+            assertEquals("value", registry.parse(text).getHeaders().getValue("header1"));
+            assertEquals("42", registry.parseHeaders(binary).getValue(HeaderNames.MESSAGE_ID));
+            assertEquals("payload data", registry.parse(new TextMessageWriter().encode(
+                    new Message(Headers.EMPTY, new Payload("payload data")))).getPayload().getData().toString());
+        } finally {
+            Files.delete(binary);
+            Files.delete(text);
+        }
+    }
+
+    @Test
+    public void registryHandsStreamsToTheParserOfTheirFormat() {
+        ParserRegistry registry = ParserRegistry.defaults();
+        byte[] binary = toArray(new BinaryMessageWriter().encode(message));
+        byte[] text = "header1: value\n\n\npayload data".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("payload data", registry.parse(new ByteArrayInputStream(binary)).getPayload().getData().toString());
+        assertEquals("42", registry.parseHeaders(new ByteArrayInputStream(binary)).getValue(HeaderNames.MESSAGE_ID));
+        assertEquals("payload data", registry.parse(new ByteArrayInputStream(text)).getPayload().getData().toString());
+        assertEquals("value", registry.parseHeaders(new ByteArrayInputStream(text)).getValue("header1"));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage;
+
+import com.jonhkr.visage.message.FilePayload;
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferMessageParserTest {
+
+    private final String validMessage = "header1: header1-value\n" +
+            "header-2: header2 value *\n" +
+            "Valid-Header: Valid header :)\n" +
+            "\n" +
+            "\n" +
+            "payload data";
+
+    @Test
+    public void parseMessageHeadersTest() {
+        ByteBufferMessageParser parser = new ByteBufferMessageParser();
+        Message message = parser.parse(validMessage);
+
+        assertEquals(3, message.getHeaders().size());
+        assertTrue(message.getHeaders().contains(new Header("header1", "header1-value")));
+        assertTrue(message.getHeaders().contains(new Header("header-2", "header2 value *")));
+        assertTrue(message.getHeaders().contains(new Header("Valid-Header", "Valid header :)")));
+    }
+
+    @Test
+    public void parseMessagePayloadTest() {
+        ByteBufferMessageParser parser = new ByteBufferMessageParser();
+        Message message = parser.parse(validMessage);
+
+        assertEquals("payload data", message.getPayload().getData().toString());
+        assertEquals(12, message.getPayload().getSize());
+    }
+
+    @Test
+    public void payloadIsASliceOfTheSourceBuffer() {
+        byte[] bytes = validMessage.getBytes(StandardCharsets.UTF_8);
+        ByteBufferMessageParser parser = new ByteBufferMessageParser();
+        Message message = parser.parse(ByteBuffer.wrap(bytes));
+
+        bytes[bytes.length - 1] = 'A';
+
+        assertEquals("payload datA", message.getPayload().getData().toString());
+    }
+
+    @Test
+    public void matchesDefaultParserWithCarriageReturns() {
+        String message = "a: 1\r\nb:2 \r\n\r\n\r\nline one\r\nline two";
+
+        assertEquals(new DefaultMessageParser().parse(message), new ByteBufferMessageParser().parse(message));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsInvalidHeader() {
+        new ByteBufferMessageParser().parse("invalid message");
+    }
+
+    @Test
+    public void parseMappedFileTest() throws IOException {
+        Path file = File.createTempFile("visage", ".txt").toPath();
+
+        try {
+            Files.write(file, validMessage.getBytes(StandardCharsets.UTF_8));
+
+            Message message = new ByteBufferMessageParser(0).parse(file);
+
+            assertEquals(3, message.getHeaders().size());
+            assertEquals("payload data", message.getPayload().getData().toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void parsesHeaderBlockOnly() throws IOException {
+        Path file = File.createTempFile("visage", ".txt").toPath();
+
+        try {
+            Files.write(file, validMessage.getBytes(StandardCharsets.UTF_8));
+
+            Headers headers = new ByteBufferMessageParser().parseHeaders(file);
+
+            assertEquals(new DefaultMessageParser().parseHeaders(file), headers);
+            assertEquals(3, headers.size());
+            assertEquals("header1-value", headers.getValue("header1"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void streamsPayloadOfLargeFiles() throws IOException {
+        Path file = File.createTempFile("visage", ".txt").toPath();
+
+        try {
+            StringBuilder payload = new StringBuilder();
+
+            for (int i = 0; i < 10000; i++) {
+                payload.append("line ").append(i).append('\n');
+            }
+
+            Files.write(file, ("a: 1\r\nb: 2\r\n\r\n\r\n" + payload).getBytes(StandardCharsets.UTF_8));
+
+            Message message = new ByteBufferMessageParser(Long.MAX_VALUE, 0).parse(file);
+
+            assertEquals(2, message.getHeaders().size());
+            assertTrue(message.getPayload() instanceof FilePayload);
+            assertTrue(message.getPayload().isStreaming());
+            assertEquals(payload.length(), message.getPayload().getSize());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try (InputStream in = message.getPayload().openStream()) {
+                byte[] buffer = new byte[1000];
+                int read;
+
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+
+            assertEquals(payload.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals(payload.toString(), message.getPayload().getData().toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
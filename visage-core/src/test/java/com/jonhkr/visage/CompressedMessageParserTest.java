@@ -0,0 +1,221 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage;
+
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.CompressedMessageParser;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import com.jonhkr.visage.parser.MessageParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.*;
+
+public class CompressedMessageParserTest {
+
+    private final String validMessage = "header1: header1-value\n" +
+            "header-2: header2 value *\n" +
+            "\n" +
+            "\n" +
+            "payload data";
+
+    @Test
+    public void parsesGzipFileByExtension() throws IOException {
+        Path file = Files.createTempFile("visage", ".msg.gz");
+
+        try {
+            Files.write(file, gzip(validMessage.getBytes(StandardCharsets.UTF_8)));
+
+            Message message = new CompressedMessageParser(new DefaultMessageParser()).parse(file);
+
+            assertEquals("header1-value", message.getHeaders().getValue("header1"));
+            assertEquals("payload data", message.getPayload().getData().toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void parsesCompressedFilesByMagicBytes() throws IOException {
+        Path file = Files.createTempFile("visage", ".msg");
+        CompressedMessageParser parser = new CompressedMessageParser(new ByteBufferMessageParser());
+
+        try {
+            Files.write(file, deflate(validMessage.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("payload data", parser.parse(file).getPayload().getData().toString());
+
+            Files.write(file, gzip(validMessage.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("payload data", parser.parse(file).getPayload().getData().toString());
+            assertEquals("header2 value *", parser.parseHeaders(file).getValue("header-2"));
+
+            Files.write(file, validMessage.getBytes(StandardCharsets.UTF_8));
+            assertEquals("payload data", parser.parse(file).getPayload().getData().toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void inflatesConcatenatedGzipMembers() throws IOException {
+        byte[] first = gzip("header1: a\n\n\npayload ".getBytes(StandardCharsets.UTF_8));
+        byte[] second = gzip("data".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length).put(first).put(second);
+
+        buffer.flip();
+
+        Message message = new CompressedMessageParser(new ByteBufferMessageParser()).parse(buffer);
+
+        assertEquals("payload data", message.getPayload().getData().toString());
+    }
+
+    @Test
+    public void inflatesLargeMessages() throws IOException {
+        byte[] payload = new byte[1024 * 1024];
+        Random random = new Random(42);
+
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(26));
+        }
+
+        byte[] header = "header1: a\n\n\n".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        plain.write(header);
+        plain.write(payload);
+
+        Message message = new CompressedMessageParser(new ByteBufferMessageParser())
+                .parse(ByteBuffer.wrap(gzip(plain.toByteArray())));
+
+        assertEquals(ByteBuffer.wrap(payload), message.getPayload().asByteBuffer());
+    }
+
+    @Test
+    public void rejectsCorruptData() {
+        byte[] compressed = gzip(validMessage.getBytes(StandardCharsets.UTF_8));
+        compressed[compressed.length - 5] ^= 0xff;
+
+        try {
+            new CompressedMessageParser(new ByteBufferMessageParser()).parse(ByteBuffer.wrap(compressed));
+            fail("Expected corrupt data to be rejected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void rejectsMessagesInflatingPastTheLimit() throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        plain.write("header1: a\n\n\n".getBytes(StandardCharsets.UTF_8));
+        plain.write(new byte[4 * 1024 * 1024]);
+
+        byte[] compressed = gzip(plain.toByteArray());
+        Path file = Files.createTempFile("visage", ".msg.gz");
+
+        try {
+            Files.write(file, compressed);
+
+            for (MessageParser delegate : new MessageParser[]{new DefaultMessageParser(), new ByteBufferMessageParser()}) {
+                CompressedMessageParser parser = new CompressedMessageParser(delegate, false, 1024 * 1024);
+
+                try {
+                    parser.parse(file);
+                    fail("Expected the inflated message to be rejected");
+                } catch (RuntimeException e) {
+                    assertTrue(e.getCause() instanceof ZipException);
+                }
+
+                assertEquals("a", parser.parseHeaders(file).getValue("header1"));
+            }
+
+            try {
+                new CompressedMessageParser(new ByteBufferMessageParser(), false, 1024 * 1024)
+                        .parse(ByteBuffer.wrap(compressed));
+                fail("Expected the inflated message to be rejected");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof ZipException);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void inflatesPayloadByContentEncoding() throws IOException {
+        ByteBuffer file = contentEncoded("gzip", gzip("payload data".getBytes(StandardCharsets.UTF_8)));
+
+        Message message = new CompressedMessageParser(new ByteBufferMessageParser()).parse(file);
+
+        assertEquals("payload data", message.getPayload().getData().toString());
+        assertFalse(message.getHeaders().has(HeaderNames.CONTENT_ENCODING));
+        assertEquals("42", message.getHeaders().getValue(HeaderNames.MESSAGE_ID));
+    }
+
+    @Test
+    public void passesCompressedPayloadThrough() throws IOException {
+        byte[] compressed = deflate("payload data".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer file = contentEncoded("deflate", compressed);
+
+        Message message = new CompressedMessageParser(new ByteBufferMessageParser(), true).parse(file);
+
+        assertEquals(ByteBuffer.wrap(compressed), message.getPayload().asByteBuffer());
+        assertEquals("deflate", message.getHeaders().getValue(HeaderNames.CONTENT_ENCODING));
+    }
+
+    private static ByteBuffer contentEncoded(String encoding, byte[] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("Message-Id: 42\nContent-Encoding: " + encoding + "\n\n\n").getBytes(StandardCharsets.UTF_8));
+        out.write(payload);
+
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (OutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (OutputStream deflate = new DeflaterOutputStream(out)) {
+            deflate.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -21,6 +21,13 @@ import com.jonhkr.visage.message.Message;
 import com.jonhkr.visage.parser.DefaultMessageParser;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.*;
 
 public class DefaultMessageParserTest {
@@ -54,4 +61,34 @@ public class DefaultMessageParserTest {
         assertNotNull(message.getPayload().getData());
         assertEquals("payload data", message.getPayload().getData().toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void closesTheReaderOfParsedFiles() throws Exception {
+        AtomicReference<BufferedReader> opened = new AtomicReference<>();
+        DefaultMessageParser parser = new DefaultMessageParser() {
+            @Override
+            public Message parse(BufferedReader reader) {
+                opened.set(reader);
+                return super.parse(reader);
+            }
+        };
+
+        Path file = Files.createTempFile("visage", ".txt");
+
+        try {
+            Files.write(file, validMessage.getBytes(StandardCharsets.UTF_8));
+
+            assertEquals("payload data", parser.parse(file).getPayload().getData().toString());
+            assertNotNull(opened.get());
+
+            try {
+                opened.get().ready();
+                fail("reader was left open");
+            } catch (IOException e) {
+                // closed
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.journal;
+
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import com.jonhkr.visage.watcher.JournalMessageWatcher;
+import com.jonhkr.visage.watcher.WatcherConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    private Path directory;
+    private JournalConfig config;
+
+    @Before
+    public void setup() {
+        directory = Paths.get("test", UUID.randomUUID().toString());
+        config = new JournalConfig().setSegmentSize(1024);
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.walkFileTree(Paths.get("test"), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void readsMessagesAcrossSegments() throws IOException {
+        try (JournalWriter writer = new JournalWriter(directory, config)) {
+            for (int i = 0; i < 100; i++) {
+                writer.append(message(i));
+            }
+        }
+
+        assertTrue(Segments.list(directory).size() > 1);
+
+        JournalReader reader = new JournalReader(directory, config);
+        DefaultMessageParser parser = new DefaultMessageParser();
+
+        for (int i = 0; i < 100; i++) {
+            JournalRecord record = reader.poll();
+
+            assertNotNull(record);
+
+            Message message = parser.parse(record.getData());
+
+            assertEquals(message(i), message);
+            reader.commit(record);
+        }
+
+        assertNull(reader.poll());
+    }
+
+    @Test
+    public void resumesFromCommittedOffset() throws IOException {
+        try (JournalWriter writer = new JournalWriter(directory, config)) {
+            for (int i = 0; i < 50; i++) {
+                writer.append(message(i));
+            }
+        }
+
+        try (JournalReader reader = new JournalReader(directory, config)) {
+            List<JournalRecord> records = new ArrayList<>();
+
+            for (int i = 0; i < 40; i++) {
+                records.add(reader.poll());
+            }
+
+            for (int i = 0; i < 30; i++) {
+                reader.commit(records.get(i));
+            }
+
+            reader.commit(records.get(35));
+        }
+
+        assertFalse(Files.exists(Segments.path(directory, 0)));
+
+        try (JournalWriter writer = new JournalWriter(directory, config)) {
+            writer.append(message(50));
+        }
+
+        JournalReader reader = new JournalReader(directory, config);
+        ByteBufferMessageParser parser = new ByteBufferMessageParser();
+
+        for (int i = 30; i <= 50; i++) {
+            JournalRecord record = reader.poll();
+
+            assertNotNull(record);
+            assertEquals(message(i), parser.parse(record.getData()));
+        }
+
+        assertNull(reader.poll());
+    }
+
+    @Test
+    public void watcherTailsJournal() throws Exception {
+        CountDownLatch latch = new CountDownLatch(200);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        JournalMessageWatcher watcher = new JournalMessageWatcher(directory, new ByteBufferMessageParser(), config,
+                new WatcherConfig().setDeliveryWorkers(1));
+
+        watcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        watcher.start();
+
+        try (JournalWriter writer = new JournalWriter(directory, config)) {
+            for (int i = 0; i < 200; i++) {
+                writer.append(message(i));
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            watcher.stop();
+        }
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals(message(i), messages.get(i));
+        }
+    }
+
+    @Test
+    public void keepsSegmentsOtherConsumersHaveNotRead() throws IOException {
+        try (JournalWriter writer = new JournalWriter(directory, config)) {
+            for (int i = 0; i < 50; i++) {
+                writer.append(message(i));
+            }
+        }
+
+        JournalConfig slowConfig = new JournalConfig().setSegmentSize(1024).setConsumerName("slow");
+
+        try (JournalReader slow = new JournalReader(directory, slowConfig)) {
+            slow.commit(slow.poll());
+        }
+
+        try (JournalReader fast = new JournalReader(directory, config)) {
+            for (JournalRecord record = fast.poll(); record != null; record = fast.poll()) {
+                fast.commit(record);
+            }
+        }
+
+        assertTrue(Files.exists(Segments.path(directory, 0)));
+
+        try (JournalReader slow = new JournalReader(directory, slowConfig)) {
+            for (JournalRecord record = slow.poll(); record != null; record = slow.poll()) {
+                slow.commit(record);
+            }
+        }
+
+        assertFalse(Files.exists(Segments.path(directory, 0)));
+    }
+
+    @Test
+    public void watcherDeadLettersRecordsBeforeCommittingThem() throws Exception {
+        CountDownLatch latch = new CountDownLatch(10);
+
+        JournalMessageWatcher watcher = new JournalMessageWatcher(directory, new ByteBufferMessageParser(), config,
+                new WatcherConfig().setDeliveryWorkers(1).setMaxDeliveryAttempts(1).setJmxEnabled(false));
+
+        watcher.onMessage((m) -> {
+            latch.countDown();
+
+            if (m.getHeaders().getValue("Message-Id").equals("3")) {
+                throw new IllegalStateException("Downstream unavailable");
+            }
+        });
+
+        watcher.start();
+
+        try (JournalWriter writer = new JournalWriter(directory, config)) {
+            for (int i = 0; i < 10; i++) {
+                writer.append(message(i));
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            watcher.stop();
+        }
+
+        Path failed = directory.resolve("failed");
+        List<Path> deadLetters = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(failed)) {
+            stream.forEach(deadLetters::add);
+        }
+
+        Collections.sort(deadLetters);
+
+        assertEquals(2, deadLetters.size());
+        assertEquals(message(3), new DefaultMessageParser().parse(deadLetters.get(0)));
+        assertTrue(deadLetters.get(1).getFileName().toString().endsWith(".error"));
+        assertNull(new JournalReader(directory, config).poll());
+    }
+
+    private static Message message(int i) {
+        return new Message(Arrays.asList(new Header("Message-Id", String.valueOf(i)), new Header("Type", "test")),
+                new Payload("payload " + i));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.message;
+
+import com.jonhkr.visage.parser.ByteBufferMessageParser;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeadersTest {
+
+    @Test
+    public void lookupIsCaseInsensitive() {
+        Headers headers = Headers.builder()
+                .add("Message-Id", "1")
+                .add("content-type", "text/plain")
+                .build();
+
+        assertEquals("1", headers.getValue("message-id"));
+        assertEquals("1", headers.getValue("MESSAGE-ID"));
+        assertEquals("text/plain", headers.getValue("Content-Type"));
+        assertTrue(headers.has("CONTENT-TYPE"));
+        assertFalse(headers.has("Content-Length"));
+        assertNull(headers.getValue("Content-Length"));
+    }
+
+    @Test
+    public void keepsEveryValueInOrder() {
+        Headers headers = Headers.builder()
+                .add("Tag", "a")
+                .add("Other", "x")
+                .add("tag", "b")
+                .add("TAG", "c")
+                .build();
+
+        assertEquals("a", headers.getValue("tag"));
+        assertEquals(Arrays.asList("a", "b", "c"), headers.getValues("Tag"));
+        assertEquals(Collections.singletonList("x"), headers.getValues("other"));
+        assertEquals(Collections.emptyList(), headers.getValues("missing"));
+    }
+
+    @Test
+    public void isAnImmutableListOfHeaders() {
+        List<Header> list = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            list.add(new Header("Header-" + i, String.valueOf(i)));
+        }
+
+        Headers headers = Headers.of(list);
+
+        assertEquals(list, headers);
+        assertEquals(list.hashCode(), headers.hashCode());
+        assertSame(headers, Headers.of(headers));
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(String.valueOf(i), headers.getValue("header-" + i));
+        }
+
+        try {
+            headers.add(new Header("Name", "value"));
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertEquals(50, headers.size());
+        }
+    }
+
+    @Test
+    public void parsersShareCommonHeaderNames() {
+        String text = "Message-Id: 1\nContent-Type: text/plain\n\n\npayload";
+
+        Message fromText = new DefaultMessageParser().parse(text);
+        Message fromBytes = new ByteBufferMessageParser().parse(text);
+
+        assertSame(HeaderNames.MESSAGE_ID, fromText.getHeaders().get(0).getName());
+        assertSame(HeaderNames.CONTENT_TYPE, fromBytes.getHeaders().get(1).getName());
+        assertEquals(fromText, fromBytes);
+        assertEquals("text/plain", fromBytes.getHeaders().getValue("content-type"));
+    }
+}
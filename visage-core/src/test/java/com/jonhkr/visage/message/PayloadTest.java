@@ -0,0 +1,43 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.message;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PayloadTest {
+
+    @Test
+    public void sizeOfCharactersMatchesTheirEncodedBytes() {
+        String[] samples = {
+                "",
+                "plain ascii",
+                "ol\u00e1 \u00e7\u00e3o",
+                "\u20ac \u4e2d\u6587",
+                "\ud83d\ude00 emoji",
+                "lone \ud83d surrogate \ude00"
+        };
+
+        for (String sample : samples) {
+            Payload payload = new Payload(sample);
+
+            assertEquals(sample, payload.asByteBuffer().remaining(), payload.getSize());
+            assertEquals(sample, payload.asByteBuffer().remaining(), payload.getSize());
+        }
+    }
+}
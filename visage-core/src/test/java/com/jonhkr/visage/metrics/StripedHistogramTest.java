@@ -0,0 +1,87 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long value = 0; value < 100_000; value++) {
+            int index = StripedHistogram.index(value);
+
+            assertTrue(StripedHistogram.lowerBound(index) <= value);
+            assertTrue(StripedHistogram.lowerBound(index + 1) > value);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        StripedHistogram histogram = new StripedHistogram();
+
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        TimerSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(10_000, snapshot.getCount());
+        assertEquals(10_000_000, snapshot.getMax());
+        assertEquals(5_000_500, snapshot.getMean());
+        assertWithin(5_000_000, snapshot.getP50());
+        assertWithin(9_900_000, snapshot.getP99());
+        assertWithin(9_990_000, snapshot.getP999());
+    }
+
+    @Test
+    public void finerBucketsNarrowPercentiles() {
+        StripedHistogram histogram = new StripedHistogram(7);
+
+        for (long value = 0; value < 100_000; value++) {
+            int index = StripedHistogram.index(value, 7);
+
+            assertTrue(StripedHistogram.lowerBound(index, 7) <= value);
+            assertTrue(StripedHistogram.lowerBound(index + 1, 7) > value);
+        }
+
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        TimerSnapshot snapshot = histogram.snapshot();
+
+        assertTrue(snapshot.getP99() <= 9_900_000 && snapshot.getP99() >= 9_900_000 - 9_900_000 / 100);
+
+        histogram.reset();
+
+        assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void emptySnapshot() {
+        assertEquals(0, new StripedHistogram().snapshot().getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 12.5% of " + expected,
+                actual <= expected && actual >= expected - expected / 8);
+    }
+}
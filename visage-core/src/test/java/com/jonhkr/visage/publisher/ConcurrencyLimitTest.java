@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.publisher;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimitTest {
+
+    private final static long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void aimdGrowsAdditivelyAndBacksOffMultiplicatively() {
+        AimdLimit limit = new AimdLimit(10, 1, 12, 0.5, 100, TimeUnit.MILLISECONDS);
+
+        limit.onSample(10 * MILLIS, 2, false);
+        assertEquals(10, limit.getLimit());
+
+        limit.onSample(10 * MILLIS, 10, false);
+        limit.onSample(10 * MILLIS, 10, false);
+        limit.onSample(10 * MILLIS, 10, false);
+        assertEquals(12, limit.getLimit());
+
+        limit.onSample(10 * MILLIS, 10, true);
+        assertEquals(6, limit.getLimit());
+
+        limit.onSample(200 * MILLIS, 6, false);
+        assertEquals(3, limit.getLimit());
+    }
+
+    @Test
+    public void gradientGrowsWhileLatencyIsSteady() {
+        GradientLimit limit = new GradientLimit(10, 1, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(10 * MILLIS, limit.getLimit(), false);
+        }
+
+        assertTrue(limit.getLimit() > 100);
+    }
+
+    @Test
+    public void gradientShrinksWhenLatencyRises() {
+        GradientLimit limit = new GradientLimit(100, 1, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(10 * MILLIS, limit.getLimit(), false);
+        }
+
+        int steady = limit.getLimit();
+
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(100 * MILLIS, limit.getLimit(), false);
+        }
+
+        assertTrue(limit.getLimit() < steady / 4);
+    }
+
+    @Test
+    public void gradientIgnoresSamplesFarBelowTheLimit() {
+        GradientLimit limit = new GradientLimit(100, 1, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(10 * MILLIS, 1, false);
+        }
+
+        assertEquals(100, limit.getLimit());
+    }
+}
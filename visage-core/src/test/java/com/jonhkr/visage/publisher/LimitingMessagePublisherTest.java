@@ -0,0 +1,183 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.publisher;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import com.jonhkr.visage.metrics.DefaultMetricsRegistry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LimitingMessagePublisherTest {
+
+    private final static Message MESSAGE = new Message(Collections.emptyList(), new Payload("payload data"));
+
+    @Test
+    public void keepsPublishesWithinTheLimit() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        LimitingMessagePublisher publisher = new LimitingMessagePublisher((message) -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(5);
+            running.decrementAndGet();
+        }, new FixedLimit(3), 10_000);
+
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+
+        for (int i = 0; i < 200; i++) {
+            callers.execute(() -> publisher.publish(MESSAGE));
+        }
+
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(3, peak.get());
+        assertEquals(0, publisher.getInFlight());
+    }
+
+    @Test
+    public void failsWhenNoSlotFreesUpInTime() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        LimitingMessagePublisher publisher = new LimitingMessagePublisher((message) -> {
+            started.countDown();
+            await(release);
+        }, new FixedLimit(1), 50, registry);
+
+        Thread holder = new Thread(() -> publisher.publish(MESSAGE));
+        holder.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        try {
+            publisher.publish(MESSAGE);
+            fail("Expected publish to be limited");
+        } catch (LimitExceededException e) {
+            assertEquals(1L, (long) registry.getCounters().get("publisher.limited"));
+            assertEquals(1L, (long) registry.getGauges().get("publisher.inflight"));
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void keepsConcurrencyNearTheSinkCapacity() throws Exception {
+        Semaphore servers = new Semaphore(4, true);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicLong observed = new AtomicLong();
+        LimitingMessagePublisher publisher = new LimitingMessagePublisher((message) -> {
+            observed.addAndGet(concurrent.incrementAndGet());
+
+            try {
+                servers.acquireUninterruptibly();
+                sleep(2);
+                servers.release();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }, new GradientLimit(20, 1, 200), 60_000);
+
+        ExecutorService callers = Executors.newFixedThreadPool(100);
+
+        publishAll(publisher, callers, 4000);
+
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(1, TimeUnit.MINUTES));
+
+        double average = observed.get() / 4000.0;
+
+        assertTrue(average + " publishes in flight on average", average < 50);
+    }
+
+    @Test
+    public void releasesSlotsOfFailedAsyncPublishes() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        LimitingMessagePublisher publisher = new LimitingMessagePublisher((message) -> {
+            throw new IllegalStateException("Sink unavailable");
+        }, new AimdLimit(4, 1, 4), 1000);
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publishAsync(MESSAGE).whenComplete((result, failure) -> {
+                if (failure != null) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+
+        assertEquals(10, failures.get());
+        assertEquals(0, publisher.getInFlight());
+        assertEquals(1, publisher.getLimit());
+    }
+
+    private static void publishAll(LimitingMessagePublisher publisher, ExecutorService callers, int count)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(count);
+
+        for (int i = 0; i < count; i++) {
+            callers.execute(() -> {
+                publisher.publish(MESSAGE);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(1, TimeUnit.MINUTES));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class FixedLimit implements ConcurrencyLimit {
+
+        private final int limit;
+
+        FixedLimit(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public void onSample(long latencyNanos, int inFlight, boolean dropped) {
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BoundedExecutorTest {
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, RejectionPolicy.REJECT);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.execute(() -> await(release));
+        executor.execute(() -> { });
+
+        try {
+            executor.execute(() -> { });
+            fail("Expected task to be rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getStats().getRejected());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void runsOnCallerWhenQueueIsFull() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, RejectionPolicy.CALLER_RUNS);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Thread> runner = new AtomicReference<>();
+
+        executor.execute(() -> await(release));
+        executor.execute(() -> { });
+        executor.execute(() -> runner.set(Thread.currentThread()));
+
+        assertSame(Thread.currentThread(), runner.get());
+
+        release.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void blocksWhenQueueIsFull() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, RejectionPolicy.BLOCK);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch submitted = new CountDownLatch(1);
+
+        executor.execute(() -> await(release));
+        executor.execute(() -> { });
+
+        Thread producer = new Thread(() -> {
+            executor.execute(() -> { });
+            submitted.countDown();
+        });
+        producer.start();
+
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        ExecutorStats stats = executor.getStats();
+        assertEquals(3, stats.getSubmitted());
+        assertEquals(3, stats.getCompleted());
+        assertEquals(1, stats.getBlocked());
+        assertEquals(1, stats.getPeakQueueDepth());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
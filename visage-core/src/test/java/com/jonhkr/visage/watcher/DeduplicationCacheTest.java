@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.FilePayload;
+import com.jonhkr.visage.message.Header;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeduplicationCacheTest {
+
+    @Test
+    public void detectsDuplicates() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 1024);
+
+        assertTrue(cache.add("a"));
+        assertTrue(cache.add("b"));
+        assertFalse(cache.add("a"));
+
+        cache.remove("b");
+
+        assertTrue(cache.add("b"));
+
+        DeduplicationStats stats = cache.getStats();
+
+        assertEquals(2, stats.getSize());
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+    }
+
+    @Test
+    public void evictsOldestKeysWhenFull() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 16);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.add("key-" + i);
+        }
+
+        assertTrue(cache.size() <= 16);
+        assertEquals(1000 - cache.size(), cache.getStats().getEvictions());
+        assertTrue(cache.add("key-0"));
+    }
+
+    @Test
+    public void expiresKeysAfterTheWindow() throws Exception {
+        DeduplicationCache cache = new DeduplicationCache(50, 1024);
+
+        assertTrue(cache.add("a"));
+        assertFalse(cache.add("a"));
+
+        Thread.sleep(100);
+
+        assertTrue(cache.add("a"));
+        assertEquals(1, cache.getStats().getExpirations());
+    }
+
+    @Test
+    public void survivesRestartsThroughSnapshots() throws Exception {
+        Path snapshot = Files.createTempFile("visage", ".dedup");
+
+        try {
+            DeduplicationCache cache = new DeduplicationCache(60000, 1024);
+
+            for (int i = 0; i < 100; i++) {
+                cache.add("key-" + i);
+            }
+
+            cache.save(snapshot);
+
+            DeduplicationCache restored = new DeduplicationCache(60000, 1024);
+
+            assertEquals(100, restored.load(snapshot));
+            assertFalse(restored.add("key-42"));
+            assertTrue(restored.add("key-100"));
+            assertEquals(0, new DeduplicationCache(60000, 1024).load(snapshot.resolveSibling("missing")));
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void snapshotsKeysOfAnyLength() throws Exception {
+        Path snapshot = Files.createTempFile("visage", ".dedup");
+        StringBuilder key = new StringBuilder();
+
+        while (key.length() <= 70000) {
+            key.append("long-key-");
+        }
+
+        try {
+            DeduplicationCache cache = new DeduplicationCache(60000, 1024);
+            cache.add(key.toString());
+            cache.add("short");
+            cache.save(snapshot);
+
+            DeduplicationCache restored = new DeduplicationCache(60000, 1024);
+
+            assertEquals(2, restored.load(snapshot));
+            assertFalse(restored.add(key.toString()));
+            assertFalse(restored.add("short"));
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void hashesStreamingPayloadsLikeTheirBytes() throws Exception {
+        Path file = Files.createTempFile("visage", ".msg");
+        byte[] payload = new byte[200 * 1024];
+
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+
+        try {
+            Files.write(file, payload);
+
+            Deduplicator deduplicator = new Deduplicator(new WatcherConfig());
+            List<Header> headers = Collections.singletonList(new Header("id", "1"));
+
+            assertEquals(
+                    deduplicator.keyOf(new Message(headers, new Payload(new String(payload, StandardCharsets.UTF_8)))),
+                    deduplicator.keyOf(new Message(headers, new FilePayload(file, 0, payload.length))));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void savesOnlyCompletedKeys() throws Exception {
+        Path snapshot = Files.createTempFile("visage", ".dedup");
+
+        try {
+            DeduplicationCache cache = new DeduplicationCache(60000, 1024);
+
+            assertTrue(cache.reserve("done"));
+            assertTrue(cache.reserve("in-flight"));
+            assertFalse(cache.reserve("in-flight"));
+
+            cache.complete("done");
+            cache.save(snapshot);
+
+            DeduplicationCache restored = new DeduplicationCache(60000, 1024);
+
+            assertEquals(1, restored.load(snapshot));
+            assertFalse(restored.add("done"));
+            assertTrue(restored.add("in-flight"));
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.jonhkr.visage.watcher;
 
+import com.jonhkr.visage.message.HeaderNames;
 import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.metrics.DefaultMetricsRegistry;
 import com.jonhkr.visage.parser.DefaultMessageParser;
 import com.jonhkr.visage.parser.MessageParser;
 import org.junit.After;
@@ -25,18 +27,29 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FileSystemMessageWatcherTest {
 
@@ -49,7 +62,8 @@ public class FileSystemMessageWatcherTest {
         messagesDirectory.mkdirs();
 
         MessageParser messageParser = new DefaultMessageParser();
-        watcher = new FileSystemMessageWatcher(messagesDirectory.toPath(), messageParser);
+        watcher = new FileSystemMessageWatcher(messagesDirectory.toPath(), messageParser,
+                new WatcherConfig().setQuiescenceMillis(100));
         watcher.start();
     }
 
@@ -124,7 +138,633 @@ public class FileSystemMessageWatcherTest {
         assertEquals(1, messages.size());
     }
 
+    @Test
+    public void deliversMessagesCreatedBeforeStart() throws Exception {
+        File backlogDirectory = new File("test/" + UUID.randomUUID() + "/");
+        backlogDirectory.mkdirs();
+
+        for (int i = 0; i < 10; i++) {
+            createTestMessageFile("valid-message.txt", backlogDirectory, "message-" + i + ".txt");
+        }
+
+        CountDownLatch latch = new CountDownLatch(10);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        FileSystemMessageWatcher backlogWatcher = new FileSystemMessageWatcher(backlogDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig().setScanBatchSize(3));
+
+        backlogWatcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        backlogWatcher.start();
+
+        try {
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+            assertEquals(10, messages.size());
+        } finally {
+            backlogWatcher.stop();
+        }
+    }
+
+    @Test
+    public void parsesFilesOnParallelWorkers() throws Exception {
+        File parallelDirectory = new File("test/" + UUID.randomUUID() + "/");
+        parallelDirectory.mkdirs();
+
+        CountDownLatch parsing = new CountDownLatch(4);
+        AtomicInteger overlapping = new AtomicInteger();
+
+        MessageParser parser = new DefaultMessageParser() {
+            @Override
+            public Message parse(Path path) {
+                parsing.countDown();
+
+                try {
+                    if (parsing.await(1, TimeUnit.MINUTES)) {
+                        overlapping.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.parse(path);
+            }
+        };
+
+        CountDownLatch latch = new CountDownLatch(4);
+        FileSystemMessageWatcher parallelWatcher = new FileSystemMessageWatcher(parallelDirectory.toPath(),
+                parser, new WatcherConfig().setParserWorkers(4).setJmxEnabled(false));
+
+        parallelWatcher.onMessage((m) -> latch.countDown());
+        parallelWatcher.start();
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                moveTestMessageFile("valid-message.txt", parallelDirectory, "message-" + i + ".txt");
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+            assertEquals(4, overlapping.get());
+
+            while (parallelWatcher.getParseStats().getCompleted() < 4) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(4, parallelWatcher.getParseStats().getCompleted());
+        } finally {
+            parallelWatcher.stop();
+        }
+    }
+
+    @Test
+    public void competingWatchersDeliverEachMessageOnce() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        int count = 200;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+        List<FileSystemMessageWatcher> watchers = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            FileSystemMessageWatcher spoolWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                    new DefaultMessageParser(), new WatcherConfig().setClaimFiles(true));
+
+            spoolWatcher.onMessage((m) -> {
+                messages.add(m);
+                latch.countDown();
+            });
+
+            spoolWatcher.start();
+            watchers.add(spoolWatcher);
+        }
+
+        try {
+            for (int i = 0; i < count; i++) {
+                moveTestMessageFile("valid-message.txt", spoolDirectory, "message-" + i + ".txt");
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            for (FileSystemMessageWatcher spoolWatcher : watchers) {
+                spoolWatcher.stop();
+            }
+        }
+
+        assertEquals(count, messages.size());
+        assertEquals(0, countFiles(spoolDirectory.toPath().resolve("processing")));
+        assertEquals(0, countFiles(spoolDirectory.toPath().resolve("failed")));
+    }
+
+    @Test
+    public void failedMessagesAreMovedToFailedArea() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        FileSystemMessageWatcher spoolWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig().setClaimFiles(true).setDoneDirectoryName("done"));
+
+        spoolWatcher.onMessage((m) -> {
+            if (m.getHeaders().isEmpty()) {
+                throw new IllegalStateException("Unexpected message");
+            }
+        });
+
+        spoolWatcher.start();
+
+        try {
+            moveTestMessageFile("valid-message.txt", spoolDirectory, "valid.txt");
+            moveTestMessageFile("invalid-message.txt", spoolDirectory, "invalid.txt");
+
+            Path done = spoolDirectory.toPath().resolve("done").resolve("valid.txt");
+            Path failed = spoolDirectory.toPath().resolve("failed").resolve("invalid.txt");
+
+            for (int i = 0; i < 600 && !(Files.exists(done) && Files.exists(failed)); i++) {
+                Thread.sleep(100);
+            }
+
+            assertTrue(Files.exists(done));
+            assertTrue(Files.exists(failed));
+            assertTrue(Files.exists(spoolDirectory.toPath().resolve("failed").resolve("invalid.txt.error")));
+        } finally {
+            spoolWatcher.stop();
+        }
+    }
+
+    @Test
+    public void deadLettersMessagesAfterRetries() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        AtomicInteger attempts = new AtomicInteger();
+        FileSystemMessageWatcher spoolWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig()
+                        .setClaimFiles(true)
+                        .setMaxDeliveryAttempts(3)
+                        .setRetryInitialBackoffMillis(20));
+
+        spoolWatcher.onMessage((m) -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("Downstream unavailable");
+        });
+
+        spoolWatcher.start();
+
+        Path failed = spoolDirectory.toPath().resolve("failed").resolve("message.txt");
+        Path error = spoolDirectory.toPath().resolve("failed").resolve("message.txt.error");
+
+        try {
+            moveTestMessageFile("valid-message.txt", spoolDirectory, "message.txt");
+
+            for (int i = 0; i < 600 && !Files.exists(failed); i++) {
+                Thread.sleep(100);
+            }
+        } finally {
+            spoolWatcher.stop();
+        }
+
+        assertTrue(Files.exists(failed));
+        assertEquals(3, attempts.get());
+
+        String sidecar = new String(Files.readAllBytes(error), StandardCharsets.UTF_8);
+
+        assertTrue(sidecar.contains("Attempts: 3"));
+        assertTrue(sidecar.contains("Downstream unavailable"));
+    }
+
+    @Test
+    public void recordsPipelineMetrics() throws Exception {
+        File metricsDirectory = new File("test/" + UUID.randomUUID() + "/");
+        metricsDirectory.mkdirs();
+
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        CountDownLatch latch = new CountDownLatch(1);
+
+        FileSystemMessageWatcher metricsWatcher = new FileSystemMessageWatcher(metricsDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig().setMetricsRegistry(registry));
+
+        metricsWatcher.onMessage((m) -> latch.countDown());
+        metricsWatcher.start();
+
+        ObjectName name = new ObjectName("com.jonhkr.visage:type=FileSystemMessageWatcher,path="
+                + ObjectName.quote(metricsDirectory.toPath().toAbsolutePath().toString()));
+
+        try {
+            moveTestMessageFile("invalid-message.txt", metricsDirectory, "invalid.txt");
+            moveTestMessageFile("valid-message.txt", metricsDirectory, "valid.txt");
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+
+            for (int i = 0; i < 600 && (registry.getTimers().get("parse.time").getCount() < 2
+                    || registry.getCounters().get("consumer.deliveries") < 1); i++) {
+                Thread.sleep(100);
+            }
+
+            Map<String, Long> counters = registry.getCounters();
+
+            assertEquals(2L, (long) counters.get("files.detected"));
+            assertEquals(1L, (long) counters.get("messages.parsed"));
+            assertEquals(1L, (long) counters.get("parse.failures"));
+            assertEquals(1L, (long) counters.get("consumer.deliveries"));
+            assertEquals(0L, (long) counters.get("consumer.failures"));
+            assertEquals(2L, registry.getTimers().get("parse.time").getCount());
+            assertTrue(registry.getGauges().containsKey("delivery.queue.depth"));
+
+            TabularData jmxCounters = (TabularData) ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(name, "Counters");
+
+            assertEquals(1L, jmxCounters.get(new Object[]{"messages.parsed"}).get("value"));
+        } finally {
+            metricsWatcher.stop();
+        }
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void routesMessagesByHeader() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        AtomicInteger fullParses = new AtomicInteger();
+        MessageParser parser = new DefaultMessageParser() {
+
+            @Override
+            public Message parse(Path path) {
+                fullParses.incrementAndGet();
+                return super.parse(path);
+            }
+        };
+
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Message> matched = Collections.synchronizedList(new ArrayList<>());
+        List<Message> unmatched = Collections.synchronizedList(new ArrayList<>());
+
+        FileSystemMessageWatcher routedWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(), parser,
+                new WatcherConfig().setClaimFiles(true));
+
+        routedWatcher.onMessage(Routes.header("HEADER1", "header1-value"), (m) -> {
+            matched.add(m);
+            latch.countDown();
+        });
+        routedWatcher.onMessage(Routes.has("Missing-Header"), unmatched::add);
+        routedWatcher.start();
+
+        try {
+            moveTestMessageFile("valid-message.txt", spoolDirectory, "matched.txt");
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            routedWatcher.stop();
+        }
+
+        assertEquals(1, matched.size());
+        assertEquals(0, unmatched.size());
+        assertEquals(1, fullParses.get());
+    }
+
+    @Test
+    public void skipsPayloadOfUnroutedMessages() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        AtomicInteger fullParses = new AtomicInteger();
+        MessageParser parser = new DefaultMessageParser() {
+
+            @Override
+            public Message parse(Path path) {
+                fullParses.incrementAndGet();
+                return super.parse(path);
+            }
+        };
+
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        FileSystemMessageWatcher routedWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(), parser,
+                new WatcherConfig().setClaimFiles(true).setMetricsRegistry(registry));
+
+        routedWatcher.onMessage(Routes.header("header1", "other-value"), (m) -> fail());
+        routedWatcher.start();
+
+        try {
+            moveTestMessageFile("valid-message.txt", spoolDirectory, "unrouted.txt");
+
+            for (int i = 0; i < 600 && registry.getCounters().get("messages.unrouted") < 1; i++) {
+                Thread.sleep(100);
+            }
+        } finally {
+            routedWatcher.stop();
+        }
+
+        assertEquals(1L, (long) registry.getCounters().get("messages.unrouted"));
+        assertEquals(0, fullParses.get());
+        assertFalse(Files.exists(spoolDirectory.toPath().resolve("unrouted.txt")));
+        assertEquals(0, countFiles(spoolDirectory.toPath().resolve("processing")));
+    }
+
+    @Test
+    public void watchesSeveralRootsRecursively() throws Exception {
+        File first = new File("test/" + UUID.randomUUID() + "/");
+        File second = new File("test/" + UUID.randomUUID() + "/");
+        File existing = new File(first, "ab/cd");
+        existing.mkdirs();
+        second.mkdirs();
+
+        createTestMessageFile("valid-message.txt", existing, "existing.txt");
+
+        int count = 40;
+        CountDownLatch latch = new CountDownLatch(count + 1);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        FileSystemMessageWatcher treeWatcher = new FileSystemMessageWatcher(
+                Arrays.asList(first.toPath(), second.toPath()),
+                new DefaultMessageParser(),
+                new WatcherConfig().setRecursive(true).setWatchThreads(3).setClaimFiles(true));
+
+        treeWatcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        treeWatcher.start();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                File root = i % 2 == 0 ? first : second;
+                File shard = new File(root, String.format("%02x/%02x", i % 7, i % 5));
+                shard.mkdirs();
+
+                moveTestMessageFile("valid-message.txt", shard, "message-" + i + ".txt");
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            treeWatcher.stop();
+        }
+
+        assertEquals(count + 1, messages.size());
+        assertEquals(0, countFiles(existing.toPath()) - 2);
+    }
+
+    @Test
+    public void skipsExistingFilesOfSubdirectoriesWithoutScanOnStart() throws Exception {
+        File root = new File("test/" + UUID.randomUUID() + "/");
+        File existing = new File(root, "sub");
+        existing.mkdirs();
+
+        createTestMessageFile("valid-message.txt", root, "root.txt");
+        createTestMessageFile("valid-message.txt", existing, "existing.txt");
+
+        AtomicInteger delivered = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        FileSystemMessageWatcher recursiveWatcher = new FileSystemMessageWatcher(root.toPath(),
+                new DefaultMessageParser(), new WatcherConfig().setRecursive(true).setScanOnStart(false));
+
+        recursiveWatcher.onMessage((m) -> {
+            delivered.incrementAndGet();
+            latch.countDown();
+        });
+        recursiveWatcher.start();
+
+        try {
+            Thread.sleep(500);
+            moveTestMessageFile("valid-message.txt", existing, "new.txt");
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+            Thread.sleep(500);
+        } finally {
+            recursiveWatcher.stop();
+        }
+
+        assertEquals(1, delivered.get());
+    }
+
+    @Test
+    public void ignoresTemporaryFilesUntilRenamed() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        FileSystemMessageWatcher renameWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig());
+
+        renameWatcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        renameWatcher.start();
+
+        try {
+            createTestMessageFile("valid-message.txt", spoolDirectory, "message.txt.tmp");
+
+            assertFalse(latch.await(500, TimeUnit.MILLISECONDS));
+
+            Files.move(spoolDirectory.toPath().resolve("message.txt.tmp"),
+                    spoolDirectory.toPath().resolve("message.txt"), StandardCopyOption.ATOMIC_MOVE);
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            renameWatcher.stop();
+        }
+
+        assertEquals(1, messages.size());
+    }
+
+    @Test
+    public void waitsUntilFileStopsChanging() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        FileSystemMessageWatcher stableWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig().setQuiescenceMillis(300).setMetricsRegistry(registry));
+
+        stableWatcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        stableWatcher.start();
+
+        try (OutputStream out = Files.newOutputStream(spoolDirectory.toPath().resolve("message.txt"))) {
+            out.write("header1: value1\n\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            for (int i = 0; i < 5; i++) {
+                Thread.sleep(100);
+                out.write(("line" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+
+        try {
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+            Thread.sleep(500);
+        } finally {
+            stableWatcher.stop();
+        }
+
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).getPayload().getData().toString().contains("line4"));
+        assertEquals(1L, (long) registry.getCounters().get("files.detected"));
+        assertEquals(0L, (long) registry.getCounters().get("parse.failures"));
+    }
+
+    @Test
+    public void deliversOnVirtualThreadsWhenSupported() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        int count = 20;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<Thread> consumers = Collections.synchronizedList(new ArrayList<>());
+
+        FileSystemMessageWatcher virtualWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(),
+                new WatcherConfig().setDeliveryMode(DeliveryMode.VIRTUAL_THREADS).setVirtualThreadConcurrency(4));
+
+        virtualWatcher.onMessage((m) -> {
+            consumers.add(Thread.currentThread());
+            latch.countDown();
+        });
+
+        virtualWatcher.start();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                moveTestMessageFile("valid-message.txt", spoolDirectory, "message-" + i + ".txt");
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            virtualWatcher.stop();
+        }
+
+        boolean expected = VirtualThreadExecutor.isSupported();
+
+        for (Thread consumer : consumers) {
+            assertEquals(expected, isVirtual(consumer));
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void skipsDuplicateMessages() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+        FileSystemMessageWatcher dedupWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig()
+                        .setClaimFiles(true)
+                        .setDeduplicate(true)
+                        .setMetricsRegistry(registry));
+
+        dedupWatcher.onMessage(messages::add);
+        dedupWatcher.start();
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                moveTestMessageFile("valid-message.txt", spoolDirectory, "copy-" + i + ".txt");
+            }
+
+            for (int i = 0; i < 600 && dedupWatcher.getDeduplicationStats().getHits() < 2; i++) {
+                Thread.sleep(100);
+            }
+
+            Thread.sleep(200);
+        } finally {
+            dedupWatcher.stop();
+        }
+
+        assertEquals(1, messages.size());
+        assertEquals(2, dedupWatcher.getDeduplicationStats().getHits());
+        assertEquals(0, countFiles(spoolDirectory.toPath().resolve("processing")));
+    }
+
+    @Test
+    public void sortsFilesIntoLanes() throws Exception {
+        File spoolDirectory = new File("test/" + UUID.randomUUID() + "/");
+        spoolDirectory.mkdirs();
+
+        CountDownLatch latch = new CountDownLatch(3);
+        FileSystemMessageWatcher laneWatcher = new FileSystemMessageWatcher(spoolDirectory.toPath(),
+                new DefaultMessageParser(), new WatcherConfig()
+                        .setLaneScheduling(true)
+                        .setPriorityHeader(HeaderNames.PRIORITY)
+                        .setBulkThresholdBytes(1024));
+
+        laneWatcher.onMessage((m) -> latch.countDown());
+        laneWatcher.start();
+
+        StringBuilder bulk = new StringBuilder("header1: value1\n\n\n");
+
+        for (int i = 0; i < 1000; i++) {
+            bulk.append("line").append(i).append('\n');
+        }
+
+        try {
+            writeMessageFile(spoolDirectory, "urgent.txt", "Priority: 5\n\n\nurgent");
+            writeMessageFile(spoolDirectory, "normal.txt", "Priority: 0\n\n\nnormal");
+            writeMessageFile(spoolDirectory, "bulk.txt", bulk.toString());
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            laneWatcher.stop();
+        }
+
+        for (MessageLane lane : MessageLane.values()) {
+            assertEquals(1, laneWatcher.getParseStats(lane).getCompleted());
+        }
+    }
+
+    private void writeMessageFile(File directory, String name, String content) throws IOException {
+        Path temporary = directory.toPath().resolve(name + ".tmp");
+
+        Files.write(temporary, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, directory.toPath().resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long countFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            long count = 0;
+
+            for (Path ignored : stream) {
+                count++;
+            }
+
+            return count;
+        }
+    }
+
+    private void moveTestMessageFile(String fileName, File directory, String targetName) throws URISyntaxException, IOException {
+        File staging = new File("test/" + UUID.randomUUID() + "/");
+        staging.mkdirs();
+
+        createTestMessageFile(fileName, staging, targetName);
+        Files.move(staging.toPath().resolve(targetName), directory.toPath().resolve(targetName), StandardCopyOption.ATOMIC_MOVE);
+    }
+
     private void createTestMessageFile(String fileName) throws URISyntaxException, IOException {
+        createTestMessageFile(fileName, messagesDirectory, fileName);
+    }
+
+    private void createTestMessageFile(String fileName, File directory, String targetName) throws URISyntaxException, IOException {
         ClassLoader classLoader = getClass().getClassLoader();
         URL url = classLoader.getResource(String.format("watcher/messages/%s", fileName));
 
@@ -132,7 +772,7 @@ public class FileSystemMessageWatcherTest {
             throw new IllegalArgumentException("Could not locate file " + fileName);
         }
 
-        Files.copy(Paths.get(url.toURI()), Paths.get(String.format("%s/%s", messagesDirectory.getAbsolutePath(), fileName)));
+        Files.copy(Paths.get(url.toURI()), Paths.get(String.format("%s/%s", directory.getAbsolutePath(), targetName)));
     }
 
 }
\ No newline at end of file
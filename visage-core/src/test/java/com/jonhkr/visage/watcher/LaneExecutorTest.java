@@ -0,0 +1,151 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LaneExecutorTest {
+
+    @Test
+    public void keepsWorkersAndBudgetsAfterAnError() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test", 1, 100, RejectionPolicy.REJECT, Timer.NOOP,
+                new int[]{8, 4, 1}, new int[]{1, 1, 1});
+        CountDownLatch ran = new CountDownLatch(1);
+
+        try {
+            executor.execute(MessageLane.BULK, () -> {
+                throw new OutOfMemoryError("parse bug");
+            });
+            executor.execute(MessageLane.BULK, ran::countDown);
+
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getStats(MessageLane.BULK).getCompleted());
+        assertEquals(0, executor.getStats(MessageLane.BULK).getActiveWorkers());
+    }
+
+    @Test
+    public void favoursLanesByWeight() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test", 1, 100, RejectionPolicy.REJECT, Timer.NOOP,
+                new int[]{8, 4, 1}, new int[]{1, 1, 1});
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<MessageLane> order = Collections.synchronizedList(new ArrayList<>());
+
+        executor.execute(MessageLane.NORMAL, () -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 20; i++) {
+            executor.execute(MessageLane.BULK, () -> order.add(MessageLane.BULK));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            executor.execute(MessageLane.URGENT, () -> order.add(MessageLane.URGENT));
+        }
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(40, order.size());
+        assertEquals(8, Collections.frequency(order.subList(0, 9), MessageLane.URGENT));
+        assertEquals(20, executor.getStats(MessageLane.BULK).getCompleted());
+    }
+
+    @Test
+    public void keepsLaneWithinItsWorkerBudget() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test", 3, 100, RejectionPolicy.REJECT, Timer.NOOP,
+                new int[]{8, 4, 1}, new int[]{3, 3, 1});
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch urgent = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            executor.execute(MessageLane.BULK, () -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                await(release);
+                running.decrementAndGet();
+            });
+        }
+
+        executor.execute(MessageLane.URGENT, urgent::countDown);
+
+        assertTrue(urgent.await(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getStats(MessageLane.BULK).getQueueDepth());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(1, peak.get());
+        assertEquals(3, executor.getStats(MessageLane.BULK).getCompleted());
+    }
+
+    @Test
+    public void rejectsWhenLaneIsFull() throws Exception {
+        LaneExecutor executor = new LaneExecutor("test", 1, 1, RejectionPolicy.REJECT, Timer.NOOP,
+                new int[]{1, 1, 1}, new int[]{1, 1, 1});
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.execute(MessageLane.BULK, () -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.execute(MessageLane.BULK, () -> { });
+        executor.execute(MessageLane.URGENT, () -> { });
+
+        try {
+            executor.execute(MessageLane.BULK, () -> { });
+            fail("Expected task to be rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getStats().getRejected());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.message.Payload;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MessageBatcherTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<List<Message>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger completed = new AtomicInteger();
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void flushesWhenMaxCountIsReached() {
+        MessageBatcher batcher = new MessageBatcher(batches::add, 3, Long.MAX_VALUE, 60000, Runnable::run, scheduler);
+
+        for (int i = 0; i < 7; i++) {
+            batcher.add(message("payload"), (failure) -> completed.incrementAndGet());
+        }
+
+        assertEquals(2, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(6, completed.get());
+
+        batcher.flush();
+
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(2).size());
+        assertEquals(7, completed.get());
+    }
+
+    @Test
+    public void flushesBeforeExceedingMaxBytes() {
+        MessageBatcher batcher = new MessageBatcher(batches::add, 100, 10, 60000, Runnable::run, scheduler);
+
+        batcher.add(message("1234"), (failure) -> completed.incrementAndGet());
+        batcher.add(message("1234"), (failure) -> completed.incrementAndGet());
+        batcher.add(message("1234"), (failure) -> completed.incrementAndGet());
+
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(2, completed.get());
+    }
+
+    @Test
+    public void flushesAfterLinger() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(2);
+        MessageBatcher batcher = new MessageBatcher(batches::add, 100, Long.MAX_VALUE, 20, Runnable::run, scheduler);
+
+        batcher.add(message("payload"), (failure) -> latch.countDown());
+        batcher.add(message("payload"), (failure) -> latch.countDown());
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+    }
+
+    private static Message message(String payload) {
+        return new Message(Collections.emptyList(), new Payload(payload));
+    }
+}
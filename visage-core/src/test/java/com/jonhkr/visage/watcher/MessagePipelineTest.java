@@ -0,0 +1,285 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.HeaderNames;
+import com.jonhkr.visage.message.Headers;
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import com.jonhkr.visage.parser.MessageParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessagePipelineTest {
+
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("visage");
+    }
+
+    @After
+    public void after() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((file) -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void rejectedFilesAreNotLeftInFlight() throws Exception {
+        CountDownLatch parsing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        MessageParser parser = new DefaultMessageParser() {
+            @Override
+            public Message parse(Path path) {
+                parsing.countDown();
+
+                try {
+                    release.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.parse(path);
+            }
+        };
+
+        MessagePipeline pipeline = new MessagePipeline(parser, config()
+                .setParserWorkers(1)
+                .setParseQueueCapacity(1)
+                .setParseRejectionPolicy(RejectionPolicy.REJECT));
+
+        CountDownLatch accepted = new CountDownLatch(2);
+        CountDownLatch delivered = new CountDownLatch(3);
+        pipeline.onMessage(null, (m) -> {
+            accepted.countDown();
+            delivered.countDown();
+        });
+
+        try {
+            assertTrue(pipeline.process(write("a")));
+            assertTrue(parsing.await(1, TimeUnit.MINUTES));
+            assertTrue(pipeline.process(write("b")));
+            assertFalse(pipeline.process(write("c")));
+            assertEquals(1, pipeline.getParseStats().getRejected());
+
+            release.countDown();
+            assertTrue(accepted.await(1, TimeUnit.MINUTES));
+
+            assertTrue(pipeline.process(directory.resolve("c")));
+            assertTrue(delivered.await(1, TimeUnit.MINUTES));
+        } finally {
+            release.countDown();
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void keepsClaimsOfMessagesNobodyConsumes() throws Exception {
+        MessagePipeline pipeline = new MessagePipeline(new DefaultMessageParser(), config().setClaimFiles(true));
+        pipeline.addDirectory(directory);
+
+        try {
+            assertTrue(pipeline.process(write("a")));
+
+            while (pipeline.getParseStats().getCompleted() < 1) {
+                Thread.sleep(10);
+            }
+        } finally {
+            pipeline.shutdown();
+        }
+
+        assertFalse(Files.exists(directory.resolve("a")));
+
+        try (Stream<Path> claims = Files.list(directory.resolve("processing"))) {
+            assertEquals(1, claims.count());
+        }
+    }
+
+    @Test
+    public void deadLettersMessagesWhoseRouteThrows() throws Exception {
+        MessagePipeline pipeline = new MessagePipeline(new DefaultMessageParser(), config().setClaimFiles(true));
+        pipeline.addDirectory(directory);
+        pipeline.onMessage((headers) -> {
+            throw new IllegalStateException("broken route");
+        }, (m) -> fail("message delivered"));
+
+        try {
+            assertTrue(pipeline.process(write("a")));
+
+            while (pipeline.getParseStats().getCompleted() < 1) {
+                Thread.sleep(10);
+            }
+        } finally {
+            pipeline.shutdown();
+        }
+
+        assertFalse(Files.exists(directory.resolve("a")));
+        assertTrue(Files.exists(directory.resolve("failed").resolve("a")));
+
+        try (Stream<Path> claims = Files.list(directory.resolve("processing"))) {
+            assertEquals(0, claims.count());
+        }
+    }
+
+    @Test
+    public void deadLettersUnclaimedMessagesAfterTheLastAttempt() throws Exception {
+        MessagePipeline pipeline = new MessagePipeline(new DefaultMessageParser(), config()
+                .setMaxDeliveryAttempts(2)
+                .setRetryInitialBackoffMillis(1)
+                .setRetryMaxBackoffMillis(1));
+        AtomicInteger attempts = new AtomicInteger();
+        pipeline.onMessage(null, (m) -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("consumer down");
+        });
+
+        Path failed = directory.resolve("failed").resolve("a");
+
+        try {
+            assertTrue(pipeline.process(write("a")));
+
+            for (int i = 0; i < 6000 && !Files.exists(failed); i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            pipeline.shutdown();
+        }
+
+        assertEquals(2, attempts.get());
+        assertFalse(Files.exists(directory.resolve("a")));
+        assertTrue(Files.exists(failed));
+        assertTrue(Files.exists(directory.resolve("failed").resolve("a.error")));
+        assertFalse(pipeline.process(directory.resolve("failed")));
+    }
+
+    @Test
+    public void parsesFilesWithoutWaitingByDefault() throws Exception {
+        CountDownLatch parsing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MessageParser parser = new DefaultMessageParser() {
+            @Override
+            public Message parse(Path path) {
+                parsing.countDown();
+
+                try {
+                    release.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.parse(path);
+            }
+        };
+
+        MessagePipeline pipeline = new MessagePipeline(parser, new WatcherConfig().setJmxEnabled(false));
+
+        try {
+            Path file = write("a");
+            long start = System.nanoTime();
+
+            assertTrue(pipeline.offer(file));
+            assertFalse(pipeline.process(file));
+            assertTrue(parsing.await(1, TimeUnit.MINUTES));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        } finally {
+            release.countDown();
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void holdsBackFilesWithOldModificationTimes() throws Exception {
+        MessagePipeline pipeline = new MessagePipeline(new DefaultMessageParser(), config().setQuiescenceMillis(300));
+
+        CountDownLatch delivered = new CountDownLatch(1);
+        pipeline.onMessage(null, (m) -> delivered.countDown());
+
+        try {
+            Path file = write("a");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+
+            assertTrue(pipeline.offer(file));
+            assertFalse(delivered.await(100, TimeUnit.MILLISECONDS));
+            assertTrue(delivered.await(1, TimeUnit.MINUTES));
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void readsPriorityHeadersOnlyWhenConfigured() throws Exception {
+        AtomicInteger headerReads = new AtomicInteger();
+        MessageParser parser = new DefaultMessageParser() {
+            @Override
+            public Headers parseHeaders(Path path) {
+                headerReads.incrementAndGet();
+                return super.parseHeaders(path);
+            }
+        };
+
+        Path file = directory.resolve("a");
+        Files.write(file, "Priority: 5\n\n\npayload".getBytes(StandardCharsets.UTF_8));
+
+        MessagePipeline bySize = new MessagePipeline(parser, config().setLaneScheduling(true));
+        MessagePipeline byPriority = new MessagePipeline(parser, config()
+                .setLaneScheduling(true)
+                .setPriorityHeader(HeaderNames.PRIORITY));
+
+        try {
+            assertEquals(MessageLane.NORMAL, bySize.classify(file));
+            assertEquals(0, headerReads.get());
+            assertEquals(MessageLane.URGENT, byPriority.classify(file));
+            assertEquals(1, headerReads.get());
+        } finally {
+            bySize.shutdown();
+            byPriority.shutdown();
+        }
+    }
+
+    private Path write(String name) throws IOException {
+        Path file = directory.resolve(name);
+        Files.write(file, ("id: " + name + "\n\n\npayload").getBytes(StandardCharsets.UTF_8));
+
+        return file;
+    }
+
+    private static WatcherConfig config() {
+        return new WatcherConfig()
+                .setQuiescenceMillis(0)
+                .setJmxEnabled(false);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageWatcherTest {
+
+    @Test
+    public void deliversSingleMessageBatchesByDefault() {
+        List<Consumer<Message>> consumers = new ArrayList<>();
+
+        MessageWatcher watcher = new MessageWatcher() {
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void stop() {
+            }
+
+            @Override
+            public void onMessage(Consumer<Message> consumer) {
+                consumers.add(consumer);
+            }
+        };
+
+        List<List<Message>> batches = new ArrayList<>();
+        watcher.onMessages(batches::add);
+
+        Message message = new DefaultMessageParser().parse("id: 1\n\n\npayload");
+        consumers.forEach((consumer) -> consumer.accept(message));
+
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(message, batches.get(0).get(0));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PartitionedExecutorTest {
+
+    @Test
+    public void keepsOrderPerKey() throws Exception {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 4, 16, RejectionPolicy.BLOCK, Timer.NOOP);
+        Map<String, List<Integer>> delivered = new ConcurrentHashMap<>();
+        int keys = 32;
+        int perKey = 500;
+        CountDownLatch done = new CountDownLatch(keys * perKey);
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                String key = "key-" + k;
+                int sequence = i;
+
+                executor.lane(key).execute(() -> {
+                    if (ThreadLocalRandom.current().nextInt(100) == 0) {
+                        Thread.yield();
+                    }
+
+                    delivered.computeIfAbsent(key, (ignored) -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(sequence);
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        for (List<Integer> sequences : delivered.values()) {
+            assertEquals(perKey, sequences.size());
+
+            for (int i = 0; i < perKey; i++) {
+                assertEquals(i, (int) sequences.get(i));
+            }
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(keys * perKey, executor.getStats().getCompleted());
+    }
+
+    @Test
+    public void keepsTheLaneRunningAfterAnError() throws Exception {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 2, 16, RejectionPolicy.BLOCK, Timer.NOOP);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        try {
+            executor.lane("key").execute(() -> {
+                throw new AssertionError("consumer bug");
+            });
+            executor.lane("key").execute(ran::countDown);
+
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getStats().getCompleted());
+    }
+
+    @Test
+    public void runsSameKeyOnSameLane() {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 8, 1, RejectionPolicy.REJECT, Timer.NOOP);
+
+        try {
+            assertSame(executor.lane("order-42"), executor.lane("order-42"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsWhenLaneIsFull() throws Exception {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 2, 1, RejectionPolicy.REJECT, Timer.NOOP);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.lane("a").execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.lane("a").execute(() -> { });
+
+        try {
+            executor.lane("a").execute(() -> { });
+            fail("Expected task to be rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getStats().getRejected());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
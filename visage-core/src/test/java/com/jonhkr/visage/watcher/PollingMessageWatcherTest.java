@@ -0,0 +1,176 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.message.Message;
+import com.jonhkr.visage.parser.DefaultMessageParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollingMessageWatcherTest {
+
+    private final static String MESSAGE = "header1: header1-value\n\n\npayload data";
+
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createDirectories(Paths.get("test", UUID.randomUUID().toString()));
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.walkFileTree(Paths.get("test"), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void deliversExistingAndNewFilesOnce() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            write(directory, "existing-" + i);
+        }
+
+        CountDownLatch latch = new CountDownLatch(25);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        PollingMessageWatcher watcher = new PollingMessageWatcher(directory, new DefaultMessageParser());
+
+        watcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        watcher.start();
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                write(directory, "new-" + i);
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+
+            Thread.sleep(500);
+        } finally {
+            watcher.stop();
+        }
+
+        assertEquals(25, messages.size());
+        assertEquals("payload data", messages.get(0).getPayload().getData().toString());
+    }
+
+    @Test
+    public void pollsSubdirectoriesWithClaims() throws Exception {
+        int count = 30;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        PollingMessageWatcher watcher = new PollingMessageWatcher(Collections.singletonList(directory),
+                new DefaultMessageParser(),
+                new WatcherConfig().setRecursive(true).setClaimFiles(true),
+                new PollingConfig().setMaxPollIntervalMillis(50));
+
+        watcher.onMessage((m) -> {
+            messages.add(m);
+            latch.countDown();
+        });
+
+        watcher.start();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                write(Files.createDirectories(directory.resolve("shard-" + i % 3)), "message-" + i);
+            }
+
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+        } finally {
+            watcher.stop();
+        }
+
+        assertEquals(count, messages.size());
+
+        for (int i = 0; i < 3; i++) {
+            Path shard = directory.resolve("shard-" + i);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(shard, "message-*")) {
+                assertTrue(!stream.iterator().hasNext());
+            }
+        }
+    }
+
+    @Test
+    public void deliversFilesRecreatedUnderTheSameName() throws Exception {
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(2);
+
+        PollingMessageWatcher watcher = new PollingMessageWatcher(Collections.singletonList(directory),
+                new DefaultMessageParser(),
+                new WatcherConfig(),
+                new PollingConfig().setMaxPollIntervalMillis(50).setFullScanIntervalMillis(200));
+
+        watcher.onMessage((m) -> {
+            first.countDown();
+            second.countDown();
+        });
+
+        watcher.start();
+
+        try {
+            write(directory, "message");
+            assertTrue(first.await(1, TimeUnit.MINUTES));
+
+            write(directory, "message");
+            assertTrue(second.await(1, TimeUnit.MINUTES));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    private static void write(Path directory, String name) throws IOException {
+        Path staging = Files.createDirectories(Paths.get("test", "staging"));
+        Path file = staging.resolve(name);
+
+        Files.write(file, MESSAGE.getBytes(StandardCharsets.UTF_8));
+        Files.move(file, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
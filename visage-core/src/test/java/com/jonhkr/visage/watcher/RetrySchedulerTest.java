@@ -0,0 +1,234 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Counter;
+import com.jonhkr.visage.publisher.LimitExceededException;
+import com.jonhkr.visage.publisher.MessageRejectedException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RetrySchedulerTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final Counter retryCounter = (delta) -> retries.addAndGet((int) delta);
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void retriesUntilDeliverySucceeds() throws Exception {
+        RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 5, 10, 100, 2, retryCounter, false);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+        retryScheduler.submit(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("Downstream unavailable");
+            }
+        }, done::complete);
+
+        assertNull(done.get(10, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertEquals(2, retries.get());
+    }
+
+    @Test
+    public void failsOnceAttemptsAreExhausted() throws Exception {
+        RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 3, 10, 100, 2, retryCounter, false);
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger completions = new AtomicInteger();
+        CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+        retryScheduler.submit(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("Downstream unavailable");
+        }, (failure) -> {
+            completions.incrementAndGet();
+            done.complete(failure);
+        });
+
+        Throwable failure = done.get(10, TimeUnit.SECONDS);
+
+        assertTrue(failure instanceof DeliveryException);
+        assertEquals(3, ((DeliveryException) failure).getAttempts());
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+        assertEquals(3, attempts.get());
+        assertEquals(1, completions.get());
+    }
+
+    @Test
+    public void retriesOnTheSameThreadWhenOrdered() throws Exception {
+        RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 3, 10, 100, 2, retryCounter, true);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+        retryScheduler.submit(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("Downstream unavailable");
+            }
+        }, done::complete);
+
+        assertTrue(done.isDone());
+        assertNull(done.get());
+        assertEquals(3, attempts.get());
+        assertEquals(2, retries.get());
+    }
+
+    @Test
+    public void limitedAttemptsDoNotCountTowardsTheMaximum() throws Exception {
+        for (boolean ordered : new boolean[]{false, true}) {
+            RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 2, 1, 1, 1, retryCounter, ordered);
+            AtomicInteger attempts = new AtomicInteger();
+            CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+            retryScheduler.submit(() -> {
+                if (attempts.incrementAndGet() <= 5) {
+                    throw new LimitExceededException("No publish slot");
+                }
+            }, done::complete);
+
+            assertNull(done.get(10, TimeUnit.SECONDS));
+            assertEquals(6, attempts.get());
+        }
+
+        assertEquals(0, retries.get());
+    }
+
+    @Test
+    public void completesDeliveriesThatRaiseAnError() throws Exception {
+        for (boolean ordered : new boolean[]{false, true}) {
+            RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 3, 1, 1, 1, retryCounter, ordered);
+            AtomicInteger attempts = new AtomicInteger();
+            CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+            retryScheduler.submit(() -> {
+                attempts.incrementAndGet();
+                throw new StackOverflowError();
+            }, done::complete);
+
+            Throwable failure = done.get(10, TimeUnit.SECONDS);
+
+            assertTrue(failure instanceof DeliveryException);
+            assertTrue(failure.getCause() instanceof StackOverflowError);
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void doesNotRetryRejectedMessages() throws Exception {
+        for (boolean ordered : new boolean[]{false, true}) {
+            RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 3, 1, 1, 1, retryCounter, ordered);
+            AtomicInteger attempts = new AtomicInteger();
+            CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+            retryScheduler.submit(() -> {
+                attempts.incrementAndGet();
+                throw new MessageRejectedException("Message too large");
+            }, done::complete);
+
+            Throwable failure = done.get(10, TimeUnit.SECONDS);
+
+            assertTrue(failure.getCause() instanceof MessageRejectedException);
+            assertEquals(1, attempts.get());
+        }
+
+        assertEquals(0, retries.get());
+    }
+
+    @Test
+    public void postponesDeliveriesOfferedToAFullQueue() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, RejectionPolicy.BLOCK);
+        RetryScheduler retryScheduler = new RetryScheduler(executor, scheduler, 1, 0, 0, 1, retryCounter, false);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                running.countDown();
+
+                try {
+                    release.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            assertTrue(running.await(1, TimeUnit.MINUTES));
+
+            executor.execute(() -> { });
+
+            retryScheduler.offer(() -> { }, done::complete);
+            assertFalse(done.isDone());
+
+            release.countDown();
+            assertNull(done.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failsRetriesStillWaitingAtShutdown() throws Exception {
+        RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 3, 60000, 60000, 2, retryCounter, false);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Throwable> done = new CompletableFuture<>();
+
+        retryScheduler.submit(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("Downstream unavailable");
+        }, done::complete);
+
+        assertFalse(done.isDone());
+
+        scheduler.shutdownNow();
+        retryScheduler.shutdown();
+
+        assertTrue(done.get(10, TimeUnit.SECONDS) instanceof RejectedExecutionException);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToTheMaximum() {
+        RetryScheduler retryScheduler = new RetryScheduler(Runnable::run, scheduler, 10, 100, 1000, 2, retryCounter, false);
+
+        for (int i = 0; i < 100; i++) {
+            long first = retryScheduler.backoff(1);
+            long third = retryScheduler.backoff(3);
+            long tenth = retryScheduler.backoff(10);
+
+            assertTrue(first >= 50 && first <= 100);
+            assertTrue(third >= 200 && third <= 400);
+            assertTrue(tenth >= 500 && tenth <= 1000);
+        }
+    }
+}
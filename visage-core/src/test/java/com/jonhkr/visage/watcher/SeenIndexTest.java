@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenIndexTest {
+
+    @Test
+    public void sweepDropsEntriesNotSeenSinceLastListing() {
+        SeenIndex index = new SeenIndex();
+
+        for (int i = 0; i < 1000; i++) {
+            index.add("message-" + i, i);
+        }
+
+        index.sweep();
+        assertEquals(1000, index.size());
+
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(index.mark("message-" + i, i));
+        }
+
+        index.sweep();
+        assertEquals(500, index.size());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0, index.mark("message-" + i, i));
+        }
+
+        assertFalse(index.mark("other", 0));
+    }
+
+    @Test
+    public void markingByNameKeepsEntriesWithoutTheirStamp() {
+        SeenIndex index = new SeenIndex();
+
+        index.add("kept", 1);
+        index.add("dropped", 2);
+        index.sweep();
+
+        assertTrue(index.mark("kept"));
+        assertFalse(index.mark("other"));
+
+        index.sweep();
+        assertEquals(1, index.size());
+        assertTrue(index.mark("kept", 1));
+    }
+
+    @Test
+    public void entriesNamingAnotherFileAreNew() {
+        SeenIndex index = new SeenIndex();
+
+        index.add("message", 1);
+
+        assertTrue(index.mark("message", 1));
+        assertFalse(index.mark("message", 2));
+
+        index.add("message", 2);
+
+        assertTrue(index.mark("message", 2));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void hashCollisionsAreConfirmedByName() {
+        SeenIndex index = new SeenIndex();
+
+        index.add(42, "first", 1);
+
+        assertFalse(index.mark(42, "second", 1));
+
+        index.add(42, "second", 1);
+
+        assertTrue(index.mark(42, "first", 1));
+        assertTrue(index.mark(42, "second", 1));
+        assertEquals(2, index.size());
+    }
+}
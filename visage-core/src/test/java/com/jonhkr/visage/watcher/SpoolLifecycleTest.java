@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SpoolLifecycleTest {
+
+    private Path spool;
+
+    @Before
+    public void setup() throws IOException {
+        spool = Files.createTempDirectory("visage");
+    }
+
+    @After
+    public void after() throws IOException {
+        try (Stream<Path> files = Files.walk(spool)) {
+            files.sorted(Comparator.reverseOrder()).forEach((file) -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void claimsOfTheSameNameDoNotReplaceEachOther() throws Exception {
+        SpoolLifecycle lifecycle = new SpoolLifecycle(spool, new WatcherConfig().setClaimFiles(true));
+        lifecycle.init();
+
+        Path first = lifecycle.claim(write("message", "first"));
+        Path second = lifecycle.claim(write("message", "second"));
+
+        assertNotEquals(first, second);
+        assertEquals("first", read(first));
+        assertEquals("second", read(second));
+        assertEquals("message", SpoolLifecycle.fileName(first));
+        assertNull(lifecycle.claim(spool.resolve("message")));
+    }
+
+    @Test
+    public void claimsAreTouchedBeforeTheyAreVisible() throws Exception {
+        Path file = write("message", "payload");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60 * 60 * 1000));
+
+        WatcherConfig config = new WatcherConfig().setClaimFiles(true).setClaimTimeoutMillis(60 * 1000);
+        SpoolLifecycle owner = new SpoolLifecycle(spool, config);
+        SpoolLifecycle other = new SpoolLifecycle(spool, config);
+        owner.init();
+
+        Path claimed = owner.claim(file);
+
+        assertEquals(0, other.reclaimStale());
+        assertTrue(Files.exists(claimed));
+    }
+
+    @Test
+    public void staleClaimsGoBackUnderTheirOriginalName() throws Exception {
+        WatcherConfig config = new WatcherConfig().setClaimFiles(true).setClaimTimeoutMillis(0);
+        SpoolLifecycle owner = new SpoolLifecycle(spool, config);
+        SpoolLifecycle other = new SpoolLifecycle(spool, config);
+        owner.init();
+
+        Path claimed = owner.claim(write("message", "payload"));
+        Thread.sleep(10);
+
+        assertEquals(0, owner.reclaimStale());
+        assertEquals(1, other.reclaimStale());
+        assertFalse(Files.exists(claimed));
+        assertEquals("payload", read(spool.resolve("message")));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(spool.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
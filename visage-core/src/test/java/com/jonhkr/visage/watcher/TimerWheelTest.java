@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    public void runsTasksAfterTheirDelay() throws Exception {
+        TimerWheel timer = new TimerWheel("test-timer", 5, 16);
+        int count = 200;
+        CountDownLatch latch = new CountDownLatch(count);
+        AtomicInteger early = new AtomicInteger();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                long delay = i % 150;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+                timer.schedule(() -> {
+                    if (System.nanoTime() < deadline) {
+                        early.incrementAndGet();
+                    }
+
+                    latch.countDown();
+                }, delay);
+            }
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            timer.stop();
+        }
+
+        assertEquals(0, early.get());
+    }
+
+    @Test
+    public void wakesUpAfterIdling() throws Exception {
+        TimerWheel timer = new TimerWheel("test-timer", 5, 16);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+
+        try {
+            timer.schedule(first::countDown, 10);
+            assertTrue(first.await(10, TimeUnit.SECONDS));
+
+            Thread.sleep(200);
+
+            timer.schedule(second::countDown, 10);
+            assertTrue(second.await(10, TimeUnit.SECONDS));
+        } finally {
+            timer.stop();
+        }
+    }
+}
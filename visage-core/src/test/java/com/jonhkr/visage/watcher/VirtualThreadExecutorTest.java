@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2017 Jonas Trevisan
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jonhkr.visage.watcher;
+
+import com.jonhkr.visage.metrics.Timer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadExecutorTest {
+
+    @Before
+    public void requireVirtualThreads() {
+        assumeTrue(VirtualThreadExecutor.isSupported());
+    }
+
+    @Test
+    public void limitsConcurrency() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 4, RejectionPolicy.BLOCK, Timer.NOOP);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        int tasks = 100;
+        CountDownLatch done = new CountDownLatch(tasks);
+
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertTrue(peak.get() <= 4);
+        assertEquals(tasks, executor.getStats().getCompleted());
+        assertTrue(executor.getStats().getBlocked() > 0);
+    }
+
+    @Test
+    public void rejectsAtConcurrencyLimit() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 1, RejectionPolicy.REJECT, Timer.NOOP);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.execute(() -> await(release));
+
+        try {
+            executor.execute(() -> { });
+            fail("Expected task to be rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getStats().getRejected());
+            assertEquals(1, executor.getStats().getActiveWorkers());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}